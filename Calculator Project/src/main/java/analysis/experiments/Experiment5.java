@@ -0,0 +1,105 @@
+package analysis.experiments;
+
+import analysis.utils.AnalysisUtils;
+import analysis.utils.CsvWriter;
+import calculator.parser.Parser;
+import calculator.parser.grammar.CalculatorGrammarLexer;
+import calculator.parser.grammar.CalculatorGrammarParser;
+import datastructures.interfaces.IList;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+public class Experiment5 {
+    // Measures how long it takes to parse some number of typical inputs with:
+    //
+    // 1. A brand new ANTLR lexer and parser for each input, in full LL mode
+    //    (how Parser worked before it kept them around)
+    // 2. Parser's ANTLR backend, which reuses its lexer and parser and tries SLL mode first
+    // 3. Parser's hand-written PRATT backend
+
+    public static final int NUM_TRIALS = 5;
+    public static final long MAX_INPUTS = 20000;
+    public static final long STEP = 1000;
+
+    private static final String[] CORPUS = {
+        "1 + 2 * 3\n",
+        "x := 3\n",
+        "y := x ^ 2 - 4 * x + 1\n",
+        "sin(x) / cos(x)\n",
+        "toDouble(sin(pi / 4) ^ 2 + cos(pi / 4) ^ 2)\n",
+        "f := a * b * c\n",
+        "simplify(2 * (x + 3) - -x)\n",
+        "plot(x ^ 2 - 3, x, -5, 5, 0.1)\n",
+        "for(0, 10, i, 1, i * i + 2)\n",
+        "repeat(4, 1 + 2)\n",
+        "if(x - 3, 1, 0)\n",
+        "randomWalk(100, 10)\n",
+    };
+
+    public static void main(String[] args) {
+        IList<Long> inputCounts = AnalysisUtils.makeDoubleLinkedList(0L, MAX_INPUTS, STEP);
+
+        System.out.println("Starting experiment 5, test 1");
+        IList<Long> test1Results = AnalysisUtils.runTrials(inputCounts, Experiment5::test1, NUM_TRIALS);
+
+        System.out.println("Starting experiment 5, test 2");
+        IList<Long> test2Results = AnalysisUtils.runTrials(inputCounts, Experiment5::test2, NUM_TRIALS);
+
+        System.out.println("Starting experiment 5, test 3");
+        IList<Long> test3Results = AnalysisUtils.runTrials(inputCounts, Experiment5::test3, NUM_TRIALS);
+
+        System.out.println("Saving experiment 5 results to file");
+        CsvWriter writer = new CsvWriter();
+        writer.addColumn("NumInputs", inputCounts);
+        writer.addColumn("Test1Results", test1Results);
+        writer.addColumn("Test2Results", test2Results);
+        writer.addColumn("Test3Results", test3Results);
+        writer.writeToFile("experimentdata/experiment5.csv");
+
+        System.out.println("All done!");
+    }
+
+    public static long test1(long numInputs) {
+        Parser completenessChecker = new Parser();
+        long start = System.currentTimeMillis();
+        for (long i = 0; i < numInputs; i++) {
+            // Stops at the parse tree, so this leaves out converting it into an AST
+            try {
+                CalculatorGrammarLexer lexer = new CalculatorGrammarLexer(
+                        new ANTLRInputStream(new StringReader(CORPUS[(int) (i % CORPUS.length)])));
+                lexer.removeErrorListeners();
+                lexer.addErrorListener(new Parser.ThrowingErrorListener());
+                CommonTokenStream tokens = completenessChecker.ensureIsComplete(new CommonTokenStream(lexer));
+                CalculatorGrammarParser parser = new CalculatorGrammarParser(tokens);
+                parser.removeErrorListeners();
+                parser.addErrorListener(new Parser.ThrowingErrorListener());
+                parser.program();
+            } catch (IOException ex) {
+                throw new AssertionError(ex);
+            }
+        }
+        // Returns time elapsed
+        return System.currentTimeMillis() - start;
+    }
+
+    public static long test2(long numInputs) {
+        return timeParser(numInputs, Parser.Backend.ANTLR);
+    }
+
+    public static long test3(long numInputs) {
+        return timeParser(numInputs, Parser.Backend.PRATT);
+    }
+
+    private static long timeParser(long numInputs, Parser.Backend backend) {
+        Parser parser = new Parser();
+        long start = System.currentTimeMillis();
+        for (long i = 0; i < numInputs; i++) {
+            parser.parse(CORPUS[(int) (i % CORPUS.length)], Integer.MAX_VALUE, backend);
+        }
+        // Returns time elapsed
+        return System.currentTimeMillis() - start;
+    }
+}
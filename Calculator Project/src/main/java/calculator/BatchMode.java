@@ -0,0 +1,323 @@
+package calculator;
+
+import calculator.errors.QuitError;
+import calculator.interpreter.Calculator;
+import calculator.parser.StatementReader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs scripts without a window, writing what each statement evaluates to on a
+ * line of its own, the way 'Calculator.execute' does.
+ *
+ * Usage: --batch [--parallel[=THREADS]] [FILE | -]...
+ *
+ * The files are run one after another, or standard input if there are none ("-"
+ * also stands for standard input). Input and output go through large buffers, and
+ * nothing here touches Swing or JFreeChart, so this works with java.awt.headless
+ * set. Since there is nothing to draw on, plotting reports an error.
+ *
+ * Normally one calculator runs every statement, so later statements see the
+ * variables earlier ones assign. With --parallel, the statements are split into
+ * batches that run at the same time, each on a calculator of its own, and their
+ * output is written in the original order. So it only suits scripts whose
+ * statements don't depend on each other.
+ */
+public class BatchMode implements AutoCloseable {
+    public static final String FLAG = "--batch";
+
+    public static final int EXIT_OK = 0;
+    public static final int EXIT_FAILED_STATEMENTS = 1;
+    public static final int EXIT_USAGE = 2;
+
+    private static final String USAGE = "Usage: " + FLAG + " [--parallel[=THREADS]] [FILE | -]...";
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int STATEMENTS_PER_BATCH = 256;
+
+    private final int threads;
+    private final Calculator calculator;
+    private final ExecutorService pool;
+
+    private int errors;
+    private boolean quit;
+
+    /**
+     * Makes a batch runner that runs statements on the given number of threads; with
+     * one thread, every statement runs on the same calculator, in order.
+     *
+     * @throws IllegalArgumentException  if 'threads' is less than 1
+     */
+    public BatchMode(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Expected at least one thread, got " + threads);
+        }
+        this.threads = threads;
+        this.calculator = threads == 1 ? new Calculator() : null;
+        this.pool = threads == 1 ? null : Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "Calculator batch worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.errors = 0;
+        this.quit = false;
+    }
+
+    /**
+     * Runs batch mode with the command-line arguments that follow FLAG, and returns
+     * the exit status: EXIT_OK, EXIT_FAILED_STATEMENTS if some statement failed, or
+     * EXIT_USAGE if the arguments are invalid or some input cannot be read.
+     */
+    public static int run(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        int threads = 1;
+        int first = 0;
+        if (args.length > 0 && args[0].startsWith("--parallel")) {
+            threads = parseThreads(args[0]);
+            first = 1;
+        }
+        String[] sources = args.length == first ? new String[] {"-"} : Arrays.copyOfRange(args, first, args.length);
+        for (String source : sources) {
+            if (source.startsWith("--")) {
+                threads = 0;
+            }
+        }
+        if (threads < 1) {
+            System.err.println(USAGE);
+            return EXIT_USAGE;
+        }
+
+        Writer out = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8),
+                BUFFER_SIZE);
+        try (BatchMode batch = new BatchMode(threads)) {
+            for (int i = 0; i < sources.length && !batch.hasQuit(); i++) {
+                Reader script;
+                try {
+                    script = open(sources[i]);
+                } catch (IOException ex) {
+                    out.flush();
+                    System.err.println("Cannot open " + sources[i] + ": " + ex);
+                    return EXIT_USAGE;
+                }
+                try (Reader in = script) {
+                    batch.execute(in, out);
+                } finally {
+                    // Whatever has been computed is written out, even if this fails
+                    out.flush();
+                }
+            }
+            return batch.getErrorCount() == 0 ? EXIT_OK : EXIT_FAILED_STATEMENTS;
+        } catch (IOException ex) {
+            System.err.println("Batch run failed: " + ex);
+            return EXIT_USAGE;
+        }
+    }
+
+    /**
+     * Returns the number of threads the given --parallel option asks for, or 0 if
+     * it is invalid.
+     */
+    private static int parseThreads(String option) {
+        if (option.equals("--parallel")) {
+            return Runtime.getRuntime().availableProcessors();
+        } else if (!option.startsWith("--parallel=")) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(option.substring("--parallel=".length()));
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private static Reader open(String source) throws IOException {
+        return new BufferedReader(
+                new InputStreamReader(
+                        source.equals("-") ? System.in : Files.newInputStream(Paths.get(source)),
+                        StandardCharsets.UTF_8),
+                BUFFER_SIZE);
+    }
+
+    /**
+     * Runs every statement of the given script, unless an earlier one quit, and
+     * writes their output onto 'out'.
+     *
+     * A statement that fails in any way is reported as an error on its line, and
+     * the statements after it still run.
+     */
+    public void execute(Reader script, Appendable out) throws IOException {
+        StatementReader statements = new StatementReader(script);
+        if (this.pool == null) {
+            while (!this.quit) {
+                String statement = statements.next();
+                if (statement == null) {
+                    break;
+                }
+                try {
+                    if (!this.calculator.executeStatement(statement, statements.getLine(), out)) {
+                        this.errors++;
+                    }
+                } catch (QuitError ex) {
+                    this.quit = true;
+                } catch (Error ex) {
+                    reportFailure(statements.getLine(), ex, out);
+                    this.errors++;
+                }
+            }
+            return;
+        }
+
+        // Keep a few batches per thread queued up, and write out the oldest as
+        // soon as it is done; only the batches in flight are held in memory
+        ArrayDeque<Future<Batch>> pending = new ArrayDeque<>();
+        try {
+            while (!this.quit) {
+                Batch batch = Batch.read(statements);
+                if (batch == null) {
+                    break;
+                }
+                pending.add(this.pool.submit(batch));
+                if (pending.size() >= this.threads * 2) {
+                    this.writeOldest(pending, out);
+                }
+            }
+            while (!pending.isEmpty() && !this.quit) {
+                this.writeOldest(pending, out);
+            }
+        } finally {
+            // Only left over after a 'quit' or a failure
+            for (Future<Batch> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private void writeOldest(ArrayDeque<Future<Batch>> pending, Appendable out) throws IOException {
+        Batch batch;
+        try {
+            batch = pending.remove().get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for statements to run");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        }
+        out.append(batch.output);
+        this.errors += batch.errors;
+        this.quit |= batch.quit;
+    }
+
+    /**
+     * Reports an error that 'Calculator.executeStatement' let through, such as
+     * running out of memory, the way it reports its own.
+     */
+    private static void reportFailure(int line, Error ex, Appendable out) throws IOException {
+        out.append("ERROR (line ").append(String.valueOf(line)).append("): ").append(ex.toString()).append('\n');
+    }
+
+    /**
+     * Returns how many statements have failed so far.
+     */
+    public int getErrorCount() {
+        return this.errors;
+    }
+
+    /**
+     * Returns true once some statement has called 'quit' or 'exit'; nothing after
+     * it runs.
+     */
+    public boolean hasQuit() {
+        return this.quit;
+    }
+
+    @Override
+    public void close() {
+        if (this.pool != null) {
+            this.pool.shutdownNow();
+        }
+    }
+
+    /**
+     * A run of consecutive statements, run on a calculator of its own.
+     */
+    private static class Batch implements Callable<Batch> {
+        private final String[] statements;
+        private final int[] lines;
+        private final int count;
+
+        private final StringBuilder output;
+        private int errors;
+        private boolean quit;
+
+        private Batch(String[] statements, int[] lines, int count) {
+            this.statements = statements;
+            this.lines = lines;
+            this.count = count;
+            this.output = new StringBuilder();
+            this.errors = 0;
+            this.quit = false;
+        }
+
+        /**
+         * Reads up to STATEMENTS_PER_BATCH statements, or returns null if there are
+         * none left.
+         */
+        public static Batch read(StatementReader reader) throws IOException {
+            String[] statements = new String[STATEMENTS_PER_BATCH];
+            int[] lines = new int[STATEMENTS_PER_BATCH];
+            int count = 0;
+            while (count < STATEMENTS_PER_BATCH) {
+                String statement = reader.next();
+                if (statement == null) {
+                    break;
+                }
+                statements[count] = statement;
+                lines[count] = reader.getLine();
+                count++;
+            }
+            return count == 0 ? null : new Batch(statements, lines, count);
+        }
+
+        @Override
+        public Batch call() throws IOException {
+            Calculator calculator = new Calculator();
+            for (int i = 0; i < this.count; i++) {
+                try {
+                    if (!calculator.executeStatement(this.statements[i], this.lines[i], this.output)) {
+                        this.errors++;
+                    }
+                } catch (QuitError ex) {
+                    this.quit = true;
+                    break;
+                } catch (Error ex) {
+                    reportFailure(this.lines[i], ex, this.output);
+                    this.errors++;
+                }
+            }
+            return this;
+        }
+    }
+}
@@ -2,8 +2,13 @@ package calculator;
 
 import calculator.gui.MainWindow;
 
+import java.util.Arrays;
+
 public class Main {
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals(BatchMode.FLAG)) {
+            System.exit(BatchMode.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
         MainWindow.launch();
     }
 }
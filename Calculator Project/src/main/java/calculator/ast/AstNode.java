@@ -1,31 +1,61 @@
 package calculator.ast;
 
 import calculator.errors.EvaluationError;
-import datastructures.concrete.DoubleLinkedList;
+import datastructures.concrete.ArrayList;
 import datastructures.interfaces.IList;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Represents a single node in an abstract syntax tree (AST).
  *
  * See spec for more details on what an AST is.
+ *
+ * AstNodes are immutable: the list returned by 'getChildren()' cannot be modified,
+ * so any number of trees can safely share the same subtree. To build a tree with
+ * different children, use 'withChildren' or one of the constructors.
+ *
+ * Two nodes are 'equals' if they have the same structure. The static 'number',
+ * 'variable' and 'operation' factories go one step further and hash-cons the nodes
+ * they return: structurally identical trees built through them are the same object.
  */
 public class AstNode {
-    private String name;
-    private IList<AstNode> children;
-    private ExprType type;
+    private static final ChildList NO_CHILDREN = new ChildList(new AstNode[0]);
+
+    // Canonical copy of every node built through the factories. The table only holds
+    // weak references, so canonical nodes disappear once nothing else uses them; their
+    // keys are queued in CLEARED and swept out on the next insertion. It is a concurrent
+    // map so that threads parsing at the same time do not wait on a single lock.
+    private static final ConcurrentHashMap<CanonicalKey, CanonicalKey> CANONICAL = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<AstNode> CLEARED = new ReferenceQueue<>();
+
+    private final String name;
+    private final double value;
+    private final ChildList children;
+    private final ExprType type;
+    private final Opcode opcode;
+    private final int hash;
+    private volatile boolean canonical;
 
     /**
      * Creates a leaf node representing a single number.
+     *
+     * The number is stored as-is: no string form is built unless something
+     * asks for one through 'toString()'.
      */
     public AstNode(double number) {
-        this("" + number, new DoubleLinkedList<>(), ExprType.NUMBER);
+        this(null, number, NO_CHILDREN, ExprType.NUMBER, null);
     }
 
     /**
      * Creates a leaf node representing a variable.
      */
     public AstNode(String name) {
-        this(name, new DoubleLinkedList<>(), ExprType.VARIABLE);
+        this(name, 0.0, NO_CHILDREN, ExprType.VARIABLE, null);
     }
 
     /**
@@ -46,15 +76,157 @@ public class AstNode {
      *
      * Note that the list of children may be empty: this represents calling a
      * function with no arguments.
+     *
+     * The children are copied, so changing the given list afterwards does not
+     * affect this node.
      */
     public AstNode(String name, IList<AstNode> children) {
-        this(name, children, ExprType.OPERATION);
+        this(name, 0.0, ChildList.copyOf(children), ExprType.OPERATION, Opcode.forName(name));
     }
 
-    private AstNode(String name, IList<AstNode> children, ExprType type) {
+    private AstNode(String name, double value, ChildList children, ExprType type, Opcode opcode) {
         this.name = name;
+        this.value = value;
         this.children = children;
         this.type = type;
+        this.opcode = opcode;
+        this.hash = computeHash(name, value, children, type);
+    }
+
+    /**
+     * Returns the canonical node representing the given number.
+     */
+    public static AstNode number(double number) {
+        return new AstNode(number).intern();
+    }
+
+    /**
+     * Returns the canonical node representing the given variable.
+     */
+    public static AstNode variable(String name) {
+        return new AstNode(name).intern();
+    }
+
+    /**
+     * Returns the canonical node representing the given operation. The children
+     * do not need to be canonical themselves: this method interns them too.
+     */
+    public static AstNode operation(String name, IList<AstNode> children) {
+        return new AstNode(name, children).intern();
+    }
+
+    /**
+     * Returns the canonical node that is structurally equal to this one, registering
+     * this node (and its subtrees) as canonical if no such node exists yet.
+     */
+    public AstNode intern() {
+        if (this.canonical) {
+            return this;
+        }
+
+        // Interns children before their parents, using an explicit stack so that
+        // arbitrarily deep trees cannot overflow the thread's stack
+        ArrayList<AstNode> pending = new ArrayList<>();
+        ArrayList<AstNode[]> canonicalChildren = new ArrayList<>();
+        ArrayList<Integer> nextChild = new ArrayList<>();
+        pending.add(this);
+        canonicalChildren.add(null);
+        nextChild.add(0);
+        AstNode result = null;
+        while (true) {
+            int top = pending.size() - 1;
+            AstNode node = pending.get(top);
+            AstNode[] items = node.children.items;
+            int index = nextChild.get(top);
+            if (result != null) {
+                // 'result' is the canonical form of child 'index - 1'
+                if (result != items[index - 1]) {
+                    if (canonicalChildren.get(top) == null) {
+                        canonicalChildren.set(top, items.clone());
+                    }
+                    canonicalChildren.get(top)[index - 1] = result;
+                }
+                result = null;
+            }
+            if (index < items.length) {
+                nextChild.set(top, index + 1);
+                AstNode child = items[index];
+                if (child.canonical || !child.isOperation()) {
+                    result = child.canonical ? child : child.internShallow();
+                } else {
+                    pending.add(child);
+                    canonicalChildren.add(null);
+                    nextChild.add(0);
+                }
+                continue;
+            }
+
+            pending.remove();
+            nextChild.remove();
+            AstNode[] replaced = canonicalChildren.remove();
+            if (replaced != null) {
+                node = node.rebuild(new ChildList(replaced));
+            }
+            result = node.internShallow();
+            if (pending.isEmpty()) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Interns this node, assuming all of its children are already canonical.
+     */
+    private AstNode internShallow() {
+        CanonicalKey found = CANONICAL.get(new CanonicalKey(this, null));
+        AstNode existing = found == null ? null : found.get();
+        if (existing != null) {
+            return existing;
+        }
+
+        sweepCleared();
+        CanonicalKey key = new CanonicalKey(this, CLEARED);
+        while (true) {
+            found = CANONICAL.putIfAbsent(key, key);
+            if (found == null) {
+                this.canonical = true;
+                return this;
+            }
+            existing = found.get();
+            if (existing != null) {
+                return existing;
+            }
+            // The other node was collected after the lookup: drop its key and retry
+            CANONICAL.remove(found, found);
+        }
+    }
+
+    private static void sweepCleared() {
+        Reference<? extends AstNode> ref;
+        while ((ref = CLEARED.poll()) != null) {
+            CANONICAL.remove(ref, ref);
+        }
+    }
+
+    /**
+     * Returns a new operation node with the same name and opcode as this one, but
+     * with the given children. If the children are the very same
+     * nodes this one already has, this node is returned as-is.
+     *
+     * @throws EvaluationError  if this node is not an operation
+     */
+    public AstNode withChildren(IList<AstNode> newChildren) {
+        if (!this.isOperation()) {
+            throw new EvaluationError("Attempted to call 'withChildren()' on a number or variable AstNode");
+        }
+        if (this.children.sameItemsAs(newChildren)) {
+            return this;
+        }
+        return this.rebuild(ChildList.copyOf(newChildren));
+    }
+
+    private AstNode rebuild(ChildList newChildren) {
+        return new AstNode(this.name, 0.0, newChildren, ExprType.OPERATION, this.opcode);
     }
 
     /**
@@ -100,11 +272,25 @@ public class AstNode {
         if (!this.isNumber()) {
             throw new EvaluationError("Attempted to call 'getNumericValue()' on a variable or operation AstNode");
         }
-        return Double.parseDouble(this.name);
+        return this.value;
     }
 
     /**
-     * Returns this node's children.
+     * Returns the opcode of this operation. Operations that are not built into
+     * the calculator have the opcode CALL.
+     *
+     * @throws EvaluationError  if this node is not an operation
+     */
+    public Opcode getOpcode() {
+        if (!this.isOperation()) {
+            throw new EvaluationError("Attempted to call 'getOpcode()' on a number or variable AstNode");
+        }
+        return this.opcode;
+    }
+
+    /**
+     * Returns this node's children. The returned list is read-only: trying to
+     * modify it throws an UnsupportedOperationException.
      *
      * If this node represents a number or variable, the returned list
      * is guaranteed to be empty.
@@ -113,9 +299,246 @@ public class AstNode {
         return this.children;
     }
 
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+
+    /**
+     * Returns 'true' if the other object is an AstNode with the same structure as
+     * this one. Numbers are compared the way Double.equals compares them.
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof AstNode)) {
+            return false;
+        }
+        AstNode that = (AstNode) other;
+        if (!this.sameLabel(that)) {
+            return false;
+        }
+
+        // Compares the children pairwise with an explicit stack, so deep trees
+        // cannot overflow the thread's stack
+        ArrayList<AstNode> pending = new ArrayList<>();
+        pushChildren(pending, this, that);
+        while (!pending.isEmpty()) {
+            AstNode right = pending.remove();
+            AstNode left = pending.remove();
+            if (left != right) {
+                if (!left.sameLabel(right)) {
+                    return false;
+                }
+                pushChildren(pending, left, right);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns 'true' if this node and the other one look the same, without
+     * comparing any of their children beyond how many there are.
+     */
+    private boolean sameLabel(AstNode that) {
+        if (this.hash != that.hash || this.type != that.type) {
+            return false;
+        }
+        if (this.canonical && that.canonical) {
+            // Two distinct canonical nodes are never equal
+            return this == that;
+        }
+        if (this.isNumber()) {
+            return Double.doubleToLongBits(this.value) == Double.doubleToLongBits(that.value);
+        }
+        return this.name.equals(that.name) && this.children.items.length == that.children.items.length;
+    }
+
+    private static void pushChildren(ArrayList<AstNode> pending, AstNode left, AstNode right) {
+        AstNode[] mine = left.children.items;
+        AstNode[] theirs = right.children.items;
+        for (int i = mine.length - 1; i >= 0; i--) {
+            pending.add(mine[i]);
+            pending.add(theirs[i]);
+        }
+    }
+
+    private static int computeHash(String name, double value, ChildList children, ExprType type) {
+        if (type == ExprType.NUMBER) {
+            return Double.hashCode(value);
+        }
+        int hash = 31 * type.ordinal() + name.hashCode();
+        for (AstNode child : children.items) {
+            hash = 31 * hash + child.hash;
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the number, variable name, or operation name this node holds.
+     * Use Calculator's 'convertToString' to render a whole expression.
+     */
+    @Override
+    public String toString() {
+        return this.isNumber() ? Double.toString(this.value) : this.name;
+    }
+
     private enum ExprType {
         NUMBER,
         VARIABLE,
         OPERATION,
     }
+
+    /**
+     * A read-only IList view over a node's children.
+     */
+    /**
+     * A weak reference to a canonical node that compares equal to any other key
+     * referring to a structurally equal node. Once its node has been collected, a
+     * key is only equal to itself.
+     */
+    private static class CanonicalKey extends WeakReference<AstNode> {
+        private final int hash;
+
+        public CanonicalKey(AstNode node, ReferenceQueue<AstNode> queue) {
+            super(node, queue);
+            this.hash = node.hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof CanonicalKey)) {
+                return false;
+            }
+            AstNode node = this.get();
+            return node != null && node.equals(((CanonicalKey) other).get());
+        }
+    }
+
+    private static class ChildList implements IList<AstNode> {
+        private final AstNode[] items;
+
+        public ChildList(AstNode[] items) {
+            this.items = items;
+        }
+
+        public static ChildList copyOf(IList<AstNode> list) {
+            if (list instanceof ChildList) {
+                return (ChildList) list;
+            }
+            if (list.size() == 0) {
+                return NO_CHILDREN;
+            }
+            AstNode[] items = new AstNode[list.size()];
+            int i = 0;
+            for (AstNode node : list) {
+                if (node == null) {
+                    throw new IllegalArgumentException("An AstNode cannot have a null child");
+                }
+                items[i] = node;
+                i++;
+            }
+            return new ChildList(items);
+        }
+
+        public boolean sameItemsAs(IList<AstNode> other) {
+            if (other == this) {
+                return true;
+            }
+            if (other.size() != this.items.length) {
+                return false;
+            }
+            int i = 0;
+            for (AstNode node : other) {
+                if (node != this.items[i]) {
+                    return false;
+                }
+                i++;
+            }
+            return true;
+        }
+
+        @Override
+        public AstNode get(int index) {
+            if (index < 0 || index >= this.items.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            return this.items[index];
+        }
+
+        @Override
+        public int size() {
+            return this.items.length;
+        }
+
+        @Override
+        public int indexOf(AstNode item) {
+            for (int i = 0; i < this.items.length; i++) {
+                if (this.items[i].equals(item)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public boolean contains(AstNode other) {
+            return this.indexOf(other) > -1;
+        }
+
+        @Override
+        public Iterator<AstNode> iterator() {
+            return new Iterator<AstNode>() {
+                private int index = 0;
+
+                public boolean hasNext() {
+                    return this.index < ChildList.this.items.length;
+                }
+
+                public AstNode next() {
+                    if (!this.hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    AstNode item = ChildList.this.items[this.index];
+                    this.index++;
+                    return item;
+                }
+            };
+        }
+
+        @Override
+        public void add(AstNode item) {
+            throw new UnsupportedOperationException("AstNode children cannot be modified");
+        }
+
+        @Override
+        public AstNode remove() {
+            throw new UnsupportedOperationException("AstNode children cannot be modified");
+        }
+
+        @Override
+        public void set(int index, AstNode item) {
+            throw new UnsupportedOperationException("AstNode children cannot be modified");
+        }
+
+        @Override
+        public void insert(int index, AstNode item) {
+            throw new UnsupportedOperationException("AstNode children cannot be modified");
+        }
+
+        @Override
+        public AstNode delete(int index) {
+            throw new UnsupportedOperationException("AstNode children cannot be modified");
+        }
+    }
 }
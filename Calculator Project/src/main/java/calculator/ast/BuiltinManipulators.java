@@ -5,6 +5,7 @@ import calculator.errors.QuitError;
 import calculator.gui.ImageDrawer;
 import calculator.interpreter.Environment;
 import calculator.interpreter.Interpreter;
+import calculator.interpreter.VariableTable;
 import datastructures.interfaces.IList;
 
 public class BuiltinManipulators {
@@ -42,10 +43,13 @@ public class BuiltinManipulators {
     }
 
     /**
+     * This function is responsible for handling the `assign(var, expr)` node.
      *
-     * @param env
-     * @param wrapper
-     * @return
+     * It stores the evaluated expression as the variable's new value. Defining a
+     * variable in terms of itself, directly or through other variables, is an error.
+     *
+     * If anyone is subscribed to variable changes, every variable downstream of
+     * the assigned one is re-simplified (in dependency order) and reported.
      */
     public static AstNode handleAssign(Environment env, AstNode wrapper) {
         // Same thing: optional sanity check
@@ -66,16 +70,31 @@ public class BuiltinManipulators {
                     var.isNumber() ? var.getNumericValue() : var.getName()));
         }
 
+        VariableTable variables = env.getVariableTable();
+        if (variables.wouldCreateCycle(var.getName(), expr)) {
+            throw new EvaluationError(String.format(
+                    "Cannot define %s in terms of itself", var.getName()));
+        }
+
         // Record and return result
-        env.getVariables().put(var.getName(), expr);
+        variables.put(var.getName(), expr);
+        if (variables.hasListeners()) {
+            for (String name : variables.getDownstream(var.getName())) {
+                AstNode value = ExpressionManipulators.simplifyHelper(env, new AstNode(name), false);
+                variables.fireVariableChanged(name, value);
+            }
+        }
         return expr;
     }
 
     public static AstNode handleClear(Environment env, AstNode wrapper) {
         assertSignatureOk("clear", wrapper);
 
+        // Without a drawing pane, as in batch mode, there is nothing to clear
         ImageDrawer drawer = env.getImageDrawer();
-        drawer.getGraphics().clearRect(0, 0, drawer.getWidth(), drawer.getHeight());
+        if (drawer != null) {
+            drawer.clear();
+        }
 
         return wrapper;
     }
@@ -0,0 +1,648 @@
+package calculator.ast;
+
+import calculator.interpreter.Environment;
+import datastructures.concrete.ArrayList;
+import datastructures.interfaces.IDictionary;
+import datastructures.interfaces.IList;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Turns a numeric AstNode into a tree of closures that can be evaluated over and
+ * over again without walking, allocating or looking anything up.
+ *
+ * A compiled expression reads its free variables from a double[] of "slots": the
+ * caller names the slots when compiling, and writes the current value of each one
+ * into the array before every evaluation. This is how plot() and the loop builtins
+ * bind their loop variable. Every other variable is resolved once, at compile time,
+ * by compiling its definition in place, so the result must be thrown away whenever
+ * a variable may have changed.
+ *
+ * A compiled expression computes exactly the same doubles as the interpreter:
+ *
+ * - In "precise" mode, it matches 'toDouble', so sin, cos and '/' are allowed.
+ * - Otherwise, it matches 'simplify', and only accepts expressions that simplify
+ *   is guaranteed to fold down to a single number: ones built from numbers,
+ *   variables, +, -, *, ^, negate, and nested 'toDouble(...)' calls.
+ *
+ * If an expression can't be compiled -- for example, it uses an undefined variable,
+ * an unknown function, or a special function like 'if' -- 'compile' returns null and
+ * the caller should fall back to interpreting the AstNode, which also takes care of
+ * reporting any errors. Nothing is compiled at all once a function has been
+ * registered under the name of a built-in operation, since compiled code always
+ * computes the built-in version.
+ *
+ * Expressions that are evaluated many times can also be compiled into a single
+ * MethodHandle chain (see 'compileTiered'), which HotSpot can inline into one method.
+ * Expressions evaluated over whole columns of inputs can be compiled into a
+ * ColumnExpression instead (see 'compileColumns'), which works a chunk of rows at a
+ * time, one operation after another, in plain loops over double arrays.
+ */
+public final class ExpressionCompiler {
+    /**
+     * The most rows a ColumnExpression evaluates in one call.
+     */
+    public static final int COLUMN_CHUNK_SIZE = 1024;
+
+    // Deeper expressions are left to the interpreter, since evaluating a closure tree
+    // recurses once per level.
+    private static final int MAX_DEPTH = 256;
+
+    private ExpressionCompiler() {
+    }
+
+    /**
+     * Compiles the given expression.
+     *
+     * @param node       the expression to compile
+     * @param env        the environment holding the currently defined variables
+     * @param slotNames  the names of the variables to read from the slot array, by index
+     * @param precise    'true' to match 'toDouble', 'false' to match 'simplify'
+     * @return the compiled expression, or null if the expression can't be compiled
+     */
+    public static ToDoubleFunction<double[]> compile(AstNode node, Environment env,
+                                                      String[] slotNames, boolean precise) {
+        if (env.areBuiltinsReplaced()) {
+            return null;
+        }
+        return new NodeCompiler<>(new ClosureBackend(), env.getVariables(), slotNames).compile(node, precise, 0);
+    }
+
+    /**
+     * Compiles the given expression into a MethodHandle of type (double[])double.
+     *
+     * The parameters and return value mean the same as for 'compile'.
+     */
+    public static MethodHandle compileToMethodHandle(AstNode node, Environment env,
+                                                     String[] slotNames, boolean precise) {
+        if (env.areBuiltinsReplaced()) {
+            return null;
+        }
+        return new NodeCompiler<>(new MethodHandleBackend(), env.getVariables(), slotNames).compile(node, precise, 0);
+    }
+
+    /**
+     * Compiles the given expression into a ColumnExpression that evaluates it for
+     * many rows at once, with slot i of each row read from column i.
+     *
+     * The parameters and return value mean the same as for 'compile'. The result is
+     * not thread-safe: it keeps scratch space for intermediate columns.
+     */
+    public static ColumnExpression compileColumns(AstNode node, Environment env,
+                                                  String[] slotNames, boolean precise) {
+        if (env.areBuiltinsReplaced()) {
+            return null;
+        }
+        return new NodeCompiler<>(new ColumnBackend(), env.getVariables(), slotNames).compile(node, precise, 0);
+    }
+
+    /**
+     * Compiles the given expression the same way as 'compile', except that after the
+     * result has been evaluated 'jitThreshold' times it recompiles itself with
+     * 'compileToMethodHandle' and uses that from then on.
+     *
+     * The recompilation reads the variables again, which is fine as long as the caller
+     * follows the usual rule of discarding compiled expressions once a variable may
+     * have changed. A negative threshold never switches tiers, and neither tier is
+     * used once a builtin has been replaced.
+     */
+    public static ToDoubleFunction<double[]> compileTiered(AstNode node, Environment env,
+                                                            String[] slotNames, boolean precise, int jitThreshold) {
+        ToDoubleFunction<double[]> closure = compile(node, env, slotNames, precise);
+        if (closure == null || jitThreshold < 0 || closure instanceof Constant) {
+            return closure;
+        }
+        return new TieredExpression(closure, () -> compileToMethodHandle(node, env, slotNames, precise),
+                jitThreshold);
+    }
+
+    /**
+     * Applies the given numeric operation the same way 'toDouble' does. Unary
+     * operations ignore the second operand.
+     */
+    static double apply(Opcode opcode, double left, double right) {
+        switch (opcode) {
+            case NEGATE:
+                return -1 * left;
+            case SIN:
+                return Math.sin(left);
+            case COS:
+                return Math.cos(left);
+            case ADD:
+                return left + right;
+            case SUBTRACT:
+                return left - right;
+            case MULTIPLY:
+                return left * right;
+            case DIVIDE:
+                return divide(left, right);
+            case POWER:
+                return Math.pow(left, right);
+            default:
+                throw new AssertionError(opcode);
+        }
+    }
+
+    /**
+     * Divides the same way 'simplify' and 'toDouble' do: a number divided by an
+     * equal number is always exactly 1.
+     */
+    static double divide(double numerator, double denominator) {
+        return numerator == denominator ? 1 : numerator / denominator;
+    }
+
+    /**
+     * Compiles one expression with one backend, inlining the definitions of the
+     * variables that are not read from slots.
+     */
+    private static final class NodeCompiler<T> {
+        private final Backend<T> backend;
+        private final IDictionary<String, AstNode> variables;
+        private final String[] slotNames;
+        private final IList<String> variablesBeingInlined;
+
+        NodeCompiler(Backend<T> backend, IDictionary<String, AstNode> variables, String[] slotNames) {
+            this.backend = backend;
+            this.variables = variables;
+            this.slotNames = slotNames;
+            this.variablesBeingInlined = new ArrayList<>();
+        }
+
+        T compile(AstNode node, boolean precise, int depth) {
+            Compiled<T> out = this.compileNode(node, precise, depth);
+            return out == null ? null : out.materialize(this.backend);
+        }
+
+        private Compiled<T> compileNode(AstNode node, boolean precise, int depth) {
+            if (depth > MAX_DEPTH) {
+                return null;
+            } else if (node.isNumber()) {
+                return Compiled.constant(node.getNumericValue());
+            } else if (node.isVariable()) {
+                return this.compileVariable(node.getName(), precise, depth);
+            }
+
+            IList<AstNode> children = node.getChildren();
+            Opcode opcode = node.getOpcode();
+            switch (opcode) {
+                case SIMPLIFY:
+                    // Simplifying first never changes the number an expression folds down to.
+                    return children.size() == 1 ? this.compileNode(children.get(0), precise, depth + 1) : null;
+                case TO_DOUBLE:
+                    return children.size() == 1 ? this.compileNode(children.get(0), true, depth + 1) : null;
+                case NEGATE:
+                case SIN:
+                case COS:
+                    if (children.size() != 1 || (!precise && opcode != Opcode.NEGATE)) {
+                        return null;
+                    }
+                    Compiled<T> operand = this.compileNode(children.get(0), precise, depth + 1);
+                    if (operand == null) {
+                        return null;
+                    } else if (operand.isConstant) {
+                        return Compiled.constant(apply(opcode, operand.constant, 0));
+                    }
+                    return Compiled.of(this.backend.unary(opcode, operand.node));
+                case DIVIDE:
+                    if (!precise) {
+                        return null;
+                    }
+                    // Fall through
+                case ADD:
+                case SUBTRACT:
+                case MULTIPLY:
+                case POWER:
+                    if (children.size() != 2) {
+                        return null;
+                    }
+                    Compiled<T> left = this.compileNode(children.get(0), precise, depth + 1);
+                    Compiled<T> right = left == null ? null : this.compileNode(children.get(1), precise, depth + 1);
+                    if (right == null) {
+                        return null;
+                    } else if (left.isConstant && right.isConstant) {
+                        return Compiled.constant(apply(opcode, left.constant, right.constant));
+                    }
+                    return Compiled.of(this.backend.binary(
+                            opcode, left.materialize(this.backend), right.materialize(this.backend)));
+                default:
+                    return null;
+            }
+        }
+
+        private Compiled<T> compileVariable(String name, boolean precise, int depth) {
+            for (int i = 0; i < this.slotNames.length; i++) {
+                if (this.slotNames[i].equals(name)) {
+                    return Compiled.of(this.backend.slot(i));
+                }
+            }
+
+            AstNode definition = this.variables.getOrDefault(name, null);
+            if (definition == null || this.variablesBeingInlined.contains(name)) {
+                // Undefined and self-referencing variables are left to the interpreter.
+                return null;
+            }
+            this.variablesBeingInlined.add(name);
+            Compiled<T> out = this.compileNode(definition, precise, depth + 1);
+            this.variablesBeingInlined.remove();
+            return out;
+        }
+    }
+
+    /**
+     * Builds the compiled form of an expression, one node at a time. The compiler
+     * takes care of variables and constant folding, so a backend only ever sees
+     * operations that have at least one non-constant operand.
+     */
+    private interface Backend<T> {
+        T constant(double value);
+
+        T slot(int index);
+
+        T unary(Opcode opcode, T operand);
+
+        T binary(Opcode opcode, T left, T right);
+    }
+
+    /**
+     * A partially compiled expression: either a constant that hasn't been handed to
+     * the backend yet, so it can still be folded, or the backend's compiled node.
+     */
+    private static final class Compiled<T> {
+        private final boolean isConstant;
+        private final double constant;
+        private final T node;
+
+        private Compiled(boolean isConstant, double constant, T node) {
+            this.isConstant = isConstant;
+            this.constant = constant;
+            this.node = node;
+        }
+
+        static <T> Compiled<T> constant(double constant) {
+            return new Compiled<>(true, constant, null);
+        }
+
+        static <T> Compiled<T> of(T node) {
+            return new Compiled<>(false, 0, node);
+        }
+
+        T materialize(Backend<T> backend) {
+            return this.isConstant ? backend.constant(this.constant) : this.node;
+        }
+    }
+
+    private static final class Constant implements ToDoubleFunction<double[]> {
+        private final double value;
+
+        Constant(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double applyAsDouble(double[] slots) {
+            return this.value;
+        }
+    }
+
+    private static final class ClosureBackend implements Backend<ToDoubleFunction<double[]>> {
+        @Override
+        public ToDoubleFunction<double[]> constant(double value) {
+            return new Constant(value);
+        }
+
+        @Override
+        public ToDoubleFunction<double[]> slot(int index) {
+            return slots -> slots[index];
+        }
+
+        @Override
+        public ToDoubleFunction<double[]> unary(Opcode opcode, ToDoubleFunction<double[]> operand) {
+            switch (opcode) {
+                case NEGATE:
+                    return slots -> -1 * operand.applyAsDouble(slots);
+                case SIN:
+                    return slots -> Math.sin(operand.applyAsDouble(slots));
+                case COS:
+                    return slots -> Math.cos(operand.applyAsDouble(slots));
+                default:
+                    throw new AssertionError(opcode);
+            }
+        }
+
+        @Override
+        public ToDoubleFunction<double[]> binary(Opcode opcode, ToDoubleFunction<double[]> left,
+                                                 ToDoubleFunction<double[]> right) {
+            if (right instanceof Constant) {
+                final double r = ((Constant) right).value;
+                switch (opcode) {
+                    case ADD:
+                        return slots -> left.applyAsDouble(slots) + r;
+                    case SUBTRACT:
+                        return slots -> left.applyAsDouble(slots) - r;
+                    case MULTIPLY:
+                        return slots -> left.applyAsDouble(slots) * r;
+                    case POWER:
+                        return slots -> Math.pow(left.applyAsDouble(slots), r);
+                    default:
+                        break;
+                }
+            } else if (left instanceof Constant) {
+                final double l = ((Constant) left).value;
+                switch (opcode) {
+                    case ADD:
+                        return slots -> l + right.applyAsDouble(slots);
+                    case SUBTRACT:
+                        return slots -> l - right.applyAsDouble(slots);
+                    case MULTIPLY:
+                        return slots -> l * right.applyAsDouble(slots);
+                    default:
+                        break;
+                }
+            }
+
+            switch (opcode) {
+                case ADD:
+                    return slots -> left.applyAsDouble(slots) + right.applyAsDouble(slots);
+                case SUBTRACT:
+                    return slots -> left.applyAsDouble(slots) - right.applyAsDouble(slots);
+                case MULTIPLY:
+                    return slots -> left.applyAsDouble(slots) * right.applyAsDouble(slots);
+                case DIVIDE:
+                    return slots -> divide(left.applyAsDouble(slots), right.applyAsDouble(slots));
+                case POWER:
+                    return slots -> Math.pow(left.applyAsDouble(slots), right.applyAsDouble(slots));
+                default:
+                    throw new AssertionError(opcode);
+            }
+        }
+    }
+
+    /**
+     * Builds a single MethodHandle of type (double[])double out of method handle
+     * combinators. Once such a handle is hot, HotSpot compiles the whole chain as
+     * one method, with every operation inlined.
+     */
+    private static final class MethodHandleBackend implements Backend<MethodHandle> {
+        private static final MethodType UNARY = MethodType.methodType(double.class, double.class);
+        private static final MethodType BINARY = MethodType.methodType(double.class, double.class, double.class);
+        private static final MethodType EXPRESSION = MethodType.methodType(double.class, double[].class);
+
+        private static final MethodHandle SLOT_GETTER = MethodHandles.arrayElementGetter(double[].class);
+        private static final MethodHandle NEGATE;
+        private static final MethodHandle SIN;
+        private static final MethodHandle COS;
+        private static final MethodHandle ADD;
+        private static final MethodHandle SUBTRACT;
+        private static final MethodHandle MULTIPLY;
+        private static final MethodHandle DIVIDE;
+        private static final MethodHandle POWER;
+
+        static {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                NEGATE = lookup.findStatic(MethodHandleBackend.class, "negate", UNARY);
+                SIN = lookup.findStatic(Math.class, "sin", UNARY);
+                COS = lookup.findStatic(Math.class, "cos", UNARY);
+                ADD = lookup.findStatic(MethodHandleBackend.class, "add", BINARY);
+                SUBTRACT = lookup.findStatic(MethodHandleBackend.class, "subtract", BINARY);
+                MULTIPLY = lookup.findStatic(MethodHandleBackend.class, "multiply", BINARY);
+                DIVIDE = lookup.findStatic(ExpressionCompiler.class, "divide", BINARY);
+                POWER = lookup.findStatic(Math.class, "pow", BINARY);
+            } catch (ReflectiveOperationException ex) {
+                throw new ExceptionInInitializerError(ex);
+            }
+        }
+
+        @Override
+        public MethodHandle constant(double value) {
+            return MethodHandles.dropArguments(MethodHandles.constant(double.class, value), 0, double[].class);
+        }
+
+        @Override
+        public MethodHandle slot(int index) {
+            return MethodHandles.insertArguments(SLOT_GETTER, 1, index);
+        }
+
+        @Override
+        public MethodHandle unary(Opcode opcode, MethodHandle operand) {
+            switch (opcode) {
+                case NEGATE:
+                    return MethodHandles.filterReturnValue(operand, NEGATE);
+                case SIN:
+                    return MethodHandles.filterReturnValue(operand, SIN);
+                case COS:
+                    return MethodHandles.filterReturnValue(operand, COS);
+                default:
+                    throw new AssertionError(opcode);
+            }
+        }
+
+        @Override
+        public MethodHandle binary(Opcode opcode, MethodHandle left, MethodHandle right) {
+            MethodHandle operation;
+            switch (opcode) {
+                case ADD:
+                    operation = ADD;
+                    break;
+                case SUBTRACT:
+                    operation = SUBTRACT;
+                    break;
+                case MULTIPLY:
+                    operation = MULTIPLY;
+                    break;
+                case DIVIDE:
+                    operation = DIVIDE;
+                    break;
+                case POWER:
+                    operation = POWER;
+                    break;
+                default:
+                    throw new AssertionError(opcode);
+            }
+            // (double, double) -> (double[], double[]) -> (double[])
+            MethodHandle both = MethodHandles.filterArguments(operation, 0, left, right);
+            return MethodHandles.permuteArguments(both, EXPRESSION, 0, 0);
+        }
+
+        private static double negate(double value) {
+            return -1 * value;
+        }
+
+        private static double add(double left, double right) {
+            return left + right;
+        }
+
+        private static double subtract(double left, double right) {
+            return left - right;
+        }
+
+        private static double multiply(double left, double right) {
+            return left * right;
+        }
+    }
+
+    /**
+     * An expression compiled by 'compileColumns'.
+     */
+    public interface ColumnExpression {
+        /**
+         * Evaluates the expression for 'length' consecutive rows, starting at row
+         * 'from' of the given input columns, and writes the results to the start of
+         * 'out'.
+         *
+         * @throws IllegalArgumentException  if 'length' is more than COLUMN_CHUNK_SIZE
+         */
+        void evaluate(double[][] columns, int from, int length, double[] out);
+    }
+
+    /**
+     * Builds a tree of ColumnExpressions. Every operation first evaluates its left
+     * operand into the output array and its right operand into scratch space of its
+     * own, then combines the two in a single loop the JIT is free to unroll and
+     * vectorize.
+     */
+    private static final class ColumnBackend implements Backend<ColumnExpression> {
+        @Override
+        public ColumnExpression constant(double value) {
+            return (columns, from, length, out) -> {
+                checkLength(length);
+                Arrays.fill(out, 0, length, value);
+            };
+        }
+
+        @Override
+        public ColumnExpression slot(int index) {
+            return (columns, from, length, out) -> {
+                checkLength(length);
+                System.arraycopy(columns[index], from, out, 0, length);
+            };
+        }
+
+        @Override
+        public ColumnExpression unary(Opcode opcode, ColumnExpression operand) {
+            switch (opcode) {
+                case NEGATE:
+                    return (columns, from, length, out) -> {
+                        operand.evaluate(columns, from, length, out);
+                        for (int i = 0; i < length; i++) {
+                            out[i] = -1 * out[i];
+                        }
+                    };
+                case SIN:
+                    return (columns, from, length, out) -> {
+                        operand.evaluate(columns, from, length, out);
+                        for (int i = 0; i < length; i++) {
+                            out[i] = Math.sin(out[i]);
+                        }
+                    };
+                case COS:
+                    return (columns, from, length, out) -> {
+                        operand.evaluate(columns, from, length, out);
+                        for (int i = 0; i < length; i++) {
+                            out[i] = Math.cos(out[i]);
+                        }
+                    };
+                default:
+                    throw new AssertionError(opcode);
+            }
+        }
+
+        @Override
+        public ColumnExpression binary(Opcode opcode, ColumnExpression left, ColumnExpression right) {
+            double[] scratch = new double[COLUMN_CHUNK_SIZE];
+            switch (opcode) {
+                case ADD:
+                    return (columns, from, length, out) -> {
+                        left.evaluate(columns, from, length, out);
+                        right.evaluate(columns, from, length, scratch);
+                        for (int i = 0; i < length; i++) {
+                            out[i] = out[i] + scratch[i];
+                        }
+                    };
+                case SUBTRACT:
+                    return (columns, from, length, out) -> {
+                        left.evaluate(columns, from, length, out);
+                        right.evaluate(columns, from, length, scratch);
+                        for (int i = 0; i < length; i++) {
+                            out[i] = out[i] - scratch[i];
+                        }
+                    };
+                case MULTIPLY:
+                    return (columns, from, length, out) -> {
+                        left.evaluate(columns, from, length, out);
+                        right.evaluate(columns, from, length, scratch);
+                        for (int i = 0; i < length; i++) {
+                            out[i] = out[i] * scratch[i];
+                        }
+                    };
+                case DIVIDE:
+                    return (columns, from, length, out) -> {
+                        left.evaluate(columns, from, length, out);
+                        right.evaluate(columns, from, length, scratch);
+                        for (int i = 0; i < length; i++) {
+                            out[i] = divide(out[i], scratch[i]);
+                        }
+                    };
+                case POWER:
+                    return (columns, from, length, out) -> {
+                        left.evaluate(columns, from, length, out);
+                        right.evaluate(columns, from, length, scratch);
+                        for (int i = 0; i < length; i++) {
+                            out[i] = Math.pow(out[i], scratch[i]);
+                        }
+                    };
+                default:
+                    throw new AssertionError(opcode);
+            }
+        }
+
+        private static void checkLength(int length) {
+            if (length > COLUMN_CHUNK_SIZE) {
+                throw new IllegalArgumentException("Cannot evaluate more than " + COLUMN_CHUNK_SIZE
+                        + " rows at once: " + length);
+            }
+        }
+    }
+
+    /**
+     * Runs a closure-compiled expression until it has been evaluated 'threshold'
+     * times, then switches over to the MethodHandle version of the same expression.
+     */
+    private static final class TieredExpression implements ToDoubleFunction<double[]> {
+        private final ToDoubleFunction<double[]> closure;
+        private final Supplier<MethodHandle> jit;
+        private int remaining;
+        private MethodHandle handle;
+
+        TieredExpression(ToDoubleFunction<double[]> closure, Supplier<MethodHandle> jit,
+                         int threshold) {
+            this.closure = closure;
+            this.jit = jit;
+            this.remaining = threshold;
+        }
+
+        @Override
+        public double applyAsDouble(double[] slots) {
+            MethodHandle compiled = this.handle;
+            if (compiled != null) {
+                try {
+                    return (double) compiled.invokeExact(slots);
+                } catch (RuntimeException | Error ex) {
+                    throw ex;
+                } catch (Throwable ex) {
+                    throw new AssertionError(ex);
+                }
+            }
+            if (this.remaining-- == 0) {
+                // Stays on the closure if the expression can no longer be compiled
+                this.handle = this.jit.get();
+            }
+            return this.closure.applyAsDouble(slots);
+        }
+    }
+}
@@ -1,19 +1,29 @@
 package calculator.ast;
 
+import calculator.interpreter.CalculatorOptions;
 import calculator.interpreter.Environment;
+import calculator.interpreter.Interpreter;
+import calculator.interpreter.ScopeFrame;
+import calculator.interpreter.SimplifyMemo;
+import calculator.interpreter.VariableTable;
 import calculator.errors.EvaluationError;
 import calculator.gui.ImageDrawer;
-import datastructures.concrete.DoubleLinkedList;
-import datastructures.interfaces.IDictionary;
+import datastructures.concrete.ArrayList;
+import datastructures.concrete.DoubleArrayList;
 import datastructures.interfaces.IList;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.ToDoubleFunction;
+
 /**
  * All of the public static methods in this class are given the exact same parameters for
  * consistency. You can often ignore some of these parameters when implementing your
  * methods.
  *
- * Some of these methods should be recursive. You may want to consider using public-private
- * pairs in some cases.
+ * Several of these methods are public-private pairs: the public method checks its node, and a
+ * private helper does the work. The helpers walk expressions with an explicit stack rather
+ * than recursion, so no expression the maximum depth allows can overflow the thread's stack.
  */
 public class ExpressionManipulators {
     /**
@@ -56,56 +66,80 @@ public class ExpressionManipulators {
      */
     
     public static AstNode handleToDouble(Environment env, AstNode node) {
-        // To help you get started, we've implemented this method for you.
-        // You should fill in the locations specified by "your code here"
-        // in the 'toDoubleHelper' method.
-        //
-        // If you're not sure why we have a public method calling a private
-        // recursive helper method, review your notes from CSE 143 (or the
-        // equivalent class you took) about the 'public-private pair' pattern.
-
+        // A public-private pair: this checks the node, and 'toDoubleHelper'
+        // evaluates its operand without recursing.
         assertNodeMatches(node, "toDouble", 1);
         AstNode exprToConvert = node.getChildren().get(0);
-        return new AstNode(toDoubleHelper(env.getVariables(), exprToConvert));
+        return new AstNode(toDoubleHelper(env, exprToConvert));
     }
 
-    private static double toDoubleHelper(IDictionary<String, AstNode> variables, AstNode node) {
-        AstNode simpleNode = simplifyHelper(variables, node, true);
-        if (simpleNode.isNumber()) {
-            return simpleNode.getNumericValue();
-        } else if (simpleNode.isVariable()) {
-            throw new EvaluationError("Undefined variable " + simpleNode.getName());
-        } else {
-            String opName = simpleNode.getName();
-            if (opName.equals("/")) {
-                double numerator = simpleNode.getChildren().get(0).getNumericValue();
-                double denum = simpleNode.getChildren().get(1).getNumericValue();
-                return numerator / denum;
+    /**
+     * Evaluates the given expression down to a single number.
+     *
+     * This first tries a precise simplification. If that does not produce a number,
+     * the expression is unwrapped: its variables are replaced by their definitions,
+     * and its first two operands are each converted to a number, before simplifying
+     * once more. Operands are visited with an explicit stack rather than recursion.
+     */
+    private static double toDoubleHelper(Environment env, AstNode root) {
+        int maxDepth = env.getOptions().getMaxDepth();
+        IList<UnwrapTask> stack = new ArrayList<>();
+        AstNode next = root;
+        double result = 0;
+        while (true) {
+            if (next != null) {
+                AstNode node = next;
+                next = null;
+                AstNode simpleNode = simplifyHelper(env, node, true);
+                if (simpleNode.isNumber()) {
+                    result = simpleNode.getNumericValue();
+                } else if (simpleNode.isVariable()) {
+                    throw new EvaluationError("Undefined variable " + simpleNode.getName());
+                } else if (simpleNode.getOpcode() == Opcode.DIVIDE) {
+                    double numerator = simpleNode.getChildren().get(0).getNumericValue();
+                    double denum = simpleNode.getChildren().get(1).getNumericValue();
+                    result = numerator / denum;
+                } else {
+                    while (node.isVariable()) {
+                        AstNode value = env.getVariables().getOrDefault(node.getName(), null);
+                        if (value == null) {
+                            throw new EvaluationError("Undefined variable " + node.getName());
+                        }
+                        node = value;
+                    }
+                    if (node.isNumber()) {
+                        result = node.getNumericValue();
+                    } else {
+                        checkDepth(stack.size(), maxDepth);
+                        stack.add(new UnwrapTask(node));
+                        next = node.getChildren().get(0);
+                    }
+                }
+                continue;
             }
-            return unwrap(variables, node, true).getNumericValue();
-        }
-    }
 
-    private static AstNode unwrap(IDictionary<String, AstNode> variables, AstNode node, 
-            boolean precise) {
-        if (node.isNumber()) {
-            return node;
-        } else if (node.isVariable()) {
-            String varName = node.getName();
-            if (!variables.containsKey(varName)) {
-                throw new EvaluationError("Undefined variable " + varName);
+            if (stack.isEmpty()) {
+                return result;
             }
-            return unwrap(variables, variables.get(varName), precise);
-        } else {
-            IList<AstNode> params = node.getChildren();
-            params.set(0, new AstNode(toDoubleHelper(variables, params.get(0))));
+            UnwrapTask task = stack.get(stack.size() - 1);
+            IList<AstNode> params = copyOf(task.node.getChildren());
+            if (!task.hasFirst) {
+                task.first = result;
+                task.hasFirst = true;
+                if (params.size() > 1) {
+                    next = params.get(1);
+                    continue;
+                }
+            }
+            stack.remove();
+            params.set(0, new AstNode(task.first));
             if (params.size() > 1) {
-                params.set(1, new AstNode(toDoubleHelper(variables, params.get(1))));
+                params.set(1, new AstNode(result));
             }
-            return simplifyHelper(variables, new AstNode(node.getName(), params), precise);
+            result = simplifyHelper(env, task.node.withChildren(params), true).getNumericValue();
         }
     }
-    
+
     /**
      * Accepts a 'simplify(inner)' AstNode and returns a new node containing the simplified version
      * of the 'inner' AstNode.
@@ -132,83 +166,193 @@ public class ExpressionManipulators {
     public static AstNode handleSimplify(Environment env, AstNode node) {
         assertNodeMatches(node, "simplify", 1);
         AstNode param = node.getChildren().get(0);
-        return simplifyHelper(env.getVariables(), param, false);
+        return simplifyHelper(env, param, false);
     }
 
-    private static AstNode simplifyHelper(IDictionary<String, AstNode> variables, AstNode node, 
-            boolean precise) {
-        if (node.isNumber()) {
-            return node;
-        } else if (node.isVariable()) {
-            String name = node.getName();
-            if (variables.containsKey(name)) {
-                return simplifyHelper(variables, variables.get(name), precise);
-            } else {
-                return node;
+    /**
+     * Simplifies the given expression, folding constants and replacing defined
+     * variables with their simplified definitions.
+     *
+     * The tree is walked with an explicit stack rather than recursion. What a
+     * variable simplifies to is memoized, and reused for as long as none of the
+     * variables it depends on change.
+     */
+    static AstNode simplifyHelper(Environment env, AstNode root, boolean precise) {
+        SimplifyMemo memo = env.getSimplifyMemo();
+        int maxDepth = env.getOptions().getMaxDepth();
+        IList<SimplifyTask> stack = new ArrayList<>();
+        int openVariables = 0;
+        boolean done = false;
+        try {
+            AstNode next = root;
+            AstNode result = null;
+            while (true) {
+                if (next != null) {
+                    // Start simplifying 'next'
+                    AstNode node = next;
+                    next = null;
+                    if (node.isNumber()) {
+                        result = node;
+                    } else if (node.isVariable()) {
+                        String name = node.getName();
+                        AstNode value = env.getVariables().getOrDefault(name, null);
+                        if (value == null || value.isNumber()) {
+                            // Nothing to simplify, so nothing worth memoizing
+                            memo.recordRead(name);
+                            result = value == null ? node : value;
+                        } else {
+                            result = memo.lookup(name, precise);
+                            if (result == null) {
+                                checkDepth(stack.size(), maxDepth);
+                                memo.begin(name);
+                                openVariables++;
+                                stack.add(new SimplifyTask(node));
+                                next = value;
+                            }
+                        }
+                    } else {
+                        checkDepth(stack.size(), maxDepth);
+                        stack.add(new SimplifyTask(node));
+                        next = node.getChildren().get(0);
+                    }
+                    continue;
+                }
+
+                // 'result' is finished: hand it to whatever was waiting for it
+                if (stack.isEmpty()) {
+                    done = true;
+                    return result;
+                }
+                SimplifyTask task = stack.get(stack.size() - 1);
+                if (task.node.isVariable()) {
+                    stack.remove();
+                    openVariables--;
+                    memo.end(task.node.getName(), precise, result);
+                } else if (task.param1 == null) {
+                    task.param1 = result;
+                    if (needsSecondParam(task.node)) {
+                        next = task.node.getChildren().get(1);
+                    } else {
+                        stack.remove();
+                        result = combine(task.node, task.param1, null, precise);
+                    }
+                } else {
+                    stack.remove();
+                    result = combine(task.node, task.param1, result, precise);
+                }
             }
+        } finally {
+            if (!done) {
+                for (int i = 0; i < openVariables; i++) {
+                    memo.abort();
+                }
+            }
+        }
+    }
+
+    private static boolean needsSecondParam(AstNode node) {
+        switch (node.getOpcode()) {
+            case NEGATE:
+            case SIN:
+            case COS:
+                return false;
+            default:
+                return node.getChildren().size() >= 2;
         }
-        String opName = node.getName();
+    }
+
+    /**
+     * Builds the simplified form of an operation, given its simplified first and
+     * (if it has one that gets simplified) second operand.
+     */
+    private static AstNode combine(AstNode node, AstNode param1, AstNode param2, boolean precise) {
+        Opcode opcode = node.getOpcode();
         IList<AstNode> params = node.getChildren();
-        AstNode param1 = null;
-        AstNode param2 = null;
-        param1 = simplifyHelper(variables, params.get(0), precise);
-        if (opName.equals("negate")) {
-            if (param1.isNumber()) {
-                return new AstNode(-1 * param1.getNumericValue());
-            }
-            params.set(0, param1);
-        }else if (opName.equals("sin")) {
-            if (precise) {
-                param1 = new AstNode(Math.sin(param1.getNumericValue()));
-                return param1;
-            }
-            params.set(0, param1);
-        } else if (opName.equals("cos")) {
-            if (precise) {
-                param1 = new AstNode(Math.cos(param1.getNumericValue()));
-                return param1;
-            }
-            params.set(0, param1);
-        } else if (params.size() >= 2) {
-            param2 = simplifyHelper(variables, params.get(1), precise);
-            if (opName.equals("/")) {
-                if (param1.isNumber() && param2.isNumber() && param1.getNumericValue() == param2.getNumericValue()) {
-                    return new AstNode(1);
+        switch (opcode) {
+            case NEGATE:
+                if (param1.isNumber()) {
+                    return new AstNode(-1 * param1.getNumericValue());
                 }
+                params = replaceFirst(params, param1);
+                break;
+            case SIN:
                 if (precise) {
-                    return new AstNode(param1.getNumericValue() / param2.getNumericValue());
+                    return new AstNode(Math.sin(param1.getNumericValue()));
                 }
-            }
-            AstNode numNode = getNumberAnswer(opName, param1, param2);
-            if (numNode != null) {
-                return numNode;
-            }
-            params = new DoubleLinkedList<>();
-            params.add(param1);
-            params.add(param2);
+                params = replaceFirst(params, param1);
+                break;
+            case COS:
+                if (precise) {
+                    return new AstNode(Math.cos(param1.getNumericValue()));
+                }
+                params = replaceFirst(params, param1);
+                break;
+            default:
+                if (param2 != null) {
+                    if (opcode == Opcode.DIVIDE) {
+                        if (param1.isNumber() && param2.isNumber()
+                                && param1.getNumericValue() == param2.getNumericValue()) {
+                            return new AstNode(1);
+                        }
+                        if (precise) {
+                            return new AstNode(param1.getNumericValue() / param2.getNumericValue());
+                        }
+                    }
+                    AstNode numNode = getNumberAnswer(opcode, param1, param2);
+                    if (numNode != null) {
+                        return numNode;
+                    }
+                    params = new ArrayList<>(2);
+                    params.add(param1);
+                    params.add(param2);
+                }
+                break;
         }
-        return new AstNode(opName, params);
+        return node.withChildren(params);
     }
-    
-    private static AstNode getNumberAnswer(String opName, AstNode param1, AstNode param2) {
-        if (opName.equals("+")) {
-            if (param1.isNumber() && param2.isNumber()) {
-                return new AstNode(param1.getNumericValue() + param2.getNumericValue());
-            }
-        } else if (opName.equals("-")) {
-            if (param1.isNumber() && param2.isNumber()) {
-                return new AstNode(param1.getNumericValue() - param2.getNumericValue());
-            }
-        } else if (opName.equals("*")) {
-            if (param1.isNumber() && param2.isNumber()) {
-                return new AstNode(param1.getNumericValue() * param2.getNumericValue());
-            }
-        } else if (opName.equals("^")) {
-            if (param1.isNumber() && param2.isNumber()) {
-                return new AstNode(Math.pow(param1.getNumericValue(), param2.getNumericValue()));
-            }
+
+    private static void checkDepth(int depth, int maxDepth) {
+        if (depth >= maxDepth) {
+            throw new EvaluationError("Expression is nested more than " + maxDepth + " levels deep");
+        }
+    }
+
+    /**
+     * Returns a copy of the given list with its first item replaced. AstNode
+     * children are read-only, so they cannot be modified in place.
+     */
+    private static IList<AstNode> replaceFirst(IList<AstNode> params, AstNode first) {
+        IList<AstNode> out = copyOf(params);
+        out.set(0, first);
+        return out;
+    }
+
+    private static IList<AstNode> copyOf(IList<AstNode> params) {
+        IList<AstNode> out = new ArrayList<>(params.size());
+        for (AstNode param : params) {
+            out.add(param);
+        }
+        return out;
+    }
+
+    private static AstNode getNumberAnswer(Opcode opcode, AstNode param1, AstNode param2) {
+        if (!param1.isNumber() || !param2.isNumber()) {
+            return null;
+        }
+        double left = param1.getNumericValue();
+        double right = param2.getNumericValue();
+        switch (opcode) {
+            case ADD:
+                return new AstNode(left + right);
+            case SUBTRACT:
+                return new AstNode(left - right);
+            case MULTIPLY:
+                return new AstNode(left * right);
+            case POWER:
+                return new AstNode(Math.pow(left, right));
+            default:
+                return null;
         }
-        return null;
     }
     /**
      * Accepts an Environment variable and a 'plot(exprToPlot, var, varMin, varMax, step)'
@@ -244,34 +388,356 @@ public class ExpressionManipulators {
      * @throws EvaluationError  if varMin > varMax
      * @throws EvaluationError  if 'var' was already defined
      * @throws EvaluationError  if 'step' is zero or negative
+     * @throws EvaluationError  if there is no image to draw on, as in batch mode
      */
     public static AstNode plot(Environment env, AstNode node) {
         assertNodeMatches(node, "plot", 5);
         IList<AstNode> params = node.getChildren();
         AstNode exprToPlot = params.get(0);
         String variable = params.get(1).getName();
-        double varMin = toDoubleHelper(env.getVariables(), params.get(2));
-        double varMax = toDoubleHelper(env.getVariables(), params.get(3));
-        double step = toDoubleHelper(env.getVariables(), params.get(4));
-        double cur = varMin - step;
-        AstNode result = null;
+        double varMin = toDoubleHelper(env, params.get(2));
+        double varMax = toDoubleHelper(env, params.get(3));
+        double step = toDoubleHelper(env, params.get(4));
         if (varMin > varMax || env.getVariables().containsKey(variable) || step <= 0) {
             throw new EvaluationError("Plot error due to one/more violations");
         }
         ImageDrawer graphic = env.getImageDrawer();
-        IList<Double> xPoints = new DoubleLinkedList<>();
-        IList<Double> yPoints = new DoubleLinkedList<>();
-        env.getVariables().put(variable, new AstNode(varMin - step));
-       
+        if (graphic == null) {
+            throw new EvaluationError("There is nothing to draw the plot on");
+        }
+
+        DoubleArrayList xPoints = plotXValues(varMin, varMax, step);
+        int count = xPoints.size();
+        DoubleArrayList yPoints = new DoubleArrayList(count);
+
+        int parallelThreshold = env.getOptions().getParallelPlotThreshold();
+        boolean parallel = parallelThreshold != CalculatorOptions.PARALLEL_DISABLED && count >= parallelThreshold;
+        String[] slotNames = new String[] {variable};
+        // A tiered expression switches tiers as it goes, so only a plain closure
+        // can be shared between threads
+        ToDoubleFunction<double[]> compiled = parallel
+                ? ExpressionCompiler.compile(exprToPlot, env, slotNames, true)
+                : ExpressionCompiler.compileTiered(
+                        exprToPlot, env, slotNames, true, env.getOptions().getJitThreshold());
+        if (compiled != null && parallel) {
+            double[] ys = new double[count];
+            ForkJoinPool.commonPool().invoke(
+                    new PlotTask(compiled, Thread.currentThread(), xPoints.toArray(), ys, 0, count));
+            Interpreter.checkInterrupted();
+            yPoints = DoubleArrayList.wrap(ys, count);
+        } else if (compiled != null) {
+            // Fast path: evaluate the compiled expression with 'variable' in slot 0
+            double[] slots = new double[1];
+            for (int i = 0; i < count; i++) {
+                Interpreter.checkInterrupted();
+                slots[0] = xPoints.getDouble(i);
+                yPoints.addDouble(compiled.applyAsDouble(slots));
+            }
+        } else {
+            VariableTable variables = env.getVariableTable();
+            ScopeFrame frame = variables.pushFrame(variable);
+            try {
+                for (int i = 0; i < count; i++) {
+                    Interpreter.checkInterrupted();
+                    frame.set(0, xPoints.getDouble(i));
+                    yPoints.addDouble(toDoubleHelper(env, exprToPlot));
+                }
+            } finally {
+                variables.popFrame(frame);
+            }
+        }
+        graphic.drawScatterPlot("Plot", variable, "f("+variable+")", xPoints, yPoints);
+        return new AstNode(1);
+    }
+
+    /**
+     * Returns the x values 'plot' evaluates its expression at. Every x is the same
+     * running sum as it would be if each point were evaluated right after stepping
+     * to it, rounding errors and all.
+     */
+    private static DoubleArrayList plotXValues(double varMin, double varMax, double step) {
+        DoubleArrayList xPoints = new DoubleArrayList();
+        double cur = varMin - step;
         while (cur < varMax) {
+            Interpreter.checkInterrupted();
             cur += step;
-            env.getVariables().put(variable, new AstNode(cur));
-            result = new AstNode(toDoubleHelper(env.getVariables(), exprToPlot));
-            xPoints.add(cur);
-            yPoints.add(result.getNumericValue());
+            xPoints.addDouble(cur);
         }
-        env.getVariables().remove(variable);
-        graphic.drawScatterPlot("Plot", variable, "f("+variable+")", xPoints, yPoints);
+        return xPoints;
+    }
+
+    /**
+     * Accepts a 'plotAdaptive(exprToPlot, var, varMin, varMax, step)' AstNode and draws
+     * the same curve as 'plot', while evaluating the expression far fewer times where
+     * the curve is smooth.
+     *
+     * It only ever evaluates the expression at x values 'plot' would, so it finds
+     * the same spikes and draws the same picture. The range is first sampled every
+     * few pixels. Each interval is then split in half for as long as its midpoint is
+     * more than a pixel away from the straight line between its ends, or one of the
+     * three values is not a finite number. Below one pixel of the image, an interval
+     * is only split further while its ends are more than a pixel apart vertically, so
+     * a curve that climbs steeply within a pixel column still fills it. Intervals are
+     * never split below one 'step', so 'step' is the finest resolution rather than
+     * the spacing of every point. Points inside intervals that are straight enough
+     * are filled in along the line, about a pixel apart both ways.
+     *
+     * @throws EvaluationError  in the same cases as 'plot'
+     */
+    public static AstNode plotAdaptive(Environment env, AstNode node) {
+        assertNodeMatches(node, "plotAdaptive", 5);
+        IList<AstNode> params = node.getChildren();
+        AstNode exprToPlot = params.get(0);
+        String variable = params.get(1).getName();
+        double varMin = toDoubleHelper(env, params.get(2));
+        double varMax = toDoubleHelper(env, params.get(3));
+        double step = toDoubleHelper(env, params.get(4));
+        if (varMin > varMax || env.getVariables().containsKey(variable) || step <= 0) {
+            throw new EvaluationError("Plot error due to one/more violations");
+        }
+        ImageDrawer graphic = env.getImageDrawer();
+        if (graphic == null) {
+            throw new EvaluationError("There is nothing to draw the plot on");
+        }
+        double[] grid = plotXValues(varMin, varMax, step).toArray();
+        DoubleArrayList xPoints = new DoubleArrayList();
+        DoubleArrayList yPoints = new DoubleArrayList();
+
+        ToDoubleFunction<double[]> compiled = ExpressionCompiler.compileTiered(
+                exprToPlot, env, new String[] {variable}, true, env.getOptions().getJitThreshold());
+        VariableTable variables = env.getVariableTable();
+        ScopeFrame frame = compiled == null ? variables.pushFrame(variable) : null;
+        try {
+            AdaptiveSampler sampler = new AdaptiveSampler(env, exprToPlot, compiled, frame, grid);
+            sampler.sample(graphic.getWidth(), graphic.getHeight(), xPoints, yPoints);
+        } finally {
+            if (frame != null) {
+                variables.popFrame(frame);
+            }
+        }
+        graphic.drawScatterPlot("Plot", variable, "f(" + variable + ")", xPoints, yPoints);
         return new AstNode(1);
     }
+
+    /**
+     * Chooses where 'plotAdaptive' evaluates its expression, among the x values
+     * 'plot' would use. Intervals are ranges of indexes into those values.
+     */
+    private static class AdaptiveSampler {
+        // The width, in pixels, of the intervals the range is first split into
+        private static final int PIXELS_PER_INTERVAL = 8;
+
+        private final Environment env;
+        private final AstNode expr;
+        private final ToDoubleFunction<double[]> compiled;
+        private final ScopeFrame frame;
+        private final double[] slots;
+        private final double[] grid;
+
+        // How many x values make up one pixel of width, and one pixel's worth of height
+        private double pixelWidth;
+        private double tolerance;
+
+        private DoubleArrayList xPoints;
+        private DoubleArrayList yPoints;
+
+        public AdaptiveSampler(Environment env, AstNode expr, ToDoubleFunction<double[]> compiled,
+                               ScopeFrame frame, double[] grid) {
+            this.env = env;
+            this.expr = expr;
+            this.compiled = compiled;
+            this.frame = frame;
+            this.slots = new double[1];
+            this.grid = grid;
+        }
+
+        public void sample(int width, int height, DoubleArrayList xPoints, DoubleArrayList yPoints) {
+            this.xPoints = xPoints;
+            this.yPoints = yPoints;
+
+            int last = this.grid.length - 1;
+            this.pixelWidth = Math.max(1.0, (double) last / width);
+            if (last == 0) {
+                this.add(0, this.evaluate(0));
+                return;
+            }
+
+            int intervals = Math.max(1, Math.min(width / PIXELS_PER_INTERVAL, last));
+            int[] indexes = new int[intervals + 1];
+            double[] ys = new double[intervals + 1];
+            double low = Double.POSITIVE_INFINITY;
+            double high = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i <= intervals; i++) {
+                indexes[i] = (int) ((long) last * i / intervals);
+                ys[i] = this.evaluate(indexes[i]);
+                if (isFinite(ys[i])) {
+                    low = Math.min(low, ys[i]);
+                    high = Math.max(high, ys[i]);
+                }
+            }
+            // One pixel's worth of height, going by the coarse samples
+            this.tolerance = high > low ? (high - low) / height : 0;
+
+            this.add(indexes[0], ys[0]);
+            for (int i = 0; i < intervals; i++) {
+                this.refine(indexes[i], ys[i], indexes[i + 1], ys[i + 1]);
+            }
+        }
+
+        /**
+         * Adds the points of the given interval after its left end, splitting it up
+         * where needed. Works left to right with an explicit stack of intervals.
+         */
+        private void refine(int left, double leftY, int right, double rightY) {
+            IList<int[]> bounds = new ArrayList<>();
+            IList<double[]> values = new ArrayList<>();
+            bounds.add(new int[] {left, right});
+            values.add(new double[] {leftY, rightY});
+            while (!bounds.isEmpty()) {
+                int[] interval = bounds.remove();
+                double[] ends = values.remove();
+                int a = interval[0];
+                int b = interval[1];
+                double fa = ends[0];
+                double fb = ends[1];
+
+                // Below a pixel, only a steep climb is worth splitting for
+                boolean subPixel = (b - a) / 2.0 < this.pixelWidth;
+                boolean flat = isFinite(fa) && isFinite(fb) && Math.abs(fb - fa) <= this.tolerance;
+                if (b - a < 2 || (subPixel && flat)) {
+                    this.addLine(a, fa, b, fb);
+                    continue;
+                }
+                int mid = a + (b - a) / 2;
+                double fm = this.evaluate(mid);
+                boolean smooth = isFinite(fa) && isFinite(fb) && isFinite(fm)
+                        && Math.abs(fm - (fa + fb) / 2) <= this.tolerance
+                        && !(subPixel && Math.abs(fb - fa) > this.tolerance);
+                if (smooth) {
+                    this.addLine(a, fa, mid, fm);
+                    this.addLine(mid, fm, b, fb);
+                } else {
+                    // The left half goes on top, so it is finished first
+                    bounds.add(new int[] {mid, b});
+                    values.add(new double[] {fm, fb});
+                    bounds.add(new int[] {a, mid});
+                    values.add(new double[] {fa, fm});
+                }
+            }
+        }
+
+        /**
+         * Adds points along the straight line between the given ends, followed by the
+         * right end itself. The points are about a pixel apart, horizontally or
+         * vertically, whichever needs more, but never closer than one x value.
+         */
+        private void addLine(int a, double fa, int b, double fb) {
+            if (isFinite(fa) && isFinite(fb)) {
+                double wanted = (b - a) / this.pixelWidth;
+                if (this.tolerance > 0) {
+                    wanted = Math.max(wanted, Math.abs(fb - fa) / this.tolerance);
+                }
+                int pieces = (int) Math.min(wanted, b - a);
+                for (int k = 1; k < pieces; k++) {
+                    int index = a + (int) ((long) (b - a) * k / pieces);
+                    this.add(index, fa + (fb - fa) * (index - a) / (b - a));
+                }
+            }
+            this.add(b, fb);
+        }
+
+        private void add(int index, double y) {
+            this.xPoints.addDouble(this.grid[index]);
+            this.yPoints.addDouble(y);
+        }
+
+        private double evaluate(int index) {
+            Interpreter.checkInterrupted();
+            double x = this.grid[index];
+            if (this.compiled != null) {
+                this.slots[0] = x;
+                return this.compiled.applyAsDouble(this.slots);
+            }
+            this.frame.set(0, x);
+            return toDoubleHelper(this.env, this.expr);
+        }
+
+        private static boolean isFinite(double value) {
+            return !Double.isNaN(value) && !Double.isInfinite(value);
+        }
+    }
+
+    /**
+     * Evaluates a compiled expression at every x in a range of indexes, splitting the
+     * range in half until the pieces are small enough to run on one thread. Each
+     * piece writes only its own part of the output array.
+     *
+     * The pieces run on pool threads, so they cannot see an interrupt themselves:
+     * instead, a piece is skipped if the thread that started the plot has been
+     * interrupted, and that thread checks for the interrupt once they are done.
+     */
+    private static class PlotTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int PIECE_SIZE = 8192;
+
+        private final ToDoubleFunction<double[]> compiled;
+        private final Thread caller;
+        private final double[] xs;
+        private final double[] ys;
+        private final int from;
+        private final int to;
+
+        public PlotTask(ToDoubleFunction<double[]> compiled, Thread caller,
+                        double[] xs, double[] ys, int from, int to) {
+            this.compiled = compiled;
+            this.caller = caller;
+            this.xs = xs;
+            this.ys = ys;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from > PIECE_SIZE) {
+                int middle = (this.from + this.to) >>> 1;
+                invokeAll(new PlotTask(this.compiled, this.caller, this.xs, this.ys, this.from, middle),
+                        new PlotTask(this.compiled, this.caller, this.xs, this.ys, middle, this.to));
+                return;
+            }
+            if (this.caller.isInterrupted()) {
+                return;
+            }
+            double[] slots = new double[1];
+            for (int i = this.from; i < this.to; i++) {
+                slots[0] = this.xs[i];
+                this.ys[i] = this.compiled.applyAsDouble(slots);
+            }
+        }
+    }
+
+    /**
+     * An operation (or defined variable) whose operands are being simplified.
+     */
+    private static class SimplifyTask {
+        public final AstNode node;
+        public AstNode param1;
+
+        public SimplifyTask(AstNode node) {
+            this.node = node;
+        }
+    }
+
+    /**
+     * An operation whose first two operands are being converted to numbers.
+     */
+    private static class UnwrapTask {
+        public final AstNode node;
+        public boolean hasFirst;
+        public double first;
+
+        public UnwrapTask(AstNode node) {
+            this.node = node;
+        }
+    }
 }
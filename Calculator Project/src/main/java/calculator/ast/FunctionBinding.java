@@ -0,0 +1,51 @@
+package calculator.ast;
+
+/**
+ * Records which AstManipulator an operation resolved to during linking. Each
+ * Interpreter keeps its own bindings, since the nodes themselves are shared.
+ *
+ * A binding is only valid for the function tables it was resolved against: the
+ * 'version' identifies that state of the tables, and the interpreter re-resolves
+ * any operation whose binding carries a different version than its environment.
+ * This means functions registered after a tree was linked are still picked up.
+ *
+ * You can ignore this file.
+ */
+public final class FunctionBinding {
+    private final long version;
+    private final AstManipulator manipulator;
+    private final boolean special;
+
+    /**
+     * Creates a new binding.
+     *
+     * @param version      the version of the function tables this binding was resolved against
+     * @param manipulator  the function to run, or null if the operation has no handler
+     * @param special      'true' if the function takes complete control of evaluating its children
+     */
+    public FunctionBinding(long version, AstManipulator manipulator, boolean special) {
+        this.version = version;
+        this.manipulator = manipulator;
+        this.special = special;
+    }
+
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Returns the resolved function, or null if the operation has no handler and
+     * should be left as-is once its children are evaluated.
+     */
+    public AstManipulator getManipulator() {
+        return this.manipulator;
+    }
+
+    /**
+     * Returns 'true' if the resolved function is a special function, and 'false'
+     * if it is a regular custom function (or there is no function at all).
+     */
+    public boolean isSpecial() {
+        return this.special;
+    }
+}
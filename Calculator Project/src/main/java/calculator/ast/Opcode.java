@@ -0,0 +1,79 @@
+package calculator.ast;
+
+import datastructures.concrete.dictionaries.ChainedHashDictionary;
+import datastructures.interfaces.IDictionary;
+
+/**
+ * Identifies which built-in operation an operation AstNode represents.
+ *
+ * Every operation node is tagged with its opcode once, when it is constructed,
+ * so code that needs to know "is this a '+' node?" can switch on the opcode
+ * instead of comparing operation names string by string. Any operation that is
+ * not built into the calculator (for example, a call to a user-registered
+ * function or an unknown function) is tagged as CALL.
+ */
+public enum Opcode {
+    ADD("+"),
+    SUBTRACT("-"),
+    MULTIPLY("*"),
+    DIVIDE("/"),
+    POWER("^"),
+    NEGATE("negate"),
+    SIN("sin"),
+    COS("cos"),
+
+    SIMPLIFY("simplify"),
+    TO_DOUBLE("toDouble"),
+    PLOT("plot"),
+
+    BLOCK("block"),
+    ASSIGN("assign"),
+    QUIT("quit"),
+    EXIT("exit"),
+    CLEAR("clear"),
+    RANDOMLY_PICK("randomlyPick"),
+    IF("if"),
+    REPEAT("repeat"),
+    FOR("for"),
+
+    CALL(null);
+
+    private static final IDictionary<String, Opcode> BY_NAME = new ChainedHashDictionary<>();
+
+    static {
+        for (Opcode opcode : Opcode.values()) {
+            if (opcode.symbol != null) {
+                BY_NAME.put(opcode.symbol, opcode);
+            }
+        }
+    }
+
+    private final String symbol;
+
+    Opcode(String symbol) {
+        this.symbol = symbol;
+    }
+
+    /**
+     * Returns the operation name this opcode stands for, or null for CALL.
+     */
+    public String getSymbol() {
+        return this.symbol;
+    }
+
+    /**
+     * Returns 'true' if this opcode is one of the binary infix operators
+     * (+, -, *, /, ^), and 'false' otherwise.
+     */
+    public boolean isInfix() {
+        return this == ADD || this == SUBTRACT || this == MULTIPLY || this == DIVIDE || this == POWER;
+    }
+
+    /**
+     * Returns the opcode for the operation with the given name, or CALL if the
+     * name does not belong to a built-in operation.
+     */
+    public static Opcode forName(String name) {
+        return BY_NAME.getOrDefault(name, CALL);
+    }
+}
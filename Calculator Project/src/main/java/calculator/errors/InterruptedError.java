@@ -0,0 +1,16 @@
+package calculator.errors;
+
+/**
+ * An error that indicates evaluation was cancelled by interrupting the thread
+ * that was running it.
+ *
+ * This deliberately does not extend EvaluationError, so code that recovers from
+ * a failed evaluation does not swallow a cancellation by accident.
+ */
+public class InterruptedError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public InterruptedError() {
+        super("Evaluation was cancelled");
+    }
+}
@@ -1,14 +1,17 @@
 package calculator.gui;
 
 import javax.swing.*;
-import javax.swing.event.AncestorEvent;
-import javax.swing.event.AncestorListener;
 import java.awt.*;
 
+/**
+ * Shows the image that plots are drawn on.
+ *
+ * The panel only repaints when something is drawn: the ImageDrawer it hands out
+ * marks the regions it draws on as dirty, and Swing coalesces those into as few
+ * repaints as it can.
+ */
 public class ImagePanel extends JPanel {
-    private static final int DELAY = 100;  // In milliseconds
     private Image image;
-    private Timer timer;
 
     public ImagePanel(Image image) {
         super(true);
@@ -16,13 +19,10 @@ public class ImagePanel extends JPanel {
         this.setBackground(Color.WHITE);
         this.setPreferredSize(new Dimension(image.getWidth(this), image.getHeight(this)));
         this.setAlignmentX(Component.LEFT_ALIGNMENT);
-        this.timer = new Timer(DELAY, e -> this.repaint());
-        this.timer.start();
-        this.addAncestorListener(new Closer());
     }
 
     public ImageDrawer getImageDrawer() {
-        return new ImageDrawer(this.image);
+        return new ImageDrawer(this.image, this);
     }
 
     public Image getImage() {
@@ -39,24 +39,4 @@ public class ImagePanel extends JPanel {
         this.image = image;
         this.repaint();
     }
-
-    private class Closer implements AncestorListener {
-        @Override
-        public void ancestorAdded(AncestorEvent event) {
-            // Do nothing
-        }
-
-        @Override
-        public void ancestorMoved(AncestorEvent event) {
-            // Do nothing
-        }
-
-        @Override
-        public void ancestorRemoved(AncestorEvent event) {
-            if (ImagePanel.this.timer != null && ImagePanel.this.timer.isRunning()) {
-                ImagePanel.this.timer.stop();
-                ImagePanel.this.timer = null;
-            }
-        }
-    }
 }
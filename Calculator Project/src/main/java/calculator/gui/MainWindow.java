@@ -1,8 +1,11 @@
 package calculator.gui;
 
 import calculator.errors.EvaluationError;
+import calculator.errors.InterruptedError;
 import calculator.errors.QuitError;
 import calculator.interpreter.Calculator;
+import calculator.interpreter.Interpreter;
+import calculator.parser.InputState;
 import calculator.errors.IncompleteInputError;
 
 import javax.swing.*;
@@ -11,15 +14,35 @@ import javax.swing.text.AttributeSet;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.DocumentFilter;
 import java.awt.*;
+import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
-
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The calculator's window: a drawing pane on top, and a text pane to type into below.
+ *
+ * Input is evaluated on a dedicated worker thread, so the window stays responsive
+ * however long evaluation takes. Only one evaluation runs at a time: the text pane
+ * stops accepting input and a busy indicator is shown until it finishes, or until
+ * it is cancelled by pressing Escape.
+ *
+ * The text pane keeps at most a fixed number of lines of scrollback: once it has
+ * more, the oldest lines are thrown away.
+ */
 public class MainWindow extends JFrame {
     public static final int DEFAULT_WIDTH = 800;
     public static final int DEFAULT_DRAWING_HEIGHT = 600;
     public static final int DEFAULT_TEXT_ROWS = 10;
     public static final int DEFAULT_FONT_SIZE = 16;
+    public static final int DEFAULT_SCROLLBACK_LINES = 10000;
+
+    // Pass as the scrollback limit to keep every line
+    public static final int UNLIMITED_SCROLLBACK = -1;
 
     public static void launch() {
         EventQueue.invokeLater(() -> {
@@ -36,14 +59,38 @@ public class MainWindow extends JFrame {
     private int width;
     private int drawingHeight;
     private int textRows;
+    private int scrollbackLines;
     private Calculator calculator;
 
+    // The only thread the calculator is ever used from
+    private ExecutorService worker;
+
     public MainWindow(String title, int width, int drawingHeight, int textRows) {
+        this(title, width, drawingHeight, textRows, DEFAULT_SCROLLBACK_LINES);
+    }
+
+    /**
+     * Creates a window whose text pane keeps at most 'scrollbackLines' lines, or
+     * every line if that is UNLIMITED_SCROLLBACK.
+     *
+     * @throws IllegalArgumentException  if 'scrollbackLines' is neither positive
+     *                                   nor UNLIMITED_SCROLLBACK
+     */
+    public MainWindow(String title, int width, int drawingHeight, int textRows, int scrollbackLines) {
+        if (scrollbackLines <= 0 && scrollbackLines != UNLIMITED_SCROLLBACK) {
+            throw new IllegalArgumentException("Scrollback must be positive, or UNLIMITED_SCROLLBACK");
+        }
         this.title = title;
         this.width = width;
         this.drawingHeight = drawingHeight;
         this.textRows = textRows;
+        this.scrollbackLines = scrollbackLines;
         this.calculator = new Calculator();
+        this.worker = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "Calculator worker");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     public void construct() {
@@ -66,6 +113,13 @@ public class MainWindow extends JFrame {
     private void setupMainWindow() {
         this.setTitle(this.title);
         this.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        this.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                // Interrupts whatever is still being evaluated
+                MainWindow.this.worker.shutdownNow();
+            }
+        });
 
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
@@ -75,9 +129,11 @@ public class MainWindow extends JFrame {
     }
 
     public ImagePanel makeDrawingPane() {
-        BufferedImage image = new BufferedImage(
+        // Use the screen's own pixel format, so painting the image onto the
+        // panel is a plain copy rather than a color conversion
+        BufferedImage image = this.getGraphicsConfiguration().createCompatibleImage(
                 this.width,
-                this.drawingHeight, BufferedImage.TYPE_BYTE_INDEXED);
+                this.drawingHeight);
 
         // Setup initial background color
         Graphics g = image.getGraphics();
@@ -102,89 +158,167 @@ public class MainWindow extends JFrame {
         ));
         textArea.setText(">>> ");
 
+        // Add busy indicator, shown only while evaluating
+        JProgressBar progressBar = new JProgressBar();
+        progressBar.setIndeterminate(true);
+        JPanel busyIndicator = new JPanel(new BorderLayout(8, 0));
+        busyIndicator.add(new JLabel("Evaluating... (press Esc to cancel)"), BorderLayout.WEST);
+        busyIndicator.add(progressBar, BorderLayout.CENTER);
+        busyIndicator.setVisible(false);
+
         // Add logic
         DisallowEditingPastContentFilter filter = new DisallowEditingPastContentFilter(4);
         ((AbstractDocument) textArea.getDocument()).setDocumentFilter(filter);
-        textArea.addKeyListener(new TextAreaResponder(this, textArea, filter, this.calculator));
+        TextAreaResponder responder = new TextAreaResponder(
+                this, textArea, filter, busyIndicator, this.calculator, this.worker, this.scrollbackLines);
+        textArea.addKeyListener(responder);
+        textArea.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0), "cancel-evaluation");
+        textArea.getActionMap().put("cancel-evaluation", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                responder.cancel();
+            }
+        });
 
         // Add scroll pane
         JScrollPane scrollPane = new JScrollPane(textArea);
         scrollPane.setAlignmentX(Component.LEFT_ALIGNMENT);
         scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_ALWAYS);
 
-        return scrollPane;
+        JPanel pane = new JPanel(new BorderLayout());
+        pane.add(scrollPane, BorderLayout.CENTER);
+        pane.add(busyIndicator, BorderLayout.SOUTH);
+        return pane;
     }
 
     private static class TextAreaResponder implements KeyListener {
         private JFrame frame;
         private JTextArea area;
         private DisallowEditingPastContentFilter filter;
+        private JComponent busyIndicator;
         private Calculator calculator;
+        private ExecutorService worker;
+        private int scrollbackLines;
 
-        private String tempText;
+        // Lines typed so far for an input that isn't complete yet
+        private StringBuilder tempText;
+        private InputState inputState;
+
+        // The evaluation in flight, or null when idle
+        private Evaluation running;
 
         public TextAreaResponder(JFrame frame,
                                  JTextArea area,
                                  DisallowEditingPastContentFilter filter,
-                                 Calculator calculator) {
+                                 JComponent busyIndicator,
+                                 Calculator calculator,
+                                 ExecutorService worker,
+                                 int scrollbackLines) {
             this.frame = frame;
             this.area = area;
             this.filter = filter;
+            this.busyIndicator = busyIndicator;
             this.calculator = calculator;
-            this.tempText = "";
+            this.worker = worker;
+            this.scrollbackLines = scrollbackLines;
+            this.tempText = new StringBuilder();
+            this.inputState = new InputState();
+            this.running = null;
         }
 
         @Override
         public void keyTyped(KeyEvent e) {
             try {
-                if (e.getKeyChar() == '\n') {
+                if (e.getKeyChar() == '\n' && this.running == null) {
                     // Get input
                     int lineno = this.area.getLineCount() - 2;
                     int start = this.area.getLineStartOffset(lineno);
                     int end = this.area.getLineEndOffset(lineno);
-                    String enteredText = this.area.getText().substring(start, end);
+                    String enteredText = this.area.getText(start, end - start);
                     if (enteredText.startsWith(">>> ") || enteredText.startsWith("... ")) {
                         enteredText = enteredText.substring(4);
                     }
 
-                    this.tempText += enteredText;
-
-                    // Run command and handle error processing
-                    boolean complete = true;
-                    String response = "";
-                    try {
-                        response = this.calculator.evaluate(this.tempText);
-                    } catch (IncompleteInputError ex) {
-                        complete = false;
-                    } catch (EvaluationError ex) {
-                        response = "ERROR: " + ex.getMessage();
-                    } catch (QuitError ex) {
-                        this.frame.dispose();
+                    this.tempText.append(enteredText);
+                    this.inputState.append(enteredText);
+                    if (!this.inputState.isComplete()) {
+                        // Wait for more lines before parsing anything
+                        this.finish("", false);
                         return;
-                    } catch (Exception ex) {
-                        this.frame.dispose();
-                        throw ex;
-                    }
-
-                    // Add response
-                    this.filter.allowEditing();
-                    if (complete) {
-                        this.area.append(response + "\n");
-                        this.area.append(">>> ");
-                        this.tempText = "";
-                    } else {
-                        this.area.append("... ");
                     }
-                    this.filter.disallowEditing();
 
-                    int newOffset = this.area.getDocument().getLength();
-                    this.filter.setPromptPosition(newOffset);
+                    // Run command on the worker; it reports back through 'finish'
+                    this.running = new Evaluation(this, this.calculator, this.tempText.toString());
+                    this.setBusy(true);
+                    this.worker.execute(this.running);
                 }
             } catch (BadLocationException ex) {
                 throw new RuntimeException(ex);
             }
         }
 
+        /**
+         * Cancels the evaluation in flight, if any.
+         */
+        public void cancel() {
+            if (this.running != null) {
+                this.running.cancel();
+            }
+        }
+
+        /**
+         * Shows the outcome of the evaluation in flight. Must be called on the event
+         * dispatch thread.
+         */
+        private void finish(String response, boolean complete) {
+            this.running = null;
+            this.setBusy(false);
+
+            // Add response
+            this.filter.allowEditing();
+            if (complete) {
+                this.area.append(response + "\n");
+                this.area.append(">>> ");
+                this.tempText.setLength(0);
+                this.inputState.reset();
+            } else {
+                this.area.append("... ");
+            }
+            this.trimScrollback();
+            this.filter.disallowEditing();
+
+            int newOffset = this.area.getDocument().getLength();
+            this.filter.setPromptPosition(newOffset);
+            this.area.setCaretPosition(newOffset);
+        }
+
+        /**
+         * Removes the oldest lines once there are more than the scrollback limit.
+         *
+         * Removing text from the start of the document moves all the rest of it, so
+         * lines are removed a batch at a time: down to 90% of the limit.
+         */
+        private void trimScrollback() {
+            int lines = this.area.getLineCount();
+            if (this.scrollbackLines == UNLIMITED_SCROLLBACK || lines <= this.scrollbackLines) {
+                return;
+            }
+            try {
+                int keep = this.scrollbackLines - this.scrollbackLines / 10;
+                int cut = this.area.getLineStartOffset(lines - keep);
+                this.area.getDocument().remove(0, cut);
+            } catch (BadLocationException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        private void setBusy(boolean busy) {
+            this.area.setEditable(!busy);
+            this.area.setCursor(Cursor.getPredefinedCursor(busy ? Cursor.WAIT_CURSOR : Cursor.TEXT_CURSOR));
+            this.busyIndicator.setVisible(busy);
+            this.busyIndicator.getParent().revalidate();
+        }
+
         @Override
         public void keyPressed(KeyEvent e) {
             // Do nothing
@@ -196,6 +330,77 @@ public class MainWindow extends JFrame {
         }
     }
 
+    /**
+     * Evaluates one input on the worker thread, then hands the outcome back to the
+     * event dispatch thread.
+     *
+     * Cancelling interrupts the worker, which the calculator checks for regularly;
+     * an evaluation cancelled before it starts never runs at all. Either way, the
+     * outcome is still handed back, so the window never stays busy.
+     */
+    private static class Evaluation implements Runnable {
+        private final TextAreaResponder responder;
+        private final Calculator calculator;
+        private final String input;
+
+        // Both guarded by 'this'
+        private Thread thread;
+        private boolean cancelled;
+
+        public Evaluation(TextAreaResponder responder, Calculator calculator, String input) {
+            this.responder = responder;
+            this.calculator = calculator;
+            this.input = input;
+            this.thread = null;
+            this.cancelled = false;
+        }
+
+        public synchronized void cancel() {
+            this.cancelled = true;
+            if (this.thread != null) {
+                this.thread.interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                this.thread = Thread.currentThread();
+                if (this.cancelled) {
+                    this.thread.interrupt();
+                }
+            }
+
+            Runnable outcome;
+            try {
+                Interpreter.checkInterrupted();
+                String response = this.calculator.evaluate(this.input);
+                outcome = () -> this.responder.finish(response, true);
+            } catch (IncompleteInputError ex) {
+                outcome = () -> this.responder.finish("", false);
+            } catch (EvaluationError | InterruptedError ex) {
+                outcome = () -> this.responder.finish("ERROR: " + ex.getMessage(), true);
+            } catch (QuitError ex) {
+                outcome = () -> this.responder.frame.dispose();
+            } catch (StackOverflowError ex) {
+                outcome = () -> this.responder.finish("ERROR: Input is nested too deeply", true);
+            } catch (RuntimeException | Error ex) {
+                // Anything else is a bug, but the window must not be left busy
+                outcome = () -> {
+                    this.responder.frame.dispose();
+                    throw ex;
+                };
+            } finally {
+                synchronized (this) {
+                    this.thread = null;
+                }
+                // Drop an interrupt that arrived after the calculator last checked
+                Thread.interrupted();
+            }
+            SwingUtilities.invokeLater(outcome);
+        }
+    }
+
     // Code obtained from https://stackoverflow.com/a/10031051/646543
     private static class DisallowEditingPastContentFilter extends DocumentFilter {
         private int promptPosition;
@@ -231,6 +436,10 @@ public class MainWindow extends JFrame {
                 throws BadLocationException {
             if (offset >= this.promptPosition || this.allowFreeEditing) {
                 super.remove(fb, offset, length);
+                if (offset < this.promptPosition) {
+                    // Trimmed scrollback: the prompt moved back along with the text after it
+                    this.promptPosition -= Math.min(length, this.promptPosition - offset);
+                }
             }
         }
 
@@ -0,0 +1,242 @@
+package calculator.gui;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * Draws scatter plots straight onto a Graphics2D, without building a chart object
+ * or boxing a single point.
+ *
+ * Points are binned by the pixel column they land in, and only the lowest and
+ * highest point of each column are kept. Each column is then drawn as one vertical
+ * run of pixels between the two, so drawing a plot costs one pass over the points
+ * plus one rectangle per column, however many points there are.
+ *
+ * The chart is laid out like JFreeChart's scatter plots: an optional title on top,
+ * axis labels along the bottom and left, and tick marks with gridlines.
+ */
+final class ScatterRasterizer {
+    private static final int TICK_COUNT = 5;
+    // Where the values are too large for the tick spacing to be represented
+    // exactly, ticks may land on the same value; this stops the loop regardless
+    private static final int MAX_TICKS = 4 * TICK_COUNT;
+    private static final int TICK_LENGTH = 4;
+    private static final int PADDING = 8;
+    private static final int POINT_SIZE = 3;
+
+    private static final Color BACKGROUND = Color.WHITE;
+    private static final Color PLOT_BACKGROUND = new Color(0xEEEEEE);
+    private static final Color GRIDLINES = Color.WHITE;
+    private static final Color AXES = Color.DARK_GRAY;
+    private static final Color POINTS = Color.RED;
+    private static final Font TITLE_FONT = new Font(Font.SANS_SERIF, Font.BOLD, 16);
+    private static final Font LABEL_FONT = new Font(Font.SANS_SERIF, Font.PLAIN, 12);
+    private static final Font TICK_FONT = new Font(Font.SANS_SERIF, Font.PLAIN, 10);
+
+    private ScatterRasterizer() {
+    }
+
+    /**
+     * Draws the first 'count' points of the given arrays as a scatter plot filling
+     * the given region. Points that are not finite numbers are skipped.
+     */
+    static void draw(Graphics2D g2, Rectangle2D region, String title, String xAxisLabel, String yAxisLabel,
+                     double[] xs, double[] ys, int count) {
+        Range xRange = Range.of(xs, count, ys);
+        Range yRange = Range.of(ys, count, xs);
+
+        int left = (int) region.getX();
+        int top = (int) region.getY();
+        int width = (int) region.getWidth();
+        int height = (int) region.getHeight();
+        g2.setColor(BACKGROUND);
+        g2.fillRect(left, top, width, height);
+        g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+
+        // Work out where the plot area goes
+        FontMetrics titleMetrics = g2.getFontMetrics(TITLE_FONT);
+        FontMetrics labelMetrics = g2.getFontMetrics(LABEL_FONT);
+        FontMetrics tickMetrics = g2.getFontMetrics(TICK_FONT);
+        int titleHeight = title.isEmpty() ? 0 : titleMetrics.getHeight() + PADDING;
+        int tickLabelWidth = Math.max(
+                tickMetrics.stringWidth(formatTick(yRange.min, yRange.tickStep())),
+                tickMetrics.stringWidth(formatTick(yRange.max, yRange.tickStep())));
+        int plotLeft = left + PADDING + labelMetrics.getHeight() + PADDING + tickLabelWidth + TICK_LENGTH;
+        int plotTop = top + PADDING + titleHeight;
+        int plotRight = left + width - PADDING * 2;
+        int plotBottom = top + height - PADDING - labelMetrics.getHeight() - PADDING
+                - tickMetrics.getHeight() - TICK_LENGTH;
+        int plotWidth = plotRight - plotLeft;
+        int plotHeight = plotBottom - plotTop;
+        if (plotWidth < 1 || plotHeight < 1) {
+            return;
+        }
+        g2.setColor(PLOT_BACKGROUND);
+        g2.fillRect(plotLeft, plotTop, plotWidth, plotHeight);
+
+        drawTicks(g2, tickMetrics, xRange, yRange, plotLeft, plotTop, plotWidth, plotHeight);
+        drawPoints(g2, xs, ys, count, xRange, yRange, plotLeft, plotTop, plotWidth, plotHeight);
+
+        g2.setColor(AXES);
+        g2.setStroke(new BasicStroke(1));
+        g2.drawRect(plotLeft, plotTop, plotWidth, plotHeight);
+        if (!title.isEmpty()) {
+            g2.setFont(TITLE_FONT);
+            g2.drawString(title, left + (width - titleMetrics.stringWidth(title)) / 2,
+                    top + PADDING + titleMetrics.getAscent());
+        }
+        g2.setFont(LABEL_FONT);
+        g2.drawString(xAxisLabel, plotLeft + (plotWidth - labelMetrics.stringWidth(xAxisLabel)) / 2,
+                top + height - PADDING - labelMetrics.getDescent());
+
+        AffineTransform original = g2.getTransform();
+        g2.translate(left + PADDING + labelMetrics.getAscent(),
+                plotTop + (plotHeight + labelMetrics.stringWidth(yAxisLabel)) / 2);
+        g2.rotate(-Math.PI / 2);
+        g2.drawString(yAxisLabel, 0, 0);
+        g2.setTransform(original);
+    }
+
+    private static void drawTicks(Graphics2D g2, FontMetrics metrics, Range xRange, Range yRange,
+                                  int plotLeft, int plotTop, int plotWidth, int plotHeight) {
+        g2.setFont(TICK_FONT);
+        double xStep = xRange.tickStep();
+        long firstX = (long) Math.ceil(xRange.min / xStep);
+        for (long k = firstX; k - firstX < MAX_TICKS && k * xStep <= xRange.max; k++) {
+            double x = k * xStep;
+            int px = plotLeft + (int) Math.round(xRange.fraction(x) * plotWidth);
+            g2.setColor(GRIDLINES);
+            g2.drawLine(px, plotTop, px, plotTop + plotHeight);
+            g2.setColor(AXES);
+            g2.drawLine(px, plotTop + plotHeight, px, plotTop + plotHeight + TICK_LENGTH);
+            String label = formatTick(x, xStep);
+            g2.drawString(label, px - metrics.stringWidth(label) / 2,
+                    plotTop + plotHeight + TICK_LENGTH + metrics.getAscent());
+        }
+
+        double yStep = yRange.tickStep();
+        long firstY = (long) Math.ceil(yRange.min / yStep);
+        for (long k = firstY; k - firstY < MAX_TICKS && k * yStep <= yRange.max; k++) {
+            double y = k * yStep;
+            int py = plotTop + plotHeight - (int) Math.round(yRange.fraction(y) * plotHeight);
+            g2.setColor(GRIDLINES);
+            g2.drawLine(plotLeft, py, plotLeft + plotWidth, py);
+            g2.setColor(AXES);
+            g2.drawLine(plotLeft - TICK_LENGTH, py, plotLeft, py);
+            String label = formatTick(y, yStep);
+            g2.drawString(label, plotLeft - TICK_LENGTH - 2 - metrics.stringWidth(label),
+                    py + metrics.getAscent() / 2);
+        }
+    }
+
+    private static void drawPoints(Graphics2D g2, double[] xs, double[] ys, int count, Range xRange, Range yRange,
+                                   int plotLeft, int plotTop, int plotWidth, int plotHeight) {
+        // The lowest and highest y in each pixel column; low > high means the column is empty
+        double[] low = new double[plotWidth + 1];
+        double[] high = new double[plotWidth + 1];
+        for (int column = 0; column <= plotWidth; column++) {
+            low[column] = Double.POSITIVE_INFINITY;
+            high[column] = Double.NEGATIVE_INFINITY;
+        }
+        for (int i = 0; i < count; i++) {
+            double x = xs[i];
+            double y = ys[i];
+            if (!isFinite(x) || !isFinite(y)) {
+                continue;
+            }
+            int column = (int) Math.round(xRange.fraction(x) * plotWidth);
+            low[column] = Math.min(low[column], y);
+            high[column] = Math.max(high[column], y);
+        }
+
+        g2.setColor(POINTS);
+        int radius = POINT_SIZE / 2;
+        for (int column = 0; column <= plotWidth; column++) {
+            if (low[column] > high[column]) {
+                continue;
+            }
+            int bottom = plotTop + plotHeight - (int) Math.round(yRange.fraction(low[column]) * plotHeight);
+            int top = plotTop + plotHeight - (int) Math.round(yRange.fraction(high[column]) * plotHeight);
+            g2.fillRect(plotLeft + column - radius, top - radius, POINT_SIZE, bottom - top + POINT_SIZE);
+        }
+    }
+
+    /**
+     * Formats a tick value with as many decimal places as the tick spacing needs.
+     */
+    private static String formatTick(double value, double step) {
+        int decimals = Math.max(0, (int) -Math.floor(Math.log10(step)));
+        if (Math.abs(value) < step / 2) {
+            value = 0;
+        }
+        return String.format("%." + decimals + "f", value);
+    }
+
+    private static boolean isFinite(double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+    /**
+     * The range of finite values along one axis.
+     */
+    private static final class Range {
+        public final double min;
+        public final double max;
+
+        private Range(double min, double max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        /**
+         * Returns the range of the finite values among the first 'count' given
+         * values, skipping any whose partner in 'others' is not finite.
+         * An empty or single-valued range is widened so it has some extent.
+         */
+        public static Range of(double[] values, int count, double[] others) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < count; i++) {
+                if (isFinite(values[i]) && isFinite(others[i])) {
+                    min = Math.min(min, values[i]);
+                    max = Math.max(max, values[i]);
+                }
+            }
+            if (min > max) {
+                return new Range(0, 1);
+            } else if (min == max) {
+                double margin = min == 0 ? 1 : Math.abs(min) / 2;
+                return new Range(min - margin, max + margin);
+            }
+            return new Range(min, max);
+        }
+
+        public double fraction(double value) {
+            return (value - this.min) / (this.max - this.min);
+        }
+
+        /**
+         * Returns a round tick spacing (1, 2 or 5 times a power of ten) that gives
+         * about TICK_COUNT ticks.
+         */
+        public double tickStep() {
+            double rough = (this.max - this.min) / TICK_COUNT;
+            double magnitude = Math.pow(10, Math.floor(Math.log10(rough)));
+            double scaled = rough / magnitude;
+            if (scaled < 1.5) {
+                return magnitude;
+            } else if (scaled < 3.5) {
+                return 2 * magnitude;
+            } else if (scaled < 7.5) {
+                return 5 * magnitude;
+            }
+            return 10 * magnitude;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package calculator.interpreter;
+
+import calculator.ast.AstNode;
+import datastructures.concrete.dictionaries.ChainedHashDictionary;
+import datastructures.interfaces.IDictionary;
+
+/**
+ * A bounded cache from input text to the normalized AST the calculator built for it.
+ *
+ * When the cache is full, adding a new entry evicts the least recently used one.
+ * The cache keeps count of its hits, misses and evictions so callers can tell how
+ * well it is working.
+ *
+ * Cached trees are shared between every evaluation of the same input. This is safe
+ * because AstNodes are immutable.
+ */
+public class AstCache {
+    private IDictionary<String, Entry> entries;
+    private int capacity;
+
+    // The most recently used entry is at the front; the least recently used at the back
+    private Entry front;
+    private Entry back;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Creates an empty cache that holds at most the given number of trees.
+     *
+     * @throws IllegalArgumentException  if the capacity is negative
+     */
+    public AstCache(int capacity) {
+        this.entries = new ChainedHashDictionary<>();
+        this.setCapacity(capacity);
+    }
+
+    /**
+     * Returns the tree cached for the given input and marks it as the most
+     * recently used, or returns null if it is not in the cache.
+     */
+    public AstNode get(String input) {
+        Entry entry = this.entries.getOrDefault(input, null);
+        if (entry == null) {
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        this.unlink(entry);
+        this.linkFront(entry);
+        return entry.ast;
+    }
+
+    /**
+     * Caches the tree for the given input, evicting the least recently used
+     * entry if the cache is full.
+     */
+    public void put(String input, AstNode ast) {
+        if (this.capacity == 0) {
+            return;
+        }
+        Entry entry = this.entries.getOrDefault(input, null);
+        if (entry != null) {
+            entry.ast = ast;
+            entry.program = null;
+            this.unlink(entry);
+        } else {
+            entry = new Entry(input, ast);
+            this.entries.put(input, entry);
+        }
+        this.linkFront(entry);
+        this.evictDownTo(this.capacity);
+    }
+
+    /**
+     * Returns the bytecode compiled for the given input, or null if there is none.
+     * Unlike 'get', this neither counts as a hit or miss nor changes which entry
+     * is the most recently used.
+     */
+    BytecodeProgram getProgram(String input) {
+        Entry entry = this.entries.getOrDefault(input, null);
+        return entry == null ? null : entry.program;
+    }
+
+    /**
+     * Remembers the bytecode compiled for the given input, if its tree is cached.
+     */
+    void putProgram(String input, BytecodeProgram program) {
+        Entry entry = this.entries.getOrDefault(input, null);
+        if (entry != null) {
+            entry.program = program;
+        }
+    }
+
+    /**
+     * Removes every entry from the cache. The counters are left untouched.
+     */
+    public void clear() {
+        this.entries = new ChainedHashDictionary<>();
+        this.front = null;
+        this.back = null;
+    }
+
+    /**
+     * Changes the maximum number of trees this cache holds, evicting the least
+     * recently used entries if there are now too many. A capacity of 0 turns
+     * caching off.
+     *
+     * @throws IllegalArgumentException  if the capacity is negative
+     */
+    public void setCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity cannot be negative: " + capacity);
+        }
+        this.capacity = capacity;
+        this.evictDownTo(capacity);
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Returns the number of trees currently cached.
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Returns how many calls to 'get' found their input in the cache.
+     */
+    public long getHitCount() {
+        return this.hits;
+    }
+
+    /**
+     * Returns how many calls to 'get' did not find their input in the cache.
+     */
+    public long getMissCount() {
+        return this.misses;
+    }
+
+    /**
+     * Returns how many entries were evicted to make room for newer ones.
+     */
+    public long getEvictionCount() {
+        return this.evictions;
+    }
+
+    private void evictDownTo(int maxSize) {
+        while (this.entries.size() > maxSize) {
+            Entry oldest = this.back;
+            this.unlink(oldest);
+            this.entries.remove(oldest.input);
+            this.evictions++;
+        }
+    }
+
+    private void linkFront(Entry entry) {
+        entry.prev = null;
+        entry.next = this.front;
+        if (this.front != null) {
+            this.front.prev = entry;
+        }
+        this.front = entry;
+        if (this.back == null) {
+            this.back = entry;
+        }
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            this.front = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        } else {
+            this.back = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+    }
+
+    private static class Entry {
+        public final String input;
+        public AstNode ast;
+        public BytecodeProgram program;
+        public Entry prev;
+        public Entry next;
+
+        public Entry(String input, AstNode ast) {
+            this.input = input;
+            this.ast = ast;
+        }
+    }
+}
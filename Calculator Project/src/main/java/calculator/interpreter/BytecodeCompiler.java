@@ -0,0 +1,479 @@
+package calculator.interpreter;
+
+import calculator.ast.AstNode;
+import calculator.ast.Opcode;
+import datastructures.concrete.ArrayList;
+import datastructures.concrete.DoubleArrayList;
+import datastructures.concrete.dictionaries.ChainedHashDictionary;
+import datastructures.interfaces.IDictionary;
+import datastructures.interfaces.IList;
+
+/**
+ * Compiles the statements of a normalized 'simplify(block(...))' tree into register
+ * bytecode for the VirtualMachine.
+ *
+ * Only statements that contain a loop or a branch ('for', 'repeat', 'if' or
+ * 'randomlyPick') are compiled, since those are the ones the interpreter spends
+ * its time re-walking. A statement is compiled only if every value it computes is
+ * guaranteed to be a number, following the same rules as ExpressionCompiler: sin,
+ * cos and '/' only fold inside 'toDouble', and nothing else symbolic is allowed.
+ * Anything else is left to the interpreter, one whole statement at a time.
+ *
+ * Every variable a statement reads or assigns gets a register. The VM copies the
+ * variables it reads into their registers before running the statement, and stores
+ * the ones it assigned back into the variable table once the statement is done,
+ * so running a loop never builds an AstNode.
+ *
+ * Two more restrictions keep the compiled code in step with the interpreter:
+ *
+ * - The interpreter only looks a variable up once the whole operation reading it
+ *   has had its arguments evaluated, so an assignment nested inside an arithmetic
+ *   operation could change what the operation sees. Those are not compiled.
+ * - A loop variable must be unbound when its loop starts, so a statement that
+ *   also reads or assigns a global variable with the same name is not compiled.
+ */
+final class BytecodeCompiler {
+    // Deeper statements are left to the interpreter, since compiling recurses once
+    // per level
+    private static final int MAX_DEPTH = 256;
+
+    private int[] code;
+    private int codeSize;
+    private DoubleArrayList constants;
+    private int registerCount;
+
+    // Every global variable the statement reads or assigns, and its register
+    private IDictionary<String, Integer> globals;
+    private IList<String> loadNames;
+    private IDictionary<String, Boolean> loadPrecise;
+    private IList<String> storeNames;
+    private IList<String> loopNames;
+
+    // The loop variables in scope, innermost last, and their registers
+    private IList<String> scopeNames;
+    private IList<Integer> scopeRegisters;
+
+    private BytecodeCompiler() {
+        this.code = new int[64];
+        this.codeSize = 0;
+        this.constants = new DoubleArrayList();
+        this.registerCount = 0;
+        this.globals = new ChainedHashDictionary<>();
+        this.loadNames = new ArrayList<>();
+        this.loadPrecise = new ChainedHashDictionary<>();
+        this.storeNames = new ArrayList<>();
+        this.loopNames = new ArrayList<>();
+        this.scopeNames = new ArrayList<>();
+        this.scopeRegisters = new ArrayList<>();
+    }
+
+    /**
+     * Compiles the given normalized tree. If it is not of the form
+     * 'simplify(block(...))', the returned program has no statements at all.
+     */
+    static BytecodeProgram compile(AstNode root) {
+        if (!isSimplifiedBlock(root)) {
+            return new BytecodeProgram(root, new BytecodeProgram.Unit[0]);
+        }
+        IList<AstNode> statements = root.getChildren().get(0).getChildren();
+        BytecodeProgram.Unit[] units = new BytecodeProgram.Unit[statements.size()];
+        for (int i = 0; i < units.length; i++) {
+            units[i] = new BytecodeCompiler().compileUnit(statements.get(i));
+        }
+        return new BytecodeProgram(root, units);
+    }
+
+    private static boolean isSimplifiedBlock(AstNode root) {
+        return root.isOperation()
+                && root.getOpcode() == Opcode.SIMPLIFY
+                && root.getChildren().size() == 1
+                && root.getChildren().get(0).isOperation()
+                && root.getChildren().get(0).getOpcode() == Opcode.BLOCK;
+    }
+
+    private BytecodeProgram.Unit compileUnit(AstNode statement) {
+        if (!hasControlFlow(statement)) {
+            return new BytecodeProgram.Unit(statement);
+        }
+        int result = this.newRegister();
+        if (!this.compile(statement, result, false, false, 0)) {
+            return new BytecodeProgram.Unit(statement);
+        }
+        this.emit(BytecodeProgram.HALT);
+        for (String name : this.loopNames) {
+            if (this.globals.containsKey(name)) {
+                return new BytecodeProgram.Unit(statement);
+            }
+        }
+
+        String[] loads = toArray(this.loadNames);
+        int[] loadRegisters = new int[loads.length];
+        boolean[] precise = new boolean[loads.length];
+        for (int i = 0; i < loads.length; i++) {
+            loadRegisters[i] = this.globals.get(loads[i]);
+            precise[i] = this.loadPrecise.get(loads[i]);
+        }
+        String[] stores = toArray(this.storeNames);
+        int[] storeRegisters = new int[stores.length];
+        for (int i = 0; i < stores.length; i++) {
+            storeRegisters[i] = this.globals.get(stores[i]);
+        }
+        int[] trimmed = new int[this.codeSize];
+        System.arraycopy(this.code, 0, trimmed, 0, this.codeSize);
+        return new BytecodeProgram.Unit(
+                statement, trimmed, this.constants.toArray(), this.registerCount, result,
+                loads, loadRegisters, precise, toArray(this.loopNames), stores, storeRegisters);
+    }
+
+    private static boolean hasControlFlow(AstNode statement) {
+        IList<AstNode> pending = new ArrayList<>();
+        pending.add(statement);
+        while (!pending.isEmpty()) {
+            AstNode node = pending.remove();
+            if (node.isOperation()) {
+                Opcode opcode = node.getOpcode();
+                if (opcode == Opcode.FOR || opcode == Opcode.REPEAT
+                        || opcode == Opcode.IF || opcode == Opcode.RANDOMLY_PICK) {
+                    return true;
+                }
+                for (AstNode child : node.getChildren()) {
+                    pending.add(child);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Emits code that leaves the value of the given node in register 'dst'.
+     * Returns 'false' if the node cannot be compiled.
+     *
+     * @param precise  'true' inside 'toDouble', where sin, cos and '/' fold
+     * @param operand  'true' if the node is (part of) an argument of an operation
+     *                 that looks its variables up after evaluating its arguments
+     */
+    private boolean compile(AstNode node, int dst, boolean precise, boolean operand, int depth) {
+        if (depth > MAX_DEPTH) {
+            return false;
+        }
+        if (node.isNumber()) {
+            this.emit(BytecodeProgram.CONST, dst, this.constant(node.getNumericValue()));
+            return true;
+        }
+        if (node.isVariable()) {
+            this.emit(BytecodeProgram.MOVE, dst, this.read(node.getName(), precise));
+            return true;
+        }
+
+        IList<AstNode> children = node.getChildren();
+        int next = depth + 1;
+        switch (node.getOpcode()) {
+            case DIVIDE:
+            case SIN:
+            case COS:
+                if (!precise) {
+                    return false;
+                }
+                return this.compileArithmetic(node, dst, precise, next);
+            case ADD:
+            case SUBTRACT:
+            case MULTIPLY:
+            case POWER:
+            case NEGATE:
+                return this.compileArithmetic(node, dst, precise, next);
+            case SIMPLIFY:
+                return children.size() == 1 && this.compile(children.get(0), dst, precise, operand, next);
+            case TO_DOUBLE:
+                return children.size() == 1 && this.compile(children.get(0), dst, true, true, next);
+            case BLOCK:
+                if (children.isEmpty()) {
+                    this.emit(BytecodeProgram.CONST, dst, this.constant(1));
+                }
+                for (AstNode child : children) {
+                    if (!this.compile(child, dst, false, operand, next)) {
+                        return false;
+                    }
+                }
+                return true;
+            case ASSIGN:
+                return !operand && this.compileAssign(children, dst, next);
+            case IF:
+                return this.compileIf(children, dst, operand, next);
+            case RANDOMLY_PICK:
+                return this.compileRandomlyPick(children, dst, operand, next);
+            case REPEAT:
+                return this.compileRepeat(children, dst, operand, next);
+            case FOR:
+                return this.compileFor(children, dst, operand, next);
+            default:
+                return false;
+        }
+    }
+
+    private boolean compileArithmetic(AstNode node, int dst, boolean precise, int depth) {
+        IList<AstNode> children = node.getChildren();
+        switch (node.getOpcode()) {
+            case NEGATE:
+            case SIN:
+            case COS:
+                if (children.size() != 1 || !this.compile(children.get(0), dst, precise, true, depth)) {
+                    return false;
+                }
+                this.emit(unaryInstruction(node.getOpcode()), dst, dst);
+                return true;
+            default:
+                if (children.size() != 2 || !this.compile(children.get(0), dst, precise, true, depth)) {
+                    return false;
+                }
+                int right = this.newRegister();
+                if (!this.compile(children.get(1), right, precise, true, depth)) {
+                    return false;
+                }
+                this.emit(binaryInstruction(node.getOpcode()), dst, dst, right);
+                return true;
+        }
+    }
+
+    private boolean compileAssign(IList<AstNode> children, int dst, int depth) {
+        if (children.size() != 2) {
+            return false;
+        }
+        AstNode var = unwrapVariable(children.get(0));
+        if (var == null || this.scopeNames.contains(var.getName())
+                || !this.compile(children.get(1), dst, false, false, depth)) {
+            return false;
+        }
+        String name = var.getName();
+        if (!this.storeNames.contains(name)) {
+            this.storeNames.add(name);
+        }
+        this.emit(BytecodeProgram.ASSIGN, this.global(name), dst, this.storeNames.indexOf(name));
+        return true;
+    }
+
+    private boolean compileIf(IList<AstNode> children, int dst, boolean operand, int depth) {
+        if (children.size() != 3) {
+            return false;
+        }
+        int cond = this.newRegister();
+        if (!this.compile(children.get(0), cond, false, operand, depth)) {
+            return false;
+        }
+        int toElse = this.emitJump(BytecodeProgram.JUMP_UNLESS_POSITIVE, cond);
+        if (!this.compile(children.get(1), dst, false, operand, depth)) {
+            return false;
+        }
+        int toEnd = this.emitJump(BytecodeProgram.JUMP);
+        this.patch(toElse);
+        if (!this.compile(children.get(2), dst, false, operand, depth)) {
+            return false;
+        }
+        this.patch(toEnd);
+        return true;
+    }
+
+    private boolean compileRandomlyPick(IList<AstNode> children, int dst, boolean operand, int depth) {
+        if (children.size() != 2) {
+            return false;
+        }
+        int toSecond = this.emitJump(BytecodeProgram.JUMP_RANDOMLY);
+        if (!this.compile(children.get(0), dst, false, operand, depth)) {
+            return false;
+        }
+        int toEnd = this.emitJump(BytecodeProgram.JUMP);
+        this.patch(toSecond);
+        if (!this.compile(children.get(1), dst, false, operand, depth)) {
+            return false;
+        }
+        this.patch(toEnd);
+        return true;
+    }
+
+    private boolean compileRepeat(IList<AstNode> children, int dst, boolean operand, int depth) {
+        if (children.size() != 2) {
+            return false;
+        }
+        // Mirrors ControlFlowManipulators.handleRepeat: the result is the sum of the
+        // remaining count before each iteration
+        int times = this.newRegister();
+        int one = this.newRegister();
+        int body = this.newRegister();
+        if (!this.compile(children.get(0), times, false, operand, depth)) {
+            return false;
+        }
+        this.emit(BytecodeProgram.CHECK_REPEAT, times);
+        this.emit(BytecodeProgram.CONST, dst, this.constant(0));
+        this.emit(BytecodeProgram.CONST, one, this.constant(1));
+        int loop = this.codeSize;
+        int toExit = this.emitJump(BytecodeProgram.JUMP_UNLESS_POSITIVE, times);
+        if (!this.compile(children.get(1), body, false, operand, depth)) {
+            return false;
+        }
+        this.emit(BytecodeProgram.ADD, dst, dst, times);
+        this.emit(BytecodeProgram.SUBTRACT, times, times, one);
+        this.emit(BytecodeProgram.JUMP, loop);
+        this.patch(toExit);
+        return true;
+    }
+
+    private boolean compileFor(IList<AstNode> children, int dst, boolean operand, int depth) {
+        if (children.size() != 5) {
+            return false;
+        }
+        AstNode var = unwrapVariable(children.get(2));
+        if (var == null || this.scopeNames.contains(var.getName())) {
+            return false;
+        }
+        // Mirrors ControlFlowManipulators.handleFor, which evaluates the start, end
+        // and step in that order and adds up every result of the body
+        int start = this.newRegister();
+        int end = this.newRegister();
+        int step = this.newRegister();
+        int count = this.newRegister();
+        int value = this.newRegister();
+        int body = this.newRegister();
+        if (!this.compile(children.get(0), start, false, operand, depth)
+                || !this.compile(children.get(1), end, false, operand, depth)
+                || !this.compile(children.get(3), step, false, operand, depth)) {
+            return false;
+        }
+        this.emit(BytecodeProgram.FOR_INIT, count, start, step);
+        this.emit(BytecodeProgram.CONST, dst, this.constant(0));
+        int loop = this.codeSize;
+        int toExit = this.emitJump(BytecodeProgram.JUMP_UNLESS_DIFFERENT, count, end);
+        this.emit(BytecodeProgram.MOVE, value, count);
+        this.emit(BytecodeProgram.ADD, count, count, step);
+
+        String name = var.getName();
+        if (!this.loopNames.contains(name)) {
+            this.loopNames.add(name);
+        }
+        this.scopeNames.add(name);
+        this.scopeRegisters.add(value);
+        boolean ok = this.compile(children.get(4), body, false, operand, depth);
+        this.scopeNames.remove();
+        this.scopeRegisters.remove();
+        if (!ok) {
+            return false;
+        }
+        this.emit(BytecodeProgram.ADD, dst, dst, body);
+        this.emit(BytecodeProgram.JUMP, loop);
+        this.patch(toExit);
+        return true;
+    }
+
+    /**
+     * Returns the variable wrapped in the given 'simplify(...)' node, or null if
+     * the node is anything else.
+     */
+    private static AstNode unwrapVariable(AstNode node) {
+        if (!node.isOperation() || node.getOpcode() != Opcode.SIMPLIFY || node.getChildren().size() != 1) {
+            return null;
+        }
+        AstNode var = node.getChildren().get(0);
+        return var.isVariable() ? var : null;
+    }
+
+    /**
+     * Returns the register to read the given variable from.
+     */
+    private int read(String name, boolean precise) {
+        for (int i = this.scopeNames.size() - 1; i >= 0; i--) {
+            if (this.scopeNames.get(i).equals(name)) {
+                return this.scopeRegisters.get(i);
+            }
+        }
+        if (!this.loadPrecise.containsKey(name)) {
+            this.loadNames.add(name);
+            this.loadPrecise.put(name, precise);
+        } else if (!precise) {
+            this.loadPrecise.put(name, false);
+        }
+        return this.global(name);
+    }
+
+    private int global(String name) {
+        Integer register = this.globals.getOrDefault(name, null);
+        if (register == null) {
+            register = this.newRegister();
+            this.globals.put(name, register);
+        }
+        return register;
+    }
+
+    private int newRegister() {
+        return this.registerCount++;
+    }
+
+    private int constant(double value) {
+        this.constants.addDouble(value);
+        return this.constants.size() - 1;
+    }
+
+    private void emit(int... words) {
+        if (this.codeSize + words.length > this.code.length) {
+            int[] bigger = new int[Math.max(this.code.length * 2, this.codeSize + words.length)];
+            System.arraycopy(this.code, 0, bigger, 0, this.codeSize);
+            this.code = bigger;
+        }
+        System.arraycopy(words, 0, this.code, this.codeSize, words.length);
+        this.codeSize += words.length;
+    }
+
+    /**
+     * Emits a jump whose target is filled in later by 'patch', and returns the
+     * position of that target.
+     */
+    private int emitJump(int instruction, int... operands) {
+        int[] words = new int[operands.length + 2];
+        words[0] = instruction;
+        System.arraycopy(operands, 0, words, 1, operands.length);
+        this.emit(words);
+        return this.codeSize - 1;
+    }
+
+    /**
+     * Points the jump emitted at the given position to the next instruction.
+     */
+    private void patch(int position) {
+        this.code[position] = this.codeSize;
+    }
+
+    private static int unaryInstruction(Opcode opcode) {
+        switch (opcode) {
+            case NEGATE:
+                return BytecodeProgram.NEGATE;
+            case SIN:
+                return BytecodeProgram.SIN;
+            case COS:
+                return BytecodeProgram.COS;
+            default:
+                throw new AssertionError(opcode);
+        }
+    }
+
+    private static int binaryInstruction(Opcode opcode) {
+        switch (opcode) {
+            case ADD:
+                return BytecodeProgram.ADD;
+            case SUBTRACT:
+                return BytecodeProgram.SUBTRACT;
+            case MULTIPLY:
+                return BytecodeProgram.MULTIPLY;
+            case DIVIDE:
+                return BytecodeProgram.DIVIDE;
+            case POWER:
+                return BytecodeProgram.POWER;
+            default:
+                throw new AssertionError(opcode);
+        }
+    }
+
+    private static String[] toArray(IList<String> list) {
+        String[] out = new String[list.size()];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = list.get(i);
+        }
+        return out;
+    }
+}
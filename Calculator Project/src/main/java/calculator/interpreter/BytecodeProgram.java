@@ -0,0 +1,130 @@
+package calculator.interpreter;
+
+import calculator.ast.AstNode;
+
+/**
+ * A normalized 'simplify(block(...))' tree compiled for the VirtualMachine.
+ *
+ * Each statement of the block is compiled on its own into a Unit. A unit whose
+ * statement has no loops or branches, or uses anything the BytecodeCompiler does
+ * not understand (symbolic results, plot(), user-registered functions, ...), has
+ * no code: the VM hands that statement to the interpreter instead.
+ *
+ * A compiled unit works on a register file of doubles. Its code is a flat int[]
+ * of instructions, each an opcode followed by its operands; register and jump
+ * operands are indexes into the register file and the code array respectively.
+ */
+final class BytecodeProgram {
+    // dst, constant index
+    static final int CONST = 0;
+    // dst, src
+    static final int MOVE = 1;
+    // dst, left, right
+    static final int ADD = 2;
+    static final int SUBTRACT = 3;
+    static final int MULTIPLY = 4;
+    static final int DIVIDE = 5;
+    static final int POWER = 6;
+    // dst, src
+    static final int NEGATE = 7;
+    static final int SIN = 8;
+    static final int COS = 9;
+    // variable register, src, write index: copies src into the variable's register
+    // and marks it to be stored back into the variable table
+    static final int ASSIGN = 10;
+    // target
+    static final int JUMP = 11;
+    // src, target: jumps unless the register is greater than 0
+    static final int JUMP_UNLESS_POSITIVE = 12;
+    // left, right, target: jumps unless the registers differ (the 'for' exit test)
+    static final int JUMP_UNLESS_DIFFERENT = 13;
+    // target: jumps half of the time (the 'randomlyPick' coin flip)
+    static final int JUMP_RANDOMLY = 14;
+    // dst, start, step: sets up a 'for' loop counter
+    static final int FOR_INIT = 15;
+    // src: rejects a negative 'repeat' count
+    static final int CHECK_REPEAT = 16;
+    static final int HALT = 17;
+
+    private final AstNode root;
+    private final Unit[] units;
+
+    BytecodeProgram(AstNode root, Unit[] units) {
+        this.root = root;
+        this.units = units;
+    }
+
+    /**
+     * Returns the 'simplify(block(...))' tree this program was compiled from.
+     */
+    AstNode getRoot() {
+        return this.root;
+    }
+
+    Unit[] getUnits() {
+        return this.units;
+    }
+
+    /**
+     * Returns 'true' if at least one statement was compiled, so running this
+     * program is not just interpreting every statement one after another.
+     */
+    boolean hasCompiledUnits() {
+        for (Unit unit : this.units) {
+            if (unit.isCompiled()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * One statement of the block, and its compiled form if it has one.
+     */
+    static final class Unit {
+        // The statement, for interpreting it when it has no code or must deoptimize
+        final AstNode statement;
+
+        final int[] code;
+        final double[] constants;
+        final int registerCount;
+        final int resultRegister;
+
+        // Global variables to copy into registers before running; 'loadPrecise'
+        // says whether a variable is only ever read inside 'toDouble'
+        final String[] loadNames;
+        final int[] loadRegisters;
+        final boolean[] loadPrecise;
+
+        // Loop variables, which must not be defined when the unit starts
+        final String[] loopNames;
+
+        // Variables the unit assigns to, and the registers they live in meanwhile
+        final String[] storeNames;
+        final int[] storeRegisters;
+
+        Unit(AstNode statement) {
+            this(statement, null, null, 0, 0, null, null, null, null, null, null);
+        }
+
+        Unit(AstNode statement, int[] code, double[] constants, int registerCount, int resultRegister,
+             String[] loadNames, int[] loadRegisters, boolean[] loadPrecise,
+             String[] loopNames, String[] storeNames, int[] storeRegisters) {
+            this.statement = statement;
+            this.code = code;
+            this.constants = constants;
+            this.registerCount = registerCount;
+            this.resultRegister = resultRegister;
+            this.loadNames = loadNames;
+            this.loadRegisters = loadRegisters;
+            this.loadPrecise = loadPrecise;
+            this.loopNames = loopNames;
+            this.storeNames = storeNames;
+            this.storeRegisters = storeRegisters;
+        }
+
+        boolean isCompiled() {
+            return this.code != null;
+        }
+    }
+}
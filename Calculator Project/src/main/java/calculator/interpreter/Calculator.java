@@ -4,33 +4,57 @@ import calculator.ast.AstManipulator;
 import calculator.ast.AstNode;
 import calculator.ast.BuiltinManipulators;
 import calculator.ast.ControlFlowManipulators;
+import calculator.ast.ExpressionCompiler;
 import calculator.ast.ExpressionManipulators;
+import calculator.ast.Opcode;
+import calculator.errors.EvaluationError;
+import calculator.errors.InterruptedError;
+import calculator.errors.QuitError;
 import calculator.gui.ImageDrawer;
 import calculator.parser.Parser;
-import datastructures.concrete.DoubleLinkedList;
-import datastructures.concrete.dictionaries.ArrayDictionary;
+import calculator.parser.StatementReader;
+import datastructures.concrete.ArrayList;
+import datastructures.concrete.dictionaries.ChainedHashDictionary;
 import datastructures.interfaces.IDictionary;
 import datastructures.interfaces.IList;
 
-import java.util.Iterator;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Calculator {
     // Components used by the calculator
     private Parser parser;
     private Interpreter interpreter;
+    private AstCache astCache;
 
     // State
-    private IDictionary<String, AstNode> variables;
+    private VariableTable variables;
+    private SimplifyMemo simplifyMemo;
     private ImageDrawer imageDrawer;
+    private CalculatorOptions options;
 
     // Internal data
     private IDictionary<String, AstManipulator> customFunctions;
     private IDictionary<String, AstManipulator> specialFunctions;
     private IDictionary<String, Integer> precedenceMap;
+    private long functionsVersion;
+
+    // Set once a built-in function is replaced; the bytecode VM and the expression
+    // compiler assume they are not
+    private boolean builtinsReplaced;
+
+    private static final int DEFAULT_AST_CACHE_CAPACITY = 256;
 
     private static final int STRONGEST_PRECEDENCE = 0;
     private static final int WEAKEST_PRECEDENCE = Integer.MAX_VALUE;
 
+    // Shared by every calculator, so no two function tables ever have the same version
+    private static final AtomicLong FUNCTION_TABLE_VERSIONS = new AtomicLong();
+
     public Calculator() {
         this(null);
     }
@@ -38,18 +62,22 @@ public class Calculator {
     public Calculator(ImageDrawer imageDrawer) {
         this.parser = new Parser();
         this.interpreter = new Interpreter();
+        this.astCache = new AstCache(DEFAULT_AST_CACHE_CAPACITY);
 
-        this.variables = new ArrayDictionary<>();
+        this.variables = new VariableTable();
+        this.simplifyMemo = new SimplifyMemo(this.variables);
         this.imageDrawer = imageDrawer;
+        this.options = new CalculatorOptions();
 
-        this.customFunctions = new ArrayDictionary<>();
-        this.specialFunctions = new ArrayDictionary<>();
-        this.precedenceMap = new ArrayDictionary<>();
+        this.customFunctions = new ChainedHashDictionary<>();
+        this.specialFunctions = new ChainedHashDictionary<>();
+        this.precedenceMap = new ChainedHashDictionary<>();
 
         // Your functions
         this.customFunctions.put("simplify", ExpressionManipulators::handleSimplify);
         this.customFunctions.put("toDouble", ExpressionManipulators::handleToDouble);
         this.customFunctions.put("plot", ExpressionManipulators::plot);
+        this.customFunctions.put("plotAdaptive", ExpressionManipulators::plotAdaptive);
 
         // Internal functions (that need to manipulate control flow or the environment somehow)
         this.specialFunctions.put("block", BuiltinManipulators::handleBlock);
@@ -70,66 +98,323 @@ public class Calculator {
         this.precedenceMap.put("/", 3);
         this.precedenceMap.put("+", 4);
         this.precedenceMap.put("-", 4);
+
+        this.functionsVersion = FUNCTION_TABLE_VERSIONS.incrementAndGet();
     }
 
     public void setImageDrawer(ImageDrawer imageDrawer) {
         this.imageDrawer = imageDrawer;
     }
 
+    /**
+     * Returns the options controlling how this calculator evaluates expressions.
+     * Changes to the returned object take effect on the next call to 'evaluate'.
+     */
+    public CalculatorOptions getOptions() {
+        return this.options;
+    }
+
+    /**
+     * Registers a function that runs after its arguments have been evaluated,
+     * replacing any existing function with the same name.
+     */
+    public void addCustomFunction(String name, AstManipulator function) {
+        this.customFunctions.put(name, function);
+        this.functionsVersion = FUNCTION_TABLE_VERSIONS.incrementAndGet();
+        this.builtinsReplaced |= Opcode.forName(name) != Opcode.CALL;
+    }
+
+    /**
+     * Registers a function that takes complete control of evaluating its arguments,
+     * replacing any existing function with the same name.
+     */
+    public void addSpecialFunction(String name, AstManipulator function) {
+        this.specialFunctions.put(name, function);
+        this.functionsVersion = FUNCTION_TABLE_VERSIONS.incrementAndGet();
+        this.builtinsReplaced |= Opcode.forName(name) != Opcode.CALL;
+
+        // Special functions change how inputs are normalized
+        this.astCache.clear();
+    }
+
+    /**
+     * Returns the cache of normalized ASTs this calculator keeps, keyed by input
+     * text. Use it to check hit/miss/eviction counts or to change its capacity.
+     */
+    public AstCache getAstCache() {
+        return this.astCache;
+    }
+
+    /**
+     * Registers a listener that is told whenever a variable is assigned, and
+     * whenever a variable that depends on it changes as a result.
+     */
+    public void subscribe(VariableListener listener) {
+        this.variables.addListener(listener);
+    }
+
+    /**
+     * Unregisters a listener added with 'subscribe'.
+     */
+    public void unsubscribe(VariableListener listener) {
+        this.variables.removeListener(listener);
+    }
+
+    /**
+     * Returns the memo of what each variable simplified to. Use it to check its
+     * hit and miss counts.
+     */
+    public SimplifyMemo getSimplifyMemo() {
+        return this.simplifyMemo;
+    }
+
     public String evaluate(String input) {
         if (input.trim().equals("")) {
             return "";
         }
         Environment env = this.prepareEnvironment();
-        AstNode ast = this.parser.parse(input + "\n");
-        AstNode normalizedAst = injectSimplify(env, ast);
-        AstNode output = this.interpreter.evaluate(env, normalizedAst);
+        AstNode normalizedAst = this.astCache.get(input);
+        if (normalizedAst == null) {
+            AstNode ast = this.parser.parse(input + "\n", this.options.getMaxDepth(), this.options.getParserBackend());
+            normalizedAst = injectSimplify(env, ast).intern();
+            this.interpreter.link(env, normalizedAst);
+            this.astCache.put(input, normalizedAst);
+        }
+        BytecodeProgram program = this.programFor(input, normalizedAst);
+        AstNode output = program != null
+                ? VirtualMachine.run(env, program)
+                : this.interpreter.evaluate(env, normalizedAst);
         return this.convertToString(output);
     }
 
+    /**
+     * Runs the script in the given UTF-8 file, as 'execute(Reader, Appendable)' does.
+     *
+     * @return  the number of statements that failed
+     */
+    public int execute(Path script, Appendable out) throws IOException {
+        try (Reader reader = Files.newBufferedReader(script, StandardCharsets.UTF_8)) {
+            return this.execute(reader, out);
+        }
+    }
+
+    /**
+     * Runs a script one statement at a time, writing what each evaluates to onto
+     * 'out', one line per statement, as soon as it has run.
+     *
+     * Only the statement being read is held in memory, so a script of any length
+     * runs in constant space. A statement that fails writes "ERROR (line N): ..."
+     * instead, where N is the line it starts on, and the script carries on with the
+     * next one. Blank lines and comments write nothing, and 'quit' or 'exit' stops
+     * the script.
+     *
+     * @return  the number of statements that failed
+     */
+    public int execute(Reader script, Appendable out) throws IOException {
+        StatementReader statements = new StatementReader(script);
+        int errors = 0;
+        try {
+            for (String statement = statements.next(); statement != null; statement = statements.next()) {
+                if (!this.executeStatement(statement, statements.getLine(), out)) {
+                    errors++;
+                }
+            }
+        } catch (QuitError ex) {
+            // Stop here
+        }
+        return errors;
+    }
+
+    /**
+     * Evaluates one statement of a script, writing what it evaluates to onto 'out'
+     * on a line of its own, or "ERROR (line N): ..." if it fails, where N is 'line'.
+     *
+     * Any failure of the statement itself is reported this way, including ones the
+     * calculator does not expect, such as raw strings or input nested so deeply
+     * that the parser runs out of stack.
+     *
+     * @return  false if the statement failed
+     * @throws QuitError         if the statement calls 'quit' or 'exit'
+     * @throws InterruptedError  if the thread is interrupted
+     */
+    public boolean executeStatement(String statement, int line, Appendable out) throws IOException {
+        String error;
+        try {
+            out.append(this.evaluate(statement)).append('\n');
+            return true;
+        } catch (QuitError | InterruptedError ex) {
+            throw ex;
+        } catch (EvaluationError ex) {
+            error = ex.getMessage();
+        } catch (StackOverflowError ex) {
+            error = "Statement is nested too deeply";
+        } catch (RuntimeException ex) {
+            error = ex.getMessage() == null ? ex.getClass().getSimpleName() : ex.toString();
+        }
+        out.append("ERROR (line ").append(String.valueOf(line)).append("): ").append(error).append('\n');
+        return false;
+    }
+
+    /**
+     * Returns the bytecode to run the given input with, compiling it if needed, or
+     * null if it should be interpreted.
+     */
+    private BytecodeProgram programFor(String input, AstNode normalizedAst) {
+        // The VM runs the built-in functions itself and does not tell subscribers
+        // about every assignment, so it steps aside in either case
+        if (!this.options.isBytecodeEnabled() || this.builtinsReplaced || this.variables.hasListeners()) {
+            return null;
+        }
+        BytecodeProgram program = this.astCache.getProgram(input);
+        if (program == null || program.getRoot() != normalizedAst) {
+            program = BytecodeCompiler.compile(normalizedAst);
+            this.astCache.putProgram(input, program);
+        }
+        return program.hasCompiledUnits() ? program : null;
+    }
+
+    /**
+     * Evaluates 'toDouble(expr)' once for every number in 'values', with the given
+     * variable set to that number, and returns the results in the same order.
+     *
+     * This is the same as evaluate'ing 'toDouble(expr)' after assigning each value
+     * to the variable, except that no variable is left behind and the expression
+     * is only parsed and compiled once.
+     *
+     * @throws EvaluationError  if the variable is already defined, or the expression
+     *                          does not evaluate to a number for some value
+     */
+    public double[] evaluateColumn(String expr, String var, double[] values) {
+        return this.evaluateColumns(expr, new String[] {var}, new double[][] {values});
+    }
+
+    /**
+     * Like 'evaluateColumn', but binds several variables at once: row i sets vars[j]
+     * to columns[j][i] for every j.
+     *
+     * @throws IllegalArgumentException  if there are no variables, a different number
+     *                                   of columns, or columns of different lengths
+     * @throws EvaluationError           if one of the variables is already defined, or
+     *                                   the expression does not evaluate to a number
+     *                                   for some row
+     */
+    public double[] evaluateColumns(String expr, String[] vars, double[][] columns) {
+        if (vars.length == 0 || vars.length != columns.length) {
+            throw new IllegalArgumentException("Expected one column per variable, and at least one variable");
+        }
+        int rows = columns[0].length;
+        for (double[] column : columns) {
+            if (column.length != rows) {
+                throw new IllegalArgumentException("All columns must have the same length");
+            }
+        }
+
+        Environment env = this.prepareEnvironment();
+        IList<AstNode> statements = this.parser.parse(
+                expr + "\n", this.options.getMaxDepth(), this.options.getParserBackend()).getChildren();
+        if (statements.size() != 1) {
+            throw new EvaluationError("Expected a single expression: " + expr);
+        }
+        AstNode ast = statements.get(0);
+
+        double[] out = new double[rows];
+        ScopeFrame frame = this.variables.pushFrame(vars);
+        try {
+            ExpressionCompiler.ColumnExpression compiled = ExpressionCompiler.compileColumns(ast, env, vars, true);
+            if (compiled != null) {
+                // Fast path: a chunk of rows at a time, one operation at a time
+                double[] chunk = new double[ExpressionCompiler.COLUMN_CHUNK_SIZE];
+                for (int from = 0; from < rows; from += chunk.length) {
+                    Interpreter.checkInterrupted();
+                    int length = Math.min(chunk.length, rows - from);
+                    compiled.evaluate(columns, from, length, chunk);
+                    System.arraycopy(chunk, 0, out, from, length);
+                }
+                return out;
+            }
+
+            // Slow path: interpret 'toDouble(expr)' row by row, with the variables in the frame
+            IList<AstNode> children = new ArrayList<>(1);
+            children.add(ast);
+            AstNode normalizedAst = injectSimplify(env, AstNode.operation("toDouble", children));
+            this.interpreter.link(env, normalizedAst);
+            for (int row = 0; row < rows; row++) {
+                for (int j = 0; j < vars.length; j++) {
+                    frame.set(j, columns[j][row]);
+                }
+                out[row] = this.interpreter.evaluate(env, normalizedAst).getNumericValue();
+            }
+            return out;
+        } finally {
+            this.variables.popFrame(frame);
+        }
+    }
+
     private Environment prepareEnvironment() {
         return new Environment(
                 this.variables,
                 this.imageDrawer,
                 this.customFunctions,
                 this.specialFunctions,
-                this.interpreter);
+                this.interpreter,
+                this.functionsVersion,
+                this.builtinsReplaced,
+                this.options,
+                this.simplifyMemo);
     }
 
-    private static AstNode injectSimplify(Environment env, AstNode node) {
-        return wrapSimplifyFunc(injectSimplifyHelper(env, node));
-    }
-
-    private static AstNode injectSimplifyHelper(Environment env, AstNode node) {
-        if (node.isNumber()) {
-            return node;
-        } else if (node.isVariable()) {
-            return node;
-        } else {
-            IList<AstNode> newChildren = new DoubleLinkedList<>();
-            for (AstNode oldChild : node.getChildren()) {
-                newChildren.add(injectSimplifyHelper(env, oldChild));
+    /**
+     * Wraps the whole tree, and every argument of every special function, in a call
+     * to 'simplify'. Works bottom-up with an explicit stack rather than recursion.
+     */
+    private static AstNode injectSimplify(Environment env, AstNode root) {
+        int maxDepth = env.getOptions().getMaxDepth();
+        IList<InjectTask> stack = new ArrayList<>();
+        AstNode result = root;
+        if (root.isOperation()) {
+            stack.add(new InjectTask(env, root));
+            result = null;
+        }
+        while (!stack.isEmpty()) {
+            InjectTask task = stack.get(stack.size() - 1);
+            if (result != null) {
+                task.newChildren.add(task.special ? wrapSimplifyFunc(result) : result);
+                result = null;
             }
 
-            if (env.getSpecialFunctions().containsKey(node.getName())) {
-                for (int i = 0; i < newChildren.size(); i++) {
-                    newChildren.set(i, wrapSimplifyFunc(newChildren.get(i)));
+            IList<AstNode> oldChildren = task.node.getChildren();
+            if (task.newChildren.size() < oldChildren.size()) {
+                AstNode child = oldChildren.get(task.newChildren.size());
+                if (child.isOperation()) {
+                    checkDepth(stack.size(), maxDepth);
+                    stack.add(new InjectTask(env, child));
+                } else {
+                    result = child;
                 }
-
-                return wrapSimplifyFunc(new AstNode(node.getName(), newChildren));
             } else {
-                return new AstNode(node.getName(), newChildren);
+                // 'withChildren' hands back the node itself when no child changed, so
+                // subtrees that need no wrapping are shared rather than copied
+                stack.remove();
+                AstNode out = task.node.withChildren(task.newChildren);
+                result = task.special ? wrapSimplifyFunc(out) : out;
             }
         }
+        return wrapSimplifyFunc(result);
+    }
+
+    private static void checkDepth(int depth, int maxDepth) {
+        if (depth >= maxDepth) {
+            throw new EvaluationError("Expression is nested more than " + maxDepth + " levels deep");
+        }
     }
 
     private static AstNode wrapSimplifyFunc(AstNode inner) {
-        if (inner.isOperation() && inner.getName().equals("simplify")) {
+        if (inner.isOperation() && inner.getOpcode() == Opcode.SIMPLIFY) {
             return inner;
         } else {
-            IList<AstNode> children = new DoubleLinkedList<>();
+            IList<AstNode> children = new ArrayList<>(1);
             children.add(inner);
-            return new AstNode("simplify", children);
+            return AstNode.operation("simplify", children);
         }
     }
 
@@ -139,57 +424,112 @@ public class Calculator {
      * It doesn't really need to be public, but it's handy for debugging.
      */
     public String convertToString(AstNode node) {
-        return this.convertToString(node, WEAKEST_PRECEDENCE);
+        // Prints the tree into a single builder, visiting nodes with an explicit
+        // stack so arbitrarily deep trees cannot overflow the thread's stack
+        int maxDepth = this.options.getMaxDepth();
+        StringBuilder out = new StringBuilder();
+        IList<PrintTask> stack = new ArrayList<>();
+        stack.add(new PrintTask(node, WEAKEST_PRECEDENCE));
+        while (!stack.isEmpty()) {
+            PrintTask task = stack.get(stack.size() - 1);
+            AstNode current = task.node;
+            if (!current.isOperation()) {
+                stack.remove();
+                appendLeaf(out, current);
+                continue;
+            }
+
+            Opcode opcode = current.getOpcode();
+            IList<AstNode> children = current.getChildren();
+            int childCount = opcode == Opcode.NEGATE ? 1 : children.size();
+            if (task.nextChild == 0) {
+                this.openOperation(out, task);
+            } else if (task.nextChild < childCount && opcode != Opcode.NEGATE) {
+                out.append(opcode.isInfix() ? " " + current.getName() + " " : ", ");
+            }
+
+            if (task.nextChild < childCount) {
+                checkDepth(stack.size(), maxDepth);
+                stack.add(new PrintTask(children.get(task.nextChild), task.childPrecedenceLevel));
+                task.nextChild++;
+            } else {
+                stack.remove();
+                if (!opcode.isInfix() && opcode != Opcode.NEGATE) {
+                    out.append(')');
+                }
+                if (task.parenthesized) {
+                    out.append(')');
+                }
+            }
+        }
+        return out.toString();
     }
 
-    private String convertToString(AstNode node, int parentPrecedenceLevel) {
+    private static void appendLeaf(StringBuilder out, AstNode node) {
         if (node.isNumber()) {
             double val = node.getNumericValue();
             if (val == (long) val) {
-                return String.format("%d", (long) val);
+                out.append((long) val);
             } else {
-                return String.format("%s", val);
+                out.append(val);
             }
-        } else if (node.isVariable()) {
-            return node.getName();
         } else {
-            String name = node.getName();
-
-            boolean hasPrecedence = this.precedenceMap.containsKey(name);
-            int currPrecedenceLevel = hasPrecedence ? this.precedenceMap.get(name) : STRONGEST_PRECEDENCE;
-            int childPrecedenceLevel = hasPrecedence ? currPrecedenceLevel : WEAKEST_PRECEDENCE;
+            out.append(node.getName());
+        }
+    }
 
-            IList<String> children = new DoubleLinkedList<>();
-            for (AstNode child : node.getChildren()) {
-                children.add(this.convertToString(child, childPrecedenceLevel));
-            }
+    /**
+     * Prints everything that comes before the first child of the task's operation,
+     * and works out how its children should be printed.
+     */
+    private void openOperation(StringBuilder out, PrintTask task) {
+        String name = task.node.getName();
+        Integer precedence = this.precedenceMap.getOrDefault(name, null);
+        boolean hasPrecedence = precedence != null;
+        int currPrecedenceLevel = hasPrecedence ? precedence : STRONGEST_PRECEDENCE;
+        task.childPrecedenceLevel = hasPrecedence ? currPrecedenceLevel : WEAKEST_PRECEDENCE;
+        task.parenthesized = currPrecedenceLevel > task.parentPrecedenceLevel;
 
-            String out;
-            if ("-+*/^".contains(name)) {
-                out = this.join(" " + name + " ", children);
-            } else if ("negate".equals(name)) {
-                out = "-" + children.get(0);
-            } else {
-                out = name + "(" + this.join(", ", children) + ")";
-            }
+        if (task.parenthesized) {
+            out.append('(');
+        }
+        Opcode opcode = task.node.getOpcode();
+        if (opcode == Opcode.NEGATE) {
+            out.append('-');
+        } else if (!opcode.isInfix()) {
+            out.append(name).append('(');
+        }
+    }
 
-            if (currPrecedenceLevel > parentPrecedenceLevel) {
-                out = "(" + out + ")";
-            }
+    /**
+     * An operation whose children are being normalized by 'injectSimplify'.
+     */
+    private static class InjectTask {
+        public final AstNode node;
+        public final boolean special;
+        public final IList<AstNode> newChildren;
 
-            return out;
+        public InjectTask(Environment env, AstNode node) {
+            this.node = node;
+            this.special = env.getSpecialFunctions().containsKey(node.getName());
+            this.newChildren = new ArrayList<>(node.getChildren().size());
         }
     }
 
-    private String join(String connector, IList<String> items) {
-        String out = "";
-        if (!items.isEmpty()) {
-            Iterator<String> iter = items.iterator();
-            out = iter.next();
-            while (iter.hasNext()) {
-                out += connector + iter.next();
-            }
+    /**
+     * A node being printed by 'convertToString'.
+     */
+    private static class PrintTask {
+        public final AstNode node;
+        public final int parentPrecedenceLevel;
+        public int childPrecedenceLevel;
+        public boolean parenthesized;
+        public int nextChild;
+
+        public PrintTask(AstNode node, int parentPrecedenceLevel) {
+            this.node = node;
+            this.parentPrecedenceLevel = parentPrecedenceLevel;
+            this.nextChild = 0;
         }
-        return out;
     }
 }
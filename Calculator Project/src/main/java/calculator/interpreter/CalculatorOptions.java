@@ -0,0 +1,140 @@
+package calculator.interpreter;
+
+import calculator.parser.Parser;
+
+/**
+ * Tuning knobs that control how a Calculator evaluates expressions.
+ *
+ * Apart from the maximum depth, none of these options change what an expression
+ * evaluates to: they only change how the calculator goes about computing it. (The
+ * parser backend may change the wording of syntax errors, but not which inputs are
+ * errors.)
+ */
+public class CalculatorOptions {
+    /**
+     * Pass this to 'setJitThreshold' to never compile expressions into method handles.
+     */
+    public static final int JIT_DISABLED = -1;
+
+    /**
+     * Pass this to 'setParallelPlotThreshold' to always sample plots on one thread.
+     */
+    public static final int PARALLEL_DISABLED = -1;
+
+    private static final int DEFAULT_JIT_THRESHOLD = 10000;
+    private static final int DEFAULT_PARALLEL_PLOT_THRESHOLD = 50000;
+    private static final int DEFAULT_MAX_DEPTH = 1000000;
+
+    private int jitThreshold;
+    private int parallelPlotThreshold;
+    private int maxDepth;
+    private boolean bytecodeEnabled;
+    private Parser.Backend parserBackend;
+
+    public CalculatorOptions() {
+        this.jitThreshold = DEFAULT_JIT_THRESHOLD;
+        this.parallelPlotThreshold = DEFAULT_PARALLEL_PLOT_THRESHOLD;
+        this.maxDepth = DEFAULT_MAX_DEPTH;
+        this.bytecodeEnabled = true;
+        this.parserBackend = Parser.Backend.ANTLR;
+    }
+
+    /**
+     * Returns how many times plot() and the loop builtins evaluate a compiled
+     * expression before recompiling it into a single MethodHandle chain, or
+     * JIT_DISABLED if they never do.
+     */
+    public int getJitThreshold() {
+        return this.jitThreshold;
+    }
+
+    /**
+     * Sets how many evaluations it takes before an expression is recompiled into a
+     * MethodHandle chain. Pass JIT_DISABLED to turn this tier off entirely.
+     *
+     * @throws IllegalArgumentException  if the threshold is negative but not JIT_DISABLED
+     */
+    public void setJitThreshold(int jitThreshold) {
+        if (jitThreshold < 0 && jitThreshold != JIT_DISABLED) {
+            throw new IllegalArgumentException("Invalid JIT threshold: " + jitThreshold);
+        }
+        this.jitThreshold = jitThreshold;
+    }
+
+    /**
+     * Returns how many points a plot must have before plot() samples a compiled
+     * expression on several threads, or PARALLEL_DISABLED if it never does.
+     */
+    public int getParallelPlotThreshold() {
+        return this.parallelPlotThreshold;
+    }
+
+    /**
+     * Sets how many points a plot must have before it is sampled in parallel. The
+     * points are the same either way. Pass PARALLEL_DISABLED to always sample on the
+     * calling thread.
+     *
+     * @throws IllegalArgumentException  if the threshold is negative but not PARALLEL_DISABLED
+     */
+    public void setParallelPlotThreshold(int parallelPlotThreshold) {
+        if (parallelPlotThreshold < 0 && parallelPlotThreshold != PARALLEL_DISABLED) {
+            throw new IllegalArgumentException("Invalid parallel plot threshold: " + parallelPlotThreshold);
+        }
+        this.parallelPlotThreshold = parallelPlotThreshold;
+    }
+
+    /**
+     * Returns how deeply expressions may be nested before the calculator refuses
+     * to parse, normalize, evaluate or print them.
+     */
+    public int getMaxDepth() {
+        return this.maxDepth;
+    }
+
+    /**
+     * Sets how deeply expressions may be nested. The calculator walks expressions
+     * with explicit work stacks rather than recursion, so this limit (not the size
+     * of the thread's stack) decides how deep an expression can be, and bounds how
+     * much memory those work stacks use.
+     *
+     * @throws IllegalArgumentException  if the depth is less than 1
+     */
+    public void setMaxDepth(int maxDepth) {
+        if (maxDepth < 1) {
+            throw new IllegalArgumentException("Invalid maximum depth: " + maxDepth);
+        }
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Returns 'true' if programs with loops or branches are compiled to bytecode
+     * and run on the VirtualMachine, rather than interpreted.
+     */
+    public boolean isBytecodeEnabled() {
+        return this.bytecodeEnabled;
+    }
+
+    /**
+     * Turns the bytecode VM on or off. It is on by default.
+     */
+    public void setBytecodeEnabled(boolean bytecodeEnabled) {
+        this.bytecodeEnabled = bytecodeEnabled;
+    }
+
+    /**
+     * Returns which parser turns input into trees.
+     */
+    public Parser.Backend getParserBackend() {
+        return this.parserBackend;
+    }
+
+    /**
+     * Chooses which parser turns input into trees. The ANTLR parser is the default.
+     */
+    public void setParserBackend(Parser.Backend parserBackend) {
+        if (parserBackend == null) {
+            throw new IllegalArgumentException("The parser backend cannot be null");
+        }
+        this.parserBackend = parserBackend;
+    }
+}
@@ -21,22 +21,34 @@ import datastructures.interfaces.IDictionary;
  * the code you were provided.
  */
 public class Environment {
-    private IDictionary<String, AstNode> variables;
+    private VariableTable variables;
     private ImageDrawer imageDrawer;
     private IDictionary<String, AstManipulator> customFunctions;
     private IDictionary<String, AstManipulator> specialFunctions;
     private Interpreter interpreter;
+    private long functionsVersion;
+    private boolean builtinsReplaced;
+    private CalculatorOptions options;
+    private SimplifyMemo simplifyMemo;
 
-    public Environment(IDictionary<String, AstNode> variables,
+    public Environment(VariableTable variables,
                        ImageDrawer imageDrawer,
                        IDictionary<String, AstManipulator> customFunctions,
                        IDictionary<String, AstManipulator> specialFunctions,
-                       Interpreter interpreter) {
+                       Interpreter interpreter,
+                       long functionsVersion,
+                       boolean builtinsReplaced,
+                       CalculatorOptions options,
+                       SimplifyMemo simplifyMemo) {
         this.variables = variables;
         this.imageDrawer = imageDrawer;
         this.customFunctions = customFunctions;
         this.specialFunctions = specialFunctions;
         this.interpreter = interpreter;
+        this.functionsVersion = functionsVersion;
+        this.builtinsReplaced = builtinsReplaced;
+        this.options = options;
+        this.simplifyMemo = simplifyMemo;
     }
 
     /**
@@ -46,6 +58,16 @@ public class Environment {
         return this.variables;
     }
 
+    /**
+     * Returns the same variables as 'getVariables()', along with their versions
+     * and dependency graph.
+     *
+     * You should ignore this method.
+     */
+    public VariableTable getVariableTable() {
+        return this.variables;
+    }
+
     /**
      * Returns a class that contains a variety of useful methods for
      * drawing and plotting data.
@@ -80,6 +102,45 @@ public class Environment {
         return this.specialFunctions;
     }
 
+    /**
+     * Returns a number identifying the current contents of the custom and special
+     * function tables. It changes whenever a function is registered.
+     *
+     * You should ignore this method.
+     */
+    public long getFunctionsVersion() {
+        return this.functionsVersion;
+    }
+
+    /**
+     * Returns 'true' if a function has been registered under the name of one of
+     * the built-in operations, such as '+' or 'sin'. Code that computes those
+     * operations itself, rather than through the function tables, must step aside.
+     *
+     * You should ignore this method.
+     */
+    public boolean areBuiltinsReplaced() {
+        return this.builtinsReplaced;
+    }
+
+    /**
+     * Returns the options controlling how expressions are evaluated.
+     *
+     * You should ignore this method.
+     */
+    public CalculatorOptions getOptions() {
+        return this.options;
+    }
+
+    /**
+     * Returns the memo of what each variable simplified to.
+     *
+     * You should ignore this method.
+     */
+    public SimplifyMemo getSimplifyMemo() {
+        return this.simplifyMemo;
+    }
+
     /**
      * Returns the interpreter that is currently executing the AST.
      *
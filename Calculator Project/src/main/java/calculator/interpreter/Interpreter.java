@@ -1,37 +1,186 @@
 package calculator.interpreter;
 
+import calculator.ast.AstManipulator;
 import calculator.ast.AstNode;
-import datastructures.concrete.DoubleLinkedList;
+import calculator.ast.FunctionBinding;
+import calculator.ast.Opcode;
+import calculator.errors.EvaluationError;
+import calculator.errors.InterruptedError;
+import datastructures.concrete.ArrayList;
+import datastructures.concrete.dictionaries.ChainedHashDictionary;
+import datastructures.interfaces.IDictionary;
 import datastructures.interfaces.IList;
 
 public class Interpreter {
+    // The function each operation last resolved to. Trees are shared between
+    // calculators, so this lives here rather than on the nodes: built-in
+    // operations are found by opcode, and everything else by name
+    private final FunctionBinding[] opcodeBindings;
+    private final IDictionary<String, FunctionBinding> callBindings;
+
+    public Interpreter() {
+        this.opcodeBindings = new FunctionBinding[Opcode.values().length];
+        this.callBindings = new ChainedHashDictionary<>();
+    }
+
+    /**
+     * Evaluates the given tree.
+     *
+     * Regular operations are evaluated with an explicit work stack rather than by
+     * recursion, so an expression can be as deep as the environment's maximum depth
+     * allows no matter how small the thread's stack is. Special functions still
+     * call back into this method for the children they choose to evaluate.
+     *
+     * @throws EvaluationError  if the tree is nested more deeply than the maximum depth
+     * @throws InterruptedError  if the current thread has been interrupted
+     */
     public AstNode evaluate(Environment env, AstNode node) {
-        if (node.isNumber()) {
+        if (!node.isOperation()) {
             return node;
-        } else if (node.isVariable()) {
-            return node;
-        } else if (node.isOperation()) {
-            String nodeName = node.getName();
-            if (env.getSpecialFunctions().containsKey(nodeName)) {
-                // Special functions take complete control
-                return env.getSpecialFunctions().get(nodeName).manipulate(env, node);
+        }
+        checkInterrupted();
+        int maxDepth = env.getOptions().getMaxDepth();
+        IList<Task> stack = new ArrayList<>();
+        AstNode result = this.start(env, node, stack, maxDepth);
+        while (!stack.isEmpty()) {
+            Task task = stack.get(stack.size() - 1);
+            if (result != null) {
+                task.addResult(result);
+                result = null;
+            }
+
+            IList<AstNode> oldChildren = task.node.getChildren();
+            if (task.next < oldChildren.size()) {
+                result = this.start(env, oldChildren.get(task.next), stack, maxDepth);
             } else {
                 // Regular, custom functions are executed normally:
                 // we first execute the children before handing control back
                 // to the regular function (if one exists)
-                IList<AstNode> children = new DoubleLinkedList<>();
-                for (AstNode oldChild : node.getChildren()) {
-                    children.add(evaluate(env, oldChild));
+                stack.remove();
+                AstNode output = task.children == null ? task.node : task.node.withChildren(task.children);
+                AstManipulator manipulator = task.binding.getManipulator();
+                if (manipulator != null) {
+                    output = manipulator.manipulate(env, output);
                 }
+                result = output;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stops evaluation if the current thread has been interrupted, clearing the
+     * interrupt so the thread can go on to evaluate something else.
+     *
+     * Anything that may run for a long time without calling 'evaluate', such as a
+     * loop over a compiled expression, should call this every so often.
+     *
+     * @throws InterruptedError  if the current thread has been interrupted
+     */
+    public static void checkInterrupted() {
+        if (Thread.interrupted()) {
+            throw new InterruptedError();
+        }
+    }
+
+    /**
+     * Starts evaluating the given node. Returns its value if it can be computed
+     * right away, or pushes a task for it and returns null otherwise.
+     */
+    private AstNode start(Environment env, AstNode node, IList<Task> stack, int maxDepth) {
+        if (!node.isOperation()) {
+            return node;
+        }
+        FunctionBinding binding = this.resolve(env, node);
+        if (binding.isSpecial()) {
+            // Special functions take complete control
+            return binding.getManipulator().manipulate(env, node);
+        }
+        if (stack.size() >= maxDepth) {
+            throw new EvaluationError("Expression is nested more than " + maxDepth + " levels deep");
+        }
+        stack.add(new Task(node, binding));
+        return null;
+    }
 
-                AstNode output = new AstNode(node.getName(), children);
-                if (env.getCustomFunctions().containsKey(nodeName)) {
-                    output = env.getCustomFunctions().get(nodeName).manipulate(env, output);
+    /**
+     * Resolves the function of every operation in the given tree ahead of time, so
+     * evaluating the tree does not need to look any function up in the function
+     * tables.
+     *
+     * Linking is only an optimization: 'evaluate' resolves any operation that was
+     * not linked, or was linked before a function was registered.
+     */
+    public void link(Environment env, AstNode node) {
+        IList<AstNode> pending = new ArrayList<>();
+        pending.add(node);
+        while (!pending.isEmpty()) {
+            AstNode current = pending.remove();
+            if (current.isOperation()) {
+                this.resolve(env, current);
+                for (AstNode child : current.getChildren()) {
+                    pending.add(child);
                 }
-                return output;
             }
-        } else {
-            throw new AssertionError();
+        }
+    }
+
+    private FunctionBinding resolve(Environment env, AstNode node) {
+        Opcode opcode = node.getOpcode();
+        FunctionBinding binding = opcode == Opcode.CALL
+                ? this.callBindings.getOrDefault(node.getName(), null)
+                : this.opcodeBindings[opcode.ordinal()];
+        long version = env.getFunctionsVersion();
+        if (binding == null || binding.getVersion() != version) {
+            String name = node.getName();
+            AstManipulator special = env.getSpecialFunctions().getOrDefault(name, null);
+            if (special != null) {
+                binding = new FunctionBinding(version, special, true);
+            } else {
+                binding = new FunctionBinding(version, env.getCustomFunctions().getOrDefault(name, null), false);
+            }
+            if (opcode == Opcode.CALL) {
+                this.callBindings.put(name, binding);
+            } else {
+                this.opcodeBindings[opcode.ordinal()] = binding;
+            }
+        }
+        return binding;
+    }
+
+    /**
+     * An operation whose children are being evaluated.
+     */
+    private static class Task {
+        public final AstNode node;
+        public final FunctionBinding binding;
+
+        // The index of the next child to evaluate
+        public int next;
+
+        // The evaluated children, or null while every child so far evaluated to itself
+        public IList<AstNode> children;
+
+        public Task(AstNode node, FunctionBinding binding) {
+            this.node = node;
+            this.binding = binding;
+            this.next = 0;
+            this.children = null;
+        }
+
+        public void addResult(AstNode result) {
+            IList<AstNode> oldChildren = this.node.getChildren();
+            if (this.children == null && result != oldChildren.get(this.next)) {
+                // Only copy the children once one of them actually changes
+                this.children = new ArrayList<>(oldChildren.size());
+                for (int i = 0; i < this.next; i++) {
+                    this.children.add(oldChildren.get(i));
+                }
+            }
+            if (this.children != null) {
+                this.children.add(result);
+            }
+            this.next++;
         }
     }
 }
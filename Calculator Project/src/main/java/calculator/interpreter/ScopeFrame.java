@@ -0,0 +1,85 @@
+package calculator.interpreter;
+
+import calculator.ast.AstNode;
+
+/**
+ * A set of short-lived numeric variables, such as the variable a loop counts with.
+ *
+ * A frame is pushed onto a VariableTable with 'pushFrame' and must be removed with
+ * 'popFrame' once the loop is done, typically in a 'finally' block so the variables
+ * never outlive the loop even if it fails. While a frame is on the table, its
+ * variables shadow any global variable with the same name.
+ *
+ * Each variable lives in a numbered slot: the order the names were given when
+ * pushing the frame. Updating a slot only stores a double; no AstNode is built
+ * unless something reads the variable by name. Nor does it change the version of the
+ * whole table: only the slot's own version moves.
+ */
+public class ScopeFrame {
+    private final VariableTable table;
+    private final ScopeFrame parent;
+    private final String[] names;
+    private final double[] values;
+    private final long[] versions;
+    private final AstNode[] nodes;
+
+    ScopeFrame(VariableTable table, ScopeFrame parent, String[] names, long version) {
+        this.table = table;
+        this.parent = parent;
+        this.names = names.clone();
+        this.values = new double[names.length];
+        this.versions = new long[names.length];
+        this.nodes = new AstNode[names.length];
+        for (int i = 0; i < names.length; i++) {
+            this.versions[i] = version;
+        }
+    }
+
+    /**
+     * Sets the variable in the given slot to the given number.
+     *
+     * @throws IndexOutOfBoundsException  if there is no such slot
+     */
+    public void set(int slot, double value) {
+        this.values[slot] = value;
+        this.nodes[slot] = null;
+        this.versions[slot] = this.table.nextFrameVersion();
+    }
+
+    /**
+     * Returns the number stored in the given slot.
+     *
+     * @throws IndexOutOfBoundsException  if there is no such slot
+     */
+    public double get(int slot) {
+        return this.values[slot];
+    }
+
+    /**
+     * Returns the slot holding the variable with the given name, or -1 if this
+     * frame has no such variable.
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < this.names.length; i++) {
+            if (this.names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    ScopeFrame getParent() {
+        return this.parent;
+    }
+
+    long getVersion(int slot) {
+        return this.versions[slot];
+    }
+
+    AstNode getNode(int slot) {
+        if (this.nodes[slot] == null) {
+            this.nodes[slot] = new AstNode(this.values[slot]);
+        }
+        return this.nodes[slot];
+    }
+}
@@ -0,0 +1,188 @@
+package calculator.interpreter;
+
+import calculator.ast.AstNode;
+import datastructures.concrete.ArrayList;
+import datastructures.concrete.dictionaries.ChainedHashDictionary;
+import datastructures.interfaces.IDictionary;
+import datastructures.interfaces.IList;
+
+/**
+ * Remembers what each variable simplified to, so reading a variable defined in
+ * terms of other variables does not re-simplify its whole definition every time.
+ *
+ * Every entry records the version of each variable that was read while computing
+ * it (directly or through other variables). An entry is only reused while all of
+ * those versions are unchanged, so redefining or removing any variable upstream
+ * invalidates it automatically. When no global variable has changed since an entry
+ * was last checked, reusing it takes constant time, even while a loop updates its
+ * variable; only entries that read a loop variable check it on every lookup.
+ *
+ * A memo is tied to the VariableTable it was created for.
+ */
+public class SimplifyMemo {
+    private VariableTable variables;
+    private IDictionary<String, Entry> symbolicEntries;
+    private IDictionary<String, Entry> preciseEntries;
+
+    // The dependencies of every entry currently being computed, innermost first
+    private Dependencies current;
+
+    private long hits;
+    private long misses;
+
+    public SimplifyMemo(VariableTable variables) {
+        this.variables = variables;
+        this.symbolicEntries = new ChainedHashDictionary<>();
+        this.preciseEntries = new ChainedHashDictionary<>();
+        this.current = null;
+    }
+
+    /**
+     * Returns what the given variable simplified to the last time it was computed,
+     * or null if there is no such result or it is out of date.
+     *
+     * @param precise  'true' if the result should be the one computed in precise mode
+     */
+    public AstNode lookup(String name, boolean precise) {
+        Entry entry = this.entries(precise).getOrDefault(name, null);
+        if (entry == null || !this.isCurrent(entry)) {
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        if (this.current != null) {
+            for (int i = 0; i < entry.names.length; i++) {
+                this.current.add(entry.names[i], entry.versions[i]);
+            }
+        }
+        return entry.result;
+    }
+
+    /**
+     * Records that the variable with the given name was read. Call this when
+     * reading a variable that is not defined: defining it later must invalidate
+     * any result that relied on it being undefined.
+     */
+    public void recordRead(String name) {
+        if (this.current != null) {
+            this.current.add(name, this.variables.getVersion(name));
+        }
+    }
+
+    /**
+     * Starts computing what the given (defined) variable simplifies to. Every call
+     * must be matched by a call to either 'end' or 'abort'.
+     */
+    public void begin(String name) {
+        this.current = new Dependencies(this.current);
+        this.current.add(name, this.variables.getVersion(name));
+    }
+
+    /**
+     * Stores the result of the computation started by the matching 'begin' call.
+     */
+    public void end(String name, boolean precise, AstNode result) {
+        Dependencies deps = this.current;
+        this.current = deps.parent;
+
+        Entry entry = new Entry(result, deps, this.variables.getVersion());
+        this.entries(precise).put(name, entry);
+        if (this.current != null) {
+            for (int i = 0; i < entry.names.length; i++) {
+                this.current.add(entry.names[i], entry.versions[i]);
+            }
+        }
+    }
+
+    /**
+     * Abandons the computation started by the matching 'begin' call, for example
+     * because it threw an exception. Nothing is stored.
+     */
+    public void abort() {
+        this.current = this.current.parent;
+    }
+
+    /**
+     * Returns how many lookups found an up-to-date result.
+     */
+    public long getHitCount() {
+        return this.hits;
+    }
+
+    /**
+     * Returns how many lookups found no result, or an out-of-date one.
+     */
+    public long getMissCount() {
+        return this.misses;
+    }
+
+    private IDictionary<String, Entry> entries(boolean precise) {
+        return precise ? this.preciseEntries : this.symbolicEntries;
+    }
+
+    private boolean isCurrent(Entry entry) {
+        long tableVersion = this.variables.getVersion();
+        if (entry.checkedAt == tableVersion && !entry.readsFrame) {
+            return true;
+        }
+        for (int i = 0; i < entry.names.length; i++) {
+            if (this.variables.getVersion(entry.names[i]) != entry.versions[i]) {
+                return false;
+            }
+        }
+        entry.checkedAt = tableVersion;
+        return true;
+    }
+
+    private static class Entry {
+        public final AstNode result;
+        public final String[] names;
+        public final long[] versions;
+
+        // The table version at which every dependency was last confirmed unchanged
+        public long checkedAt;
+
+        // Frame writes don't change the table version, so these must always be checked
+        public final boolean readsFrame;
+
+        public Entry(AstNode result, Dependencies deps, long checkedAt) {
+            this.result = result;
+            this.names = new String[deps.names.size()];
+            this.versions = new long[deps.names.size()];
+            for (int i = 0; i < this.names.length; i++) {
+                this.names[i] = deps.names.get(i);
+                this.versions[i] = deps.versions.get(this.names[i]);
+            }
+            this.checkedAt = checkedAt;
+            this.readsFrame = readsFrame(this.versions);
+        }
+
+        private static boolean readsFrame(long[] versions) {
+            for (long version : versions) {
+                if (VariableTable.isFrameVersion(version)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Dependencies {
+        public final Dependencies parent;
+        public final IList<String> names;
+        public final IDictionary<String, Long> versions;
+
+        public Dependencies(Dependencies parent) {
+            this.parent = parent;
+            this.names = new ArrayList<>();
+            this.versions = new ChainedHashDictionary<>();
+        }
+
+        public void add(String name, long version) {
+            if (!this.versions.containsKey(name)) {
+                this.names.add(name);
+                this.versions.put(name, version);
+            }
+        }
+    }
+}
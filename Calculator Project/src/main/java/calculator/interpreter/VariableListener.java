@@ -0,0 +1,18 @@
+package calculator.interpreter;
+
+import calculator.ast.AstNode;
+
+/**
+ * Receives notifications when a calculator variable changes. See
+ * 'Calculator.subscribe'.
+ */
+@FunctionalInterface
+public interface VariableListener {
+    /**
+     * Called after the named variable changes, either because it was assigned
+     * or because a variable it depends on was.
+     *
+     * @param value  the variable's new value, simplified
+     */
+    public void variableChanged(String name, AstNode value);
+}
@@ -0,0 +1,392 @@
+package calculator.interpreter;
+
+import calculator.ast.AstNode;
+import calculator.errors.EvaluationError;
+import datastructures.concrete.ArrayList;
+import datastructures.concrete.dictionaries.ChainedHashDictionary;
+import datastructures.interfaces.IDictionary;
+import datastructures.interfaces.IList;
+import misc.exceptions.NoSuchKeyException;
+
+/**
+ * The dictionary of variables a Calculator evaluates expressions against.
+ *
+ * This behaves like any other IDictionary, except that it also keeps a version
+ * number for every variable name. A name's version changes whenever that variable
+ * is defined, redefined or removed, so anything computed from a variable can later
+ * check whether it is still up to date. The table as a whole also has a version,
+ * which changes whenever any global variable does, or a frame is pushed or popped.
+ *
+ * Versions are only ever compared for equality: a name that was never defined has
+ * version 0. Frame variables are numbered separately, with negative versions, so a
+ * loop updating its variable does not change the version of the whole table.
+ *
+ * The table also tracks which variables each definition reads, forming a dependency
+ * graph. It is updated on every put and remove, and lets callers find everything
+ * downstream of a variable, reject definitions that would form a cycle, and notify
+ * VariableListeners when a variable changes.
+ *
+ * Loops bind their variable in a ScopeFrame pushed onto the table, rather than
+ * as a global variable. Reads see frame variables first. Frame variables cannot
+ * be assigned, are not part of the dependency graph, and are not counted by
+ * 'size()'.
+ */
+public class VariableTable implements IDictionary<String, AstNode> {
+    // Removed and never-defined variables that something reads keep a slot with
+    // a null value, so their version and dependents survive
+    private IDictionary<String, Slot> slots;
+    private int size;
+    private long version;
+    private long frameVersion;
+    private IList<VariableListener> listeners;
+
+    // The innermost frame; null when no loop is running
+    private ScopeFrame frames;
+
+    public VariableTable() {
+        this.slots = new ChainedHashDictionary<>();
+        this.size = 0;
+        this.version = 0;
+        this.frameVersion = 0;
+        this.listeners = new ArrayList<>();
+    }
+
+    /**
+     * Returns the names of the variables the given variable's definition reads,
+     * or an empty list if it is not defined.
+     */
+    public IList<String> getDependencies(String name) {
+        IList<String> out = new ArrayList<>();
+        Slot slot = this.slots.getOrDefault(name, null);
+        if (slot != null) {
+            for (String read : slot.reads) {
+                out.add(read);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Returns the names of the defined variables whose definitions directly read
+     * the given variable.
+     */
+    public IList<String> getDependents(String name) {
+        IList<String> out = new ArrayList<>();
+        Slot slot = this.slots.getOrDefault(name, null);
+        if (slot != null) {
+            for (String reader : slot.readers) {
+                out.add(reader);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Returns 'true' if defining the given variable as the given expression would
+     * make it depend on itself, directly or through other variables.
+     */
+    public boolean wouldCreateCycle(String name, AstNode definition) {
+        IList<String> pending = new ArrayList<>();
+        IDictionary<String, Boolean> seen = new ChainedHashDictionary<>();
+        for (String read : readsOf(definition)) {
+            pending.add(read);
+            seen.put(read, true);
+        }
+        while (!pending.isEmpty()) {
+            String current = pending.remove();
+            if (current.equals(name)) {
+                return true;
+            }
+            Slot slot = this.slots.getOrDefault(current, null);
+            if (slot != null) {
+                for (String read : slot.reads) {
+                    if (!seen.containsKey(read)) {
+                        seen.put(read, true);
+                        pending.add(read);
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the given variable followed by every defined variable that depends on
+     * it, directly or indirectly. Each variable comes after all of the variables
+     * it reads, so recomputing them in this order never uses a stale value.
+     */
+    public IList<String> getDownstream(String name) {
+        // Iterative depth-first search over the dependents; reversing the order in
+        // which variables finish gives a topological order
+        IList<String> finished = new ArrayList<>();
+        IDictionary<String, Boolean> visited = new ChainedHashDictionary<>();
+        IList<String> stack = new ArrayList<>();
+        IList<Integer> nextChild = new ArrayList<>();
+        stack.add(name);
+        nextChild.add(0);
+        visited.put(name, true);
+        while (!stack.isEmpty()) {
+            int top = stack.size() - 1;
+            Slot slot = this.slots.getOrDefault(stack.get(top), null);
+            int index = nextChild.get(top);
+            if (slot != null && index < slot.readers.size()) {
+                nextChild.set(top, index + 1);
+                String reader = slot.readers.get(index);
+                if (!visited.containsKey(reader)) {
+                    visited.put(reader, true);
+                    stack.add(reader);
+                    nextChild.add(0);
+                }
+            } else {
+                finished.add(stack.remove());
+                nextChild.remove();
+            }
+        }
+
+        IList<String> out = new ArrayList<>(finished.size());
+        for (int i = finished.size() - 1; i >= 0; i--) {
+            out.add(finished.get(i));
+        }
+        return out;
+    }
+
+    /**
+     * Registers a listener to be told whenever a variable's value changes.
+     */
+    public void addListener(VariableListener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Unregisters a listener. Does nothing if it was never registered.
+     */
+    public void removeListener(VariableListener listener) {
+        int index = this.listeners.indexOf(listener);
+        if (index != -1) {
+            this.listeners.delete(index);
+        }
+    }
+
+    /**
+     * Returns 'true' if at least one listener is registered.
+     */
+    public boolean hasListeners() {
+        return !this.listeners.isEmpty();
+    }
+
+    /**
+     * Tells every registered listener that the given variable now has the given value.
+     */
+    public void fireVariableChanged(String name, AstNode value) {
+        for (VariableListener listener : this.listeners) {
+            listener.variableChanged(name, value);
+        }
+    }
+
+    /**
+     * Pushes a new frame binding the given variable names, each initially 0.
+     *
+     * @throws EvaluationError  if one of the names is already a variable
+     */
+    public ScopeFrame pushFrame(String... names) {
+        for (String name : names) {
+            if (this.containsKey(name)) {
+                throw new EvaluationError("Variable has already been defined: " + name);
+            }
+        }
+        // Every name the frame binds now means something else
+        this.nextVersion();
+        this.frames = new ScopeFrame(this, this.frames, names, this.nextFrameVersion());
+        return this.frames;
+    }
+
+    /**
+     * Removes the given frame, which must be the most recently pushed one.
+     *
+     * @throws IllegalStateException  if the frame is not the innermost one
+     */
+    public void popFrame(ScopeFrame frame) {
+        if (frame != this.frames) {
+            throw new IllegalStateException("Scope frames must be popped in the order they were pushed");
+        }
+        this.frames = frame.getParent();
+
+        // Every name the frame bound now means something else
+        this.nextVersion();
+    }
+
+    /**
+     * Returns the current version of the given variable name.
+     */
+    public long getVersion(String name) {
+        for (ScopeFrame frame = this.frames; frame != null; frame = frame.getParent()) {
+            int index = frame.indexOf(name);
+            if (index != -1) {
+                return frame.getVersion(index);
+            }
+        }
+        Slot slot = this.slots.getOrDefault(name, null);
+        return slot == null ? 0 : slot.version;
+    }
+
+    /**
+     * Returns a number that changes whenever any global variable in this table
+     * does, or a frame is pushed or popped. Writes to frame variables leave it as
+     * it is.
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    @Override
+    public AstNode get(String key) {
+        AstNode value = this.getOrDefault(key, null);
+        if (value == null) {
+            throw new NoSuchKeyException();
+        }
+        return value;
+    }
+
+    @Override
+    public AstNode getOrDefault(String key, AstNode defaultValue) {
+        for (ScopeFrame frame = this.frames; frame != null; frame = frame.getParent()) {
+            int index = frame.indexOf(key);
+            if (index != -1) {
+                return frame.getNode(index);
+            }
+        }
+        Slot slot = this.slots.getOrDefault(key, null);
+        if (slot == null || slot.value == null) {
+            return defaultValue;
+        }
+        return slot.value;
+    }
+
+    @Override
+    public void put(String key, AstNode value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Variables cannot be set to null");
+        }
+        this.checkNotInFrame(key);
+        Slot slot = this.slotFor(key);
+        if (slot.value == null) {
+            this.size++;
+        }
+        slot.value = value;
+        this.setReads(key, slot, readsOf(value));
+        this.bump(slot);
+    }
+
+    @Override
+    public AstNode remove(String key) {
+        this.checkNotInFrame(key);
+        Slot slot = this.slots.getOrDefault(key, null);
+        if (slot == null || slot.value == null) {
+            throw new NoSuchKeyException();
+        }
+        AstNode value = slot.value;
+        slot.value = null;
+        this.setReads(key, slot, new ArrayList<>(0));
+        this.size--;
+        this.bump(slot);
+        return value;
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        for (ScopeFrame frame = this.frames; frame != null; frame = frame.getParent()) {
+            if (frame.indexOf(key) != -1) {
+                return true;
+            }
+        }
+        Slot slot = this.slots.getOrDefault(key, null);
+        return slot != null && slot.value != null;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    private void bump(Slot slot) {
+        slot.version = this.nextVersion();
+    }
+
+    long nextVersion() {
+        this.version++;
+        return this.version;
+    }
+
+    long nextFrameVersion() {
+        this.frameVersion--;
+        return this.frameVersion;
+    }
+
+    static boolean isFrameVersion(long version) {
+        return version < 0;
+    }
+
+    private void checkNotInFrame(String name) {
+        for (ScopeFrame frame = this.frames; frame != null; frame = frame.getParent()) {
+            if (frame.indexOf(name) != -1) {
+                throw new EvaluationError("Cannot assign to loop variable " + name);
+            }
+        }
+    }
+
+    private Slot slotFor(String name) {
+        Slot slot = this.slots.getOrDefault(name, null);
+        if (slot == null) {
+            slot = new Slot();
+            this.slots.put(name, slot);
+        }
+        return slot;
+    }
+
+    private void setReads(String name, Slot slot, IList<String> reads) {
+        if (slot.reads.isEmpty() && reads.isEmpty()) {
+            // The common case for loop variables and plain numbers
+            return;
+        }
+        for (String read : slot.reads) {
+            IList<String> readers = this.slots.get(read).readers;
+            readers.delete(readers.indexOf(name));
+        }
+        for (String read : reads) {
+            this.slotFor(read).readers.add(name);
+        }
+        slot.reads = reads;
+    }
+
+    /**
+     * Returns the distinct names of the variables the given expression reads.
+     */
+    private static IList<String> readsOf(AstNode expr) {
+        IList<String> out = new ArrayList<>(0);
+        if (expr.isNumber()) {
+            return out;
+        }
+        IList<AstNode> pending = new ArrayList<>();
+        pending.add(expr);
+        while (!pending.isEmpty()) {
+            AstNode node = pending.remove();
+            if (node.isVariable()) {
+                if (!out.contains(node.getName())) {
+                    out.add(node.getName());
+                }
+            } else if (node.isOperation()) {
+                for (AstNode child : node.getChildren()) {
+                    pending.add(child);
+                }
+            }
+        }
+        return out;
+    }
+
+    private static class Slot {
+        public AstNode value;
+        public long version;
+        public IList<String> reads = new ArrayList<>(0);
+        public IList<String> readers = new ArrayList<>(0);
+    }
+}
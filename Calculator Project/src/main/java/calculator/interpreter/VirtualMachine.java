@@ -0,0 +1,187 @@
+package calculator.interpreter;
+
+import calculator.ast.AstNode;
+import calculator.ast.ExpressionManipulators;
+import calculator.errors.EvaluationError;
+import datastructures.concrete.ArrayList;
+import datastructures.interfaces.IList;
+
+/**
+ * Runs programs compiled by the BytecodeCompiler.
+ *
+ * Statements without code are handed to the interpreter. A compiled statement
+ * first copies the variables it reads into its registers; if one of them is not
+ * a number, or a loop variable it binds is already defined, the statement
+ * "deoptimizes" and is interpreted instead. Nothing has run at that point, so the
+ * interpreter reports any error exactly as it would have otherwise.
+ *
+ * Once running, a statement only touches its register file: variables it assigns
+ * are stored back into the variable table when it finishes, even if it fails or
+ * is cancelled by interrupting the thread.
+ */
+final class VirtualMachine {
+    private VirtualMachine() {
+    }
+
+    /**
+     * Runs the given program and returns what evaluating its tree would have.
+     */
+    static AstNode run(Environment env, BytecodeProgram program) {
+        Interpreter interp = env.getInterpreter();
+        AstNode out = new AstNode(1);
+        for (BytecodeProgram.Unit unit : program.getUnits()) {
+            AstNode result = unit.isCompiled() ? execute(env, unit) : null;
+            out = result != null ? result : interp.evaluate(env, unit.statement);
+        }
+
+        // Finish off the same way the interpreter finishes the root 'simplify' call
+        IList<AstNode> children = new ArrayList<>(1);
+        children.add(out);
+        return ExpressionManipulators.handleSimplify(env, program.getRoot().withChildren(children));
+    }
+
+    /**
+     * Runs one compiled statement, or returns null if it must be interpreted instead.
+     */
+    private static AstNode execute(Environment env, BytecodeProgram.Unit unit) {
+        VariableTable variables = env.getVariableTable();
+        for (String name : unit.loopNames) {
+            if (variables.containsKey(name)) {
+                return null;
+            }
+        }
+
+        // Only a statement that assigns nothing can read a variable through its
+        // definition: otherwise the definition could depend on what it assigns
+        boolean readOnly = unit.storeNames.length == 0 && unit.loopNames.length == 0;
+        double[] registers = new double[unit.registerCount];
+        for (int i = 0; i < unit.loadNames.length; i++) {
+            AstNode value = variables.getOrDefault(unit.loadNames[i], null);
+            if ((value == null || !value.isNumber()) && readOnly) {
+                value = simplifyVariable(env, unit.loadNames[i], unit.loadPrecise[i]);
+            }
+            if (value == null || !value.isNumber()) {
+                return null;
+            }
+            registers[unit.loadRegisters[i]] = value.getNumericValue();
+        }
+
+        boolean[] assigned = new boolean[unit.storeNames.length];
+        try {
+            run(unit, registers, assigned);
+        } finally {
+            for (int i = 0; i < assigned.length; i++) {
+                if (assigned[i]) {
+                    variables.put(unit.storeNames[i], new AstNode(registers[unit.storeRegisters[i]]));
+                }
+            }
+        }
+        return new AstNode(registers[unit.resultRegister]);
+    }
+
+    private static AstNode simplifyVariable(Environment env, String name, boolean precise) {
+        IList<AstNode> children = new ArrayList<>(1);
+        children.add(AstNode.variable(name));
+        if (!precise) {
+            return ExpressionManipulators.handleSimplify(env, AstNode.operation("simplify", children));
+        }
+        try {
+            return ExpressionManipulators.handleToDouble(env, AstNode.operation("toDouble", children));
+        } catch (EvaluationError ex) {
+            return null;
+        }
+    }
+
+    private static void run(BytecodeProgram.Unit unit, double[] r, boolean[] assigned) {
+        int[] code = unit.code;
+        double[] constants = unit.constants;
+        int pc = 0;
+        while (true) {
+            switch (code[pc]) {
+                case BytecodeProgram.CONST:
+                    r[code[pc + 1]] = constants[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case BytecodeProgram.MOVE:
+                    r[code[pc + 1]] = r[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case BytecodeProgram.ADD:
+                    r[code[pc + 1]] = r[code[pc + 2]] + r[code[pc + 3]];
+                    pc += 4;
+                    break;
+                case BytecodeProgram.SUBTRACT:
+                    r[code[pc + 1]] = r[code[pc + 2]] - r[code[pc + 3]];
+                    pc += 4;
+                    break;
+                case BytecodeProgram.MULTIPLY:
+                    r[code[pc + 1]] = r[code[pc + 2]] * r[code[pc + 3]];
+                    pc += 4;
+                    break;
+                case BytecodeProgram.DIVIDE: {
+                    // Like 'simplify', dividing a number by itself gives exactly 1
+                    double numerator = r[code[pc + 2]];
+                    double denominator = r[code[pc + 3]];
+                    r[code[pc + 1]] = numerator == denominator ? 1 : numerator / denominator;
+                    pc += 4;
+                    break;
+                }
+                case BytecodeProgram.POWER:
+                    r[code[pc + 1]] = Math.pow(r[code[pc + 2]], r[code[pc + 3]]);
+                    pc += 4;
+                    break;
+                case BytecodeProgram.NEGATE:
+                    r[code[pc + 1]] = -1 * r[code[pc + 2]];
+                    pc += 3;
+                    break;
+                case BytecodeProgram.SIN:
+                    r[code[pc + 1]] = Math.sin(r[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case BytecodeProgram.COS:
+                    r[code[pc + 1]] = Math.cos(r[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case BytecodeProgram.ASSIGN:
+                    r[code[pc + 1]] = r[code[pc + 2]];
+                    assigned[code[pc + 3]] = true;
+                    pc += 4;
+                    break;
+                case BytecodeProgram.JUMP:
+                    // Every loop jumps back to its test, so this is checked once per iteration
+                    Interpreter.checkInterrupted();
+                    pc = code[pc + 1];
+                    break;
+                case BytecodeProgram.JUMP_UNLESS_POSITIVE:
+                    pc = r[code[pc + 1]] > 0 ? pc + 3 : code[pc + 2];
+                    break;
+                case BytecodeProgram.JUMP_UNLESS_DIFFERENT:
+                    pc = Math.abs(r[code[pc + 1]] - r[code[pc + 2]]) > 0 ? pc + 4 : code[pc + 3];
+                    break;
+                case BytecodeProgram.JUMP_RANDOMLY:
+                    pc = Math.random() < 0.5 ? pc + 2 : code[pc + 1];
+                    break;
+                case BytecodeProgram.FOR_INIT: {
+                    double step = r[code[pc + 3]];
+                    double count = r[code[pc + 2]];
+                    if (step < 0) {
+                        count += step;
+                    }
+                    r[code[pc + 1]] = count;
+                    pc += 4;
+                    break;
+                }
+                case BytecodeProgram.CHECK_REPEAT:
+                    if (r[code[pc + 1]] < 0) {
+                        throw new EvaluationError("Repeat time cannot be negative!");
+                    }
+                    pc += 2;
+                    break;
+                case BytecodeProgram.HALT:
+                    return;
+                default:
+                    throw new AssertionError("Unknown instruction " + code[pc] + " at " + pc);
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package calculator.parser;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.misc.Interval;
+
+/**
+ * A CharStream that reads straight from a CharSequence, rather than copying it
+ * into a buffer of its own the way ANTLRInputStream does.
+ *
+ * This behaves exactly like ANTLRInputStream: the whole input is always available,
+ * so marks are no-ops and any index can be sought to.
+ */
+final class CharSequenceStream implements CharStream {
+    private final CharSequence data;
+    private int pos;
+
+    CharSequenceStream(CharSequence data) {
+        this.data = data;
+        this.pos = 0;
+    }
+
+    @Override
+    public void consume() {
+        if (this.pos >= this.data.length()) {
+            throw new IllegalStateException("cannot consume EOF");
+        }
+        this.pos++;
+    }
+
+    @Override
+    public int LA(int offset) {
+        if (offset == 0) {
+            // Undefined, as in ANTLRInputStream
+            return 0;
+        }
+        int index = offset > 0 ? this.pos + offset - 1 : this.pos + offset;
+        if (index < 0 || index >= this.data.length()) {
+            return IntStream.EOF;
+        }
+        return this.data.charAt(index);
+    }
+
+    @Override
+    public int mark() {
+        return -1;
+    }
+
+    @Override
+    public void release(int marker) {
+    }
+
+    @Override
+    public int index() {
+        return this.pos;
+    }
+
+    @Override
+    public void seek(int index) {
+        this.pos = Math.min(index, this.data.length());
+    }
+
+    @Override
+    public int size() {
+        return this.data.length();
+    }
+
+    @Override
+    public String getSourceName() {
+        return IntStream.UNKNOWN_SOURCE_NAME;
+    }
+
+    @Override
+    public String getText(Interval interval) {
+        int start = interval.a;
+        int stop = Math.min(interval.b, this.data.length() - 1);
+        if (start >= this.data.length() || stop < start) {
+            return "";
+        }
+        return this.data.subSequence(start, stop + 1).toString();
+    }
+
+    @Override
+    public String toString() {
+        return this.data.toString();
+    }
+}
@@ -0,0 +1,123 @@
+package calculator.parser;
+
+/**
+ * Tracks whether input typed a line at a time is complete yet, without lexing or
+ * parsing any of it more than once.
+ *
+ * Input is complete when parsing it would not throw an IncompleteInputError: every
+ * parenthesis is balanced by the end of each line and the input does not end in a
+ * line continuation. Each appended line is scanned once, following the same rules
+ * as the lexer, and only the counts that decide this are kept. So a caller can
+ * collect lines until the input is complete, then parse all of it once.
+ *
+ * Text should be appended in whole lines, each ending in its line break; only
+ * the last piece of input may stop part way through a line.
+ */
+public class InputState {
+    // How many parentheses are open, and how many of those ignore line breaks:
+    // an unmatched ')' lowers the first but not the second
+    private int balance;
+    private int ignoreNewlines;
+
+    private boolean lastWasLineContinuation;
+    // Set just after a line continuation, which swallows every line break that follows it
+    private boolean inContinuation;
+    private boolean inComment;
+    private boolean sawToken;
+
+    // Set once a line break is reached with unbalanced parentheses: the parser
+    // rejects such input as incomplete however it goes on
+    private boolean unbalancedLine;
+
+    public InputState() {
+        this.reset();
+    }
+
+    /**
+     * Forgets all input appended so far.
+     */
+    public void reset() {
+        this.balance = 0;
+        this.ignoreNewlines = 0;
+        this.lastWasLineContinuation = false;
+        this.inContinuation = false;
+        this.inComment = false;
+        this.sawToken = false;
+        this.unbalancedLine = false;
+    }
+
+    /**
+     * Scans the given text as the continuation of the input so far.
+     */
+    public void append(CharSequence text) {
+        int length = text.length();
+        int pos = 0;
+        while (pos < length) {
+            char ch = text.charAt(pos);
+            if (Tokenizer.isLineBreak(ch)) {
+                pos++;
+                this.inComment = false;
+                if (!this.inContinuation && this.ignoreNewlines == 0) {
+                    this.unbalancedLine |= this.balance != 0;
+                    this.lastWasLineContinuation = false;
+                }
+                continue;
+            }
+            this.inContinuation = false;
+
+            if (this.inComment || ch == ' ' || ch == '\t') {
+                pos++;
+            } else if (ch == '#') {
+                this.inComment = true;
+                pos++;
+            } else if (ch == '\\' && pos + 1 < length && Tokenizer.isLineBreak(text.charAt(pos + 1))) {
+                this.lastWasLineContinuation = true;
+                this.inContinuation = true;
+                pos++;
+            } else if (ch == '"') {
+                // Parentheses inside a string don't count, but an unterminated quote
+                // is a token of its own
+                int end = Tokenizer.endOfString(text, pos);
+                pos = end == -1 ? pos + 1 : end;
+                this.lastWasLineContinuation = false;
+                this.sawToken = true;
+            } else {
+                if (ch == '(') {
+                    this.balance++;
+                    this.ignoreNewlines++;
+                } else if (ch == ')') {
+                    this.balance--;
+                    if (this.ignoreNewlines > 0) {
+                        this.ignoreNewlines--;
+                    }
+                }
+                pos++;
+                this.lastWasLineContinuation = false;
+                this.sawToken = true;
+            }
+        }
+    }
+
+    /**
+     * Returns true if nothing but whitespace, comments and line continuations has
+     * been appended.
+     */
+    public boolean isBlank() {
+        return !this.sawToken;
+    }
+
+    /**
+     * Returns true if the input so far could be parsed without an IncompleteInputError.
+     */
+    public boolean isComplete() {
+        return !this.unbalancedLine && this.balance == 0 && !this.lastWasLineContinuation;
+    }
+
+    /**
+     * Returns true once some line has ended with unbalanced parentheses, after
+     * which no further input can make this complete.
+     */
+    public boolean isUnbalanced() {
+        return this.unbalancedLine;
+    }
+}
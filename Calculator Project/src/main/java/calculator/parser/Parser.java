@@ -5,37 +5,61 @@ import calculator.errors.IncompleteInputError;
 import calculator.errors.ParseError;
 import calculator.parser.grammar.CalculatorGrammarLexer;
 import calculator.parser.grammar.CalculatorGrammarParser;
-import calculator.parser.grammar.CalculatorGrammarParserBaseVisitor;
-import datastructures.concrete.DoubleLinkedList;
+import datastructures.concrete.ArrayList;
 import datastructures.interfaces.IList;
 import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 
-import java.io.IOException;
-import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public class Parser {
-    public AstNode parse(String rawInput) {
-        CharStream input;
-        try {
-            input = new ANTLRInputStream(new StringReader(rawInput));
-        } catch (IOException ex) {
-            throw new ParseError(
-                    "Unexpected fatal error loading text. This should never happen!",
-                    ex);
-        }
+    private static final ThrowingErrorListener ERROR_LISTENER = new ThrowingErrorListener();
+
+    // ANTLR lexers and parsers are expensive to build but cheap to reset, so each
+    // thread keeps one of each around
+    private static final ThreadLocal<AntlrPipeline> PIPELINES = ThreadLocal.withInitial(AntlrPipeline::new);
+
+    /**
+     * The ways input can be parsed. Both accept the same inputs and produce the
+     * same trees, though their error messages may differ.
+     */
+    public enum Backend {
+        // The parser ANTLR generates from CalculatorGrammarParser.g4
+        ANTLR,
+        // A hand-written tokenizer and precedence-climbing parser, which builds the
+        // tree directly and is much faster on short inputs
+        PRATT,
+    }
 
-        CalculatorGrammarLexer lexer = new CalculatorGrammarLexer(input);
-        lexer.removeErrorListeners();
-        lexer.addErrorListener(new ThrowingErrorListener());
+    public AstNode parse(String rawInput) {
+        return this.parse(rawInput, Integer.MAX_VALUE);
+    }
 
-        CommonTokenStream tokenStream = this.ensureIsComplete(new CommonTokenStream(lexer));
+    /**
+     * Parses the given input, refusing expressions nested more than 'maxDepth'
+     * levels deep.
+     *
+     * @throws ParseError  if the input is invalid or nested too deeply
+     */
+    public AstNode parse(String rawInput, int maxDepth) {
+        return this.parse(rawInput, maxDepth, Backend.ANTLR);
+    }
 
-        CalculatorGrammarParser parser = new CalculatorGrammarParser(tokenStream);
-        parser.removeErrorListeners();
-        parser.addErrorListener(new ThrowingErrorListener());
+    /**
+     * Parses the given input with the given backend, refusing expressions nested
+     * more than 'maxDepth' levels deep.
+     *
+     * @throws ParseError  if the input is invalid or nested too deeply
+     */
+    public AstNode parse(String rawInput, int maxDepth, Backend backend) {
+        if (backend == Backend.PRATT) {
+            return PrattParser.parse(rawInput, maxDepth);
+        }
 
-        CalculatorGrammarParser.ProgramContext entryPoint = parser.program();
-        return new AstConverter().visitProgram(entryPoint);
+        return PIPELINES.get().parse(this, rawInput, maxDepth);
     }
 
     public CommonTokenStream ensureIsComplete(CommonTokenStream stream) {
@@ -53,7 +77,7 @@ public class Parser {
             } else if (type == CalculatorGrammarLexer.RPAREN) {
                 balanceCount -= 1;
             } else if (type == CalculatorGrammarLexer.LINE_BREAK) {
-                this.verifyBalanceCount(token.getLine(), balanceCount);
+                verifyBalanceCount(token.getLine(), balanceCount);
             }
 
             if (type != CalculatorGrammarLexer.EOF) {
@@ -61,7 +85,7 @@ public class Parser {
             }
         }
 
-        this.verifyBalanceCount(lastLine, balanceCount);
+        verifyBalanceCount(lastLine, balanceCount);
 
         if (lastWasLineContinuation) {
             throw new IncompleteInputError("Line continuation at end of file at line " + lastLine);
@@ -70,7 +94,7 @@ public class Parser {
         return stream;
     }
 
-    private void verifyBalanceCount(int lineno, int balanceCount) {
+    static void verifyBalanceCount(int lineno, int balanceCount) {
         if (balanceCount > 0) {
             // If the balance count is 0, the lexer and parser itself will catch it.
             throw new IncompleteInputError(
@@ -83,121 +107,203 @@ public class Parser {
         }
     }
 
-    private static class AstConverter extends CalculatorGrammarParserBaseVisitor<AstNode> {
-        private IList<AstNode> asList(AstNode... nodes) {
-            IList<AstNode> list = new DoubleLinkedList<>();
-            for (AstNode node : nodes) {
-                list.add(node);
-            }
-            return list;
+    /**
+     * A lexer and parser that are reset for each input rather than rebuilt. Only
+     * the token stream, which is little more than a list, is made anew.
+     *
+     * Each input is first parsed in SLL mode, which makes decisions without looking
+     * at the surrounding context and is much cheaper, but gives up at the first
+     * syntax error. Only if that fails is the input parsed again in full LL mode,
+     * which reports the error exactly as a freshly built parser would.
+     *
+     * The grammar's rules for unary minus, '^' and parentheses are right-recursive,
+     * so the generated parser recurses once for each level of them an expression is
+     * nested in. Input nested deeply enough to run it out of stack is reported as a
+     * ParseError.
+     */
+    private static class AntlrPipeline {
+        private final CalculatorGrammarLexer lexer;
+        private final CalculatorGrammarParser parser;
+        private final ANTLRErrorStrategy bailStrategy;
+        private final ANTLRErrorStrategy recoveringStrategy;
+
+        public AntlrPipeline() {
+            this.lexer = new CalculatorGrammarLexer(null);
+            this.lexer.removeErrorListeners();
+            this.lexer.addErrorListener(ERROR_LISTENER);
+            this.parser = new CalculatorGrammarParser(null);
+            this.bailStrategy = new BailErrorStrategy();
+            this.recoveringStrategy = new DefaultErrorStrategy();
         }
 
-        @Override
-        public AstNode visitProgram(CalculatorGrammarParser.ProgramContext ctx) {
-            IList<AstNode> params = new DoubleLinkedList<>();
-            for (CalculatorGrammarParser.StatementContext stmt : ctx.statements) {
-                params.add(this.visit(stmt));
+        public AstNode parse(Parser owner, CharSequence rawInput, int maxDepth) {
+            this.lexer.setInputStream(new CharSequenceStream(rawInput));
+            try {
+                CommonTokenStream tokens = owner.ensureIsComplete(new CommonTokenStream(this.lexer));
+                CalculatorGrammarParser.ProgramContext program;
+                try {
+                    program = this.program(tokens);
+                } catch (StackOverflowError ex) {
+                    throw new ParseError("Expression is nested too deeply to parse");
+                }
+                return new AstConverter(maxDepth).convert(program);
+            } finally {
+                // Don't hold on to the last input and its tokens
+                this.lexer.setInputStream(null);
+                this.parser.setInputStream(null);
             }
-            return new AstNode("block", params);
-        }
-
-        @Override
-        public AstNode visitAssignStmt(CalculatorGrammarParser.AssignStmtContext ctx) {
-            return new AstNode(
-                    "assign",
-                    this.asList(
-                            new AstNode(ctx.varName.getText()),
-                            this.visit(ctx.expr)));
-        }
-
-        @Override
-        public AstNode visitExprStmt(CalculatorGrammarParser.ExprStmtContext ctx) {
-            return this.visit(ctx.expr);
-        }
-
-        @Override
-        public AstNode visitPowExprBin(CalculatorGrammarParser.PowExprBinContext ctx) {
-            return new AstNode(
-                    ctx.op.getText(),
-                    this.asList(this.visit(ctx.left), this.visit(ctx.right)));
-        }
-
-        @Override
-        public AstNode visitPowExprSingle(CalculatorGrammarParser.PowExprSingleContext ctx) {
-            return this.visit(ctx.expr);
-        }
-
-        @Override
-        public AstNode visitNegExprUnary(CalculatorGrammarParser.NegExprUnaryContext ctx) {
-            return new AstNode("negate", this.asList(this.visit(ctx.expr)));
-        }
-
-        @Override
-        public AstNode visitNegExprSingle(CalculatorGrammarParser.NegExprSingleContext ctx) {
-            return this.visit(ctx.expr);
         }
 
-        @Override
-        public AstNode visitAddExprBin(CalculatorGrammarParser.AddExprBinContext ctx) {
-            return new AstNode(
-                    ctx.op.getText(),
-                    this.asList(this.visit(ctx.left), this.visit(ctx.right)));
-        }
-
-        @Override
-        public AstNode visitAddExprSingle(CalculatorGrammarParser.AddExprSingleContext ctx) {
-            return this.visit(ctx.expr);
-        }
-
-        @Override
-        public AstNode visitMultExprBin(CalculatorGrammarParser.MultExprBinContext ctx) {
-            return new AstNode(
-                    ctx.op.getText(),
-                    this.asList(this.visit(ctx.left), this.visit(ctx.right)));
+        private CalculatorGrammarParser.ProgramContext program(TokenStream tokens) {
+            CalculatorGrammarParser parser = this.parser;
+            parser.setInputStream(tokens);
+            parser.removeErrorListeners();
+            parser.setErrorHandler(this.bailStrategy);
+            parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+            try {
+                return parser.program();
+            } catch (ParseCancellationException ex) {
+                // Either the input is invalid, or SLL wasn't enough to parse it
+                parser.reset();
+                parser.addErrorListener(ERROR_LISTENER);
+                parser.setErrorHandler(this.recoveringStrategy);
+                parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+                return parser.program();
+            }
         }
+    }
 
-        @Override
-        public AstNode visitMultExprSingle(CalculatorGrammarParser.MultExprSingleContext ctx) {
-            return this.visit(ctx.expr);
+    /**
+     * Converts an ANTLR parse tree into an AST.
+     *
+     * Left-recursive rules like 'addExpr' make a long sum such as "1 + 1 + ... + 1"
+     * produce a parse tree as deep as the number of terms, so the conversion walks
+     * the tree with an explicit stack instead of recursing through a visitor.
+     */
+    private static class AstConverter {
+        private final int maxDepth;
+
+        public AstConverter(int maxDepth) {
+            this.maxDepth = maxDepth;
         }
 
-        @Override
-        public AstNode visitNumber(CalculatorGrammarParser.NumberContext ctx) {
-            return new AstNode(Double.parseDouble(ctx.value.getText()));
-        }
+        public AstNode convert(ParserRuleContext root) {
+            IList<ConvertTask> stack = new ArrayList<>();
+            stack.add(new ConvertTask(skipWrappers(root)));
+            AstNode result = null;
+            while (!stack.isEmpty()) {
+                ConvertTask task = stack.get(stack.size() - 1);
+                if (result != null) {
+                    task.converted.add(result);
+                    result = null;
+                }
 
-        @Override
-        public AstNode visitRawString(CalculatorGrammarParser.RawStringContext ctx) {
-            throw new UnsupportedOperationException();
+                if (task.converted.size() < task.operands.size()) {
+                    ParserRuleContext operand = skipWrappers(task.operands.get(task.converted.size()));
+                    if (stack.size() >= this.maxDepth) {
+                        throw new ParseError("Expression is nested more than " + this.maxDepth + " levels deep");
+                    }
+                    stack.add(new ConvertTask(operand));
+                } else {
+                    stack.remove();
+                    result = build(task.context, task.converted);
+                }
+            }
+            return result;
         }
 
-        @Override
-        public AstNode visitVariable(CalculatorGrammarParser.VariableContext ctx) {
-            return new AstNode(ctx.getText());
+        /**
+         * Skips past contexts that just hold a single sub-expression, such as
+         * parenthesized expressions and the 'Single' alternatives of each rule.
+         */
+        private static ParserRuleContext skipWrappers(ParserRuleContext ctx) {
+            while (true) {
+                if (ctx instanceof CalculatorGrammarParser.ExprStmtContext) {
+                    ctx = ((CalculatorGrammarParser.ExprStmtContext) ctx).expr;
+                } else if (ctx instanceof CalculatorGrammarParser.AddExprSingleContext) {
+                    ctx = ((CalculatorGrammarParser.AddExprSingleContext) ctx).expr;
+                } else if (ctx instanceof CalculatorGrammarParser.MultExprSingleContext) {
+                    ctx = ((CalculatorGrammarParser.MultExprSingleContext) ctx).expr;
+                } else if (ctx instanceof CalculatorGrammarParser.NegExprSingleContext) {
+                    ctx = ((CalculatorGrammarParser.NegExprSingleContext) ctx).expr;
+                } else if (ctx instanceof CalculatorGrammarParser.PowExprSingleContext) {
+                    ctx = ((CalculatorGrammarParser.PowExprSingleContext) ctx).expr;
+                } else if (ctx instanceof CalculatorGrammarParser.ParenExprContext) {
+                    ctx = ((CalculatorGrammarParser.ParenExprContext) ctx).expr;
+                } else {
+                    return ctx;
+                }
+            }
         }
 
-        @Override
-        public AstNode visitFuncName(CalculatorGrammarParser.FuncNameContext ctx) {
-            IList<AstNode> params = this.parseArgList(ctx.args);
-            return new AstNode(ctx.funcName.getText(), params);
+        /**
+         * Returns the sub-expressions that must be converted before the given context.
+         */
+        private static List<? extends ParserRuleContext> operandsOf(ParserRuleContext ctx) {
+            if (ctx instanceof CalculatorGrammarParser.ProgramContext) {
+                return ((CalculatorGrammarParser.ProgramContext) ctx).statements;
+            } else if (ctx instanceof CalculatorGrammarParser.AssignStmtContext) {
+                return Collections.singletonList(((CalculatorGrammarParser.AssignStmtContext) ctx).expr);
+            } else if (ctx instanceof CalculatorGrammarParser.AddExprBinContext) {
+                CalculatorGrammarParser.AddExprBinContext bin = (CalculatorGrammarParser.AddExprBinContext) ctx;
+                return Arrays.asList(bin.left, bin.right);
+            } else if (ctx instanceof CalculatorGrammarParser.MultExprBinContext) {
+                CalculatorGrammarParser.MultExprBinContext bin = (CalculatorGrammarParser.MultExprBinContext) ctx;
+                return Arrays.asList(bin.left, bin.right);
+            } else if (ctx instanceof CalculatorGrammarParser.PowExprBinContext) {
+                CalculatorGrammarParser.PowExprBinContext bin = (CalculatorGrammarParser.PowExprBinContext) ctx;
+                return Arrays.asList(bin.left, bin.right);
+            } else if (ctx instanceof CalculatorGrammarParser.NegExprUnaryContext) {
+                return Collections.singletonList(((CalculatorGrammarParser.NegExprUnaryContext) ctx).expr);
+            } else if (ctx instanceof CalculatorGrammarParser.FuncNameContext) {
+                return ((CalculatorGrammarParser.FuncNameContext) ctx).args.values;
+            } else {
+                return Collections.emptyList();
+            }
         }
 
-        @Override
-        public AstNode visitParenExpr(CalculatorGrammarParser.ParenExprContext ctx) {
-            return this.visit(ctx.expr);
+        /**
+         * Builds the AST node for the given context out of its converted operands.
+         */
+        private static AstNode build(ParserRuleContext ctx, IList<AstNode> operands) {
+            if (ctx instanceof CalculatorGrammarParser.ProgramContext) {
+                return AstNode.operation("block", operands);
+            } else if (ctx instanceof CalculatorGrammarParser.AssignStmtContext) {
+                CalculatorGrammarParser.AssignStmtContext assign = (CalculatorGrammarParser.AssignStmtContext) ctx;
+                IList<AstNode> children = new ArrayList<>(2);
+                children.add(AstNode.variable(assign.varName.getText()));
+                children.add(operands.get(0));
+                return AstNode.operation("assign", children);
+            } else if (ctx instanceof CalculatorGrammarParser.AddExprBinContext) {
+                return AstNode.operation(((CalculatorGrammarParser.AddExprBinContext) ctx).op.getText(), operands);
+            } else if (ctx instanceof CalculatorGrammarParser.MultExprBinContext) {
+                return AstNode.operation(((CalculatorGrammarParser.MultExprBinContext) ctx).op.getText(), operands);
+            } else if (ctx instanceof CalculatorGrammarParser.PowExprBinContext) {
+                return AstNode.operation(((CalculatorGrammarParser.PowExprBinContext) ctx).op.getText(), operands);
+            } else if (ctx instanceof CalculatorGrammarParser.NegExprUnaryContext) {
+                return AstNode.operation("negate", operands);
+            } else if (ctx instanceof CalculatorGrammarParser.NumberContext) {
+                return AstNode.number(Double.parseDouble(((CalculatorGrammarParser.NumberContext) ctx).value.getText()));
+            } else if (ctx instanceof CalculatorGrammarParser.VariableContext) {
+                return AstNode.variable(ctx.getText());
+            } else if (ctx instanceof CalculatorGrammarParser.FuncNameContext) {
+                return AstNode.operation(((CalculatorGrammarParser.FuncNameContext) ctx).funcName.getText(), operands);
+            } else {
+                // Raw strings are not supported yet
+                throw new UnsupportedOperationException();
+            }
         }
 
-        @Override
-        public AstNode visitArglist(CalculatorGrammarParser.ArglistContext ctx) {
-            throw new UnsupportedOperationException();
-        }
+        private static class ConvertTask {
+            public final ParserRuleContext context;
+            public final List<? extends ParserRuleContext> operands;
+            public final IList<AstNode> converted;
 
-        private IList<AstNode> parseArgList(CalculatorGrammarParser.ArglistContext args) {
-            IList<AstNode> out = new DoubleLinkedList<>();
-            for (CalculatorGrammarParser.AddExprContext item : args.values) {
-                out.add(this.visit(item));
+            public ConvertTask(ParserRuleContext context) {
+                this.context = context;
+                this.operands = operandsOf(context);
+                this.converted = new ArrayList<>(this.operands.size());
             }
-            return out;
         }
     }
 
@@ -213,7 +319,7 @@ public class Parser {
             if (e == null) {
                 error = msg;
             } else {
-                String tokenText = this.escape(e.getOffendingToken().getText());
+                String tokenText = escape(e.getOffendingToken().getText());
                 error = String.format("Unxpected '%s'", tokenText);
             }
             throw new ParseError(
@@ -225,7 +331,7 @@ public class Parser {
                     e);
         }
 
-        private String escape(String str) {
+        static String escape(String str) {
             StringBuilder builder = new StringBuilder();
             for (int i = 0; i < str.length(); i++) {
                 char ch = str.charAt(i);
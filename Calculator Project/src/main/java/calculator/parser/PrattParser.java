@@ -0,0 +1,285 @@
+package calculator.parser;
+
+import calculator.ast.AstNode;
+import calculator.errors.IncompleteInputError;
+import calculator.errors.ParseError;
+import datastructures.concrete.ArrayList;
+import datastructures.interfaces.IList;
+
+/**
+ * A hand-written parser for CalculatorGrammarParser.g4, which builds AstNodes
+ * straight from the Tokenizer's tokens without any intermediate parse tree.
+ *
+ * Expressions are parsed by precedence climbing. Rather than recursing once per
+ * operator or parenthesis, the parser keeps the operators still waiting for their
+ * right-hand side on an explicit stack, next to a stack of finished operands, so
+ * any nesting the maximum depth allows can be parsed on a small thread stack.
+ *
+ * The parser accepts exactly the inputs the ANTLR parser does, and produces the
+ * same trees. Error messages differ: both report a ParseError at the first token
+ * that cannot be parsed, but this one just names the token.
+ */
+final class PrattParser {
+    // Binding powers: the higher, the more tightly an operator holds its operands
+    private static final int ADD_POWER = 1;
+    private static final int MULTIPLY_POWER = 2;
+    private static final int NEGATE_POWER = 3;
+    private static final int POW_POWER = 4;
+
+    private final Tokenizer tokens;
+    private int pos;
+    private boolean sawString;
+
+    private PrattParser(Tokenizer tokens) {
+        this.tokens = tokens;
+        this.pos = 0;
+        this.sawString = false;
+    }
+
+    /**
+     * Parses the given input into a 'block' of its statements, refusing trees more
+     * than 'maxDepth' nodes deep.
+     *
+     * @throws IncompleteInputError  if the input looks unfinished
+     * @throws ParseError            if the input is invalid or nested too deeply
+     */
+    static AstNode parse(CharSequence input, int maxDepth) {
+        PrattParser parser = new PrattParser(Tokenizer.tokenize(input));
+        AstNode program = parser.program();
+
+        // A tree has at most one node per token, plus the block, so most inputs
+        // are too short to need the depth check at all
+        if (parser.sawString || parser.tokens.size() + 1 > maxDepth) {
+            check(program, maxDepth);
+        }
+        return program;
+    }
+
+    private AstNode program() {
+        IList<AstNode> statements = new ArrayList<>();
+        while (this.type() != Tokenizer.EOF) {
+            statements.add(this.statement());
+        }
+        return AstNode.operation("block", statements);
+    }
+
+    private AstNode statement() {
+        AstNode statement;
+        if (this.type() == Tokenizer.IDENTIFIER && this.tokens.type(this.pos + 1) == Tokenizer.ASSIGN) {
+            IList<AstNode> children = new ArrayList<>(2);
+            children.add(AstNode.variable(this.tokens.text(this.pos)));
+            this.pos += 2;
+            children.add(this.expression());
+            statement = AstNode.operation("assign", children);
+        } else {
+            statement = this.expression();
+        }
+        if (this.type() != Tokenizer.LINE_BREAK) {
+            throw this.unexpected();
+        }
+        this.pos++;
+        return statement;
+    }
+
+    /**
+     * Parses an 'addExpr', stopping at the first token that cannot continue it.
+     */
+    private AstNode expression() {
+        IList<Pending> pending = new ArrayList<>();
+        IList<AstNode> operands = new ArrayList<>();
+
+        // The right-hand side of '^' is an 'atomExpr', so it cannot be negated
+        boolean afterPow = false;
+        while (true) {
+            // We expect an operand: any number of '-', then an atom
+            int type = this.type();
+            if (type == Tokenizer.MINUS && !afterPow) {
+                pending.add(Pending.NEGATE);
+                this.pos++;
+                continue;
+            } else if (type == Tokenizer.NUMBER) {
+                operands.add(AstNode.number(Double.parseDouble(this.tokens.text(this.pos))));
+                this.pos++;
+            } else if (type == Tokenizer.STRING) {
+                // Kept as a variable named after the literal, quotes and all, until 'check'
+                this.sawString = true;
+                operands.add(AstNode.variable(this.tokens.text(this.pos)));
+                this.pos++;
+            } else if (type == Tokenizer.IDENTIFIER && this.tokens.type(this.pos + 1) == Tokenizer.LPAREN) {
+                String name = this.tokens.text(this.pos);
+                this.pos += 2;
+                if (this.type() == Tokenizer.RPAREN) {
+                    operands.add(AstNode.operation(name, new ArrayList<>(0)));
+                    this.pos++;
+                } else {
+                    pending.add(Pending.call(name));
+                    afterPow = false;
+                    continue;
+                }
+            } else if (type == Tokenizer.IDENTIFIER) {
+                operands.add(AstNode.variable(this.tokens.text(this.pos)));
+                this.pos++;
+            } else if (type == Tokenizer.LPAREN) {
+                pending.add(Pending.GROUP);
+                this.pos++;
+                afterPow = false;
+                continue;
+            } else {
+                throw this.unexpected();
+            }
+
+            // We have an operand: close any parentheses after it, then either
+            // continue with a binary operator or finish the expression
+            while (true) {
+                type = this.type();
+                int power = bindingPower(type);
+                if (power != 0) {
+                    reduce(pending, operands, power, type == Tokenizer.POW);
+                    pending.add(Pending.binary(this.tokens.text(this.pos), power));
+                    this.pos++;
+                    afterPow = type == Tokenizer.POW;
+                    break;
+                }
+
+                boolean closing = type == Tokenizer.RPAREN || type == Tokenizer.COMMA;
+                reduce(pending, operands, 0, false);
+                if (!closing) {
+                    if (!pending.isEmpty()) {
+                        // Still inside parentheses
+                        throw this.unexpected();
+                    }
+                    return operands.remove();
+                }
+                if (pending.isEmpty()) {
+                    throw this.unexpected();
+                }
+                Pending open = pending.get(pending.size() - 1);
+                if (open.args == null) {
+                    // A parenthesized expression: just drop the parentheses
+                    if (type == Tokenizer.COMMA) {
+                        throw this.unexpected();
+                    }
+                    pending.remove();
+                    this.pos++;
+                    continue;
+                }
+                open.args.add(operands.remove());
+                this.pos++;
+                if (type == Tokenizer.COMMA) {
+                    afterPow = false;
+                    break;
+                }
+                pending.remove();
+                operands.add(AstNode.operation(open.name, open.args));
+            }
+        }
+    }
+
+    /**
+     * Applies every pending operator that binds at least as tightly as one with the
+     * given binding power, stopping at any open parenthesis.
+     */
+    private static void reduce(IList<Pending> pending, IList<AstNode> operands, int power, boolean rightAssociative) {
+        while (!pending.isEmpty()) {
+            Pending top = pending.get(pending.size() - 1);
+            if (top.power == 0 || top.power < power || (top.power == power && rightAssociative)) {
+                return;
+            }
+            pending.remove();
+            IList<AstNode> children = new ArrayList<>(2);
+            if (top == Pending.NEGATE) {
+                children.add(operands.remove());
+                operands.add(AstNode.operation("negate", children));
+            } else {
+                AstNode right = operands.remove();
+                children.add(operands.remove());
+                children.add(right);
+                operands.add(AstNode.operation(top.name, children));
+            }
+        }
+    }
+
+    private static int bindingPower(int type) {
+        switch (type) {
+            case Tokenizer.PLUS:
+            case Tokenizer.MINUS:
+                return ADD_POWER;
+            case Tokenizer.MULTIPLY:
+            case Tokenizer.DIVIDE:
+                return MULTIPLY_POWER;
+            case Tokenizer.POW:
+                return POW_POWER;
+            default:
+                return 0;
+        }
+    }
+
+    private int type() {
+        return this.tokens.type(this.pos);
+    }
+
+    private ParseError unexpected() {
+        String text = this.type() == Tokenizer.EOF ? "<EOF>" : this.tokens.text(this.pos);
+        return new ParseError(String.format(
+                "Line %d, col %d: Unexpected '%s'",
+                this.tokens.line(this.pos),
+                this.tokens.column(this.pos),
+                Parser.ThrowingErrorListener.escape(text)));
+    }
+
+    /**
+     * Rejects trees that are too deep or contain raw strings, reporting whichever
+     * problem comes first in the order the ANTLR pipeline converts the tree: parents
+     * before children, left to right.
+     */
+    private static void check(AstNode root, int maxDepth) {
+        IList<AstNode> nodes = new ArrayList<>();
+        IList<Integer> depths = new ArrayList<>();
+        nodes.add(root);
+        depths.add(1);
+        while (!nodes.isEmpty()) {
+            AstNode node = nodes.remove();
+            int depth = depths.remove();
+            if (depth > maxDepth) {
+                throw new ParseError("Expression is nested more than " + maxDepth + " levels deep");
+            }
+            if (node.isVariable() && node.getName().startsWith("\"")) {
+                // Raw strings are not supported yet
+                throw new UnsupportedOperationException();
+            }
+            IList<AstNode> children = node.getChildren();
+            for (int i = children.size() - 1; i >= 0; i--) {
+                nodes.add(children.get(i));
+                depths.add(depth + 1);
+            }
+        }
+    }
+
+    /**
+     * Something still waiting for its right-hand side or closing parenthesis: an
+     * operator, an open parenthesis, or a function call and the arguments so far.
+     * Parentheses and calls have a binding power of 0, so nothing reduces past them.
+     */
+    private static class Pending {
+        public static final Pending NEGATE = new Pending("negate", NEGATE_POWER, null);
+        public static final Pending GROUP = new Pending(null, 0, null);
+
+        public final String name;
+        public final int power;
+        public final IList<AstNode> args;
+
+        private Pending(String name, int power, IList<AstNode> args) {
+            this.name = name;
+            this.power = power;
+            this.args = args;
+        }
+
+        public static Pending binary(String operator, int power) {
+            return new Pending(operator, power, null);
+        }
+
+        public static Pending call(String name) {
+            return new Pending(name, 0, new ArrayList<>());
+        }
+    }
+}
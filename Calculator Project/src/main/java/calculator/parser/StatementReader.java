@@ -0,0 +1,83 @@
+package calculator.parser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+
+/**
+ * Splits a script into its statements as it is read, a line at a time, so only
+ * the statement being read is ever held in memory.
+ *
+ * A statement ends at the first line break where the input so far is complete, as
+ * decided by an InputState. Lines that are blank or hold only comments are skipped.
+ */
+public class StatementReader {
+    private final BufferedReader lines;
+    private final InputState state;
+    private final StringBuilder statement;
+
+    private int lineno;
+    private int startLine;
+    private int line;
+
+    public StatementReader(Reader script) {
+        this.lines = script instanceof BufferedReader
+                ? (BufferedReader) script
+                : new BufferedReader(script);
+        this.state = new InputState();
+        this.statement = new StringBuilder();
+        this.lineno = 0;
+        this.startLine = 1;
+        this.line = 0;
+    }
+
+    /**
+     * Returns the next statement, ending in its line break, or null once the script
+     * runs out.
+     *
+     * A line that ends with unbalanced parentheses ends its statement right away,
+     * since no further input could complete it, and a statement still incomplete at
+     * the end of the script is returned as it is. Parsing either of them reports
+     * the problem.
+     */
+    public String next() throws IOException {
+        while (true) {
+            String text = this.lines.readLine();
+            if (text == null) {
+                return this.state.isBlank() ? null : this.take();
+            }
+            this.lineno++;
+            if (this.statement.length() == 0) {
+                this.startLine = this.lineno;
+            }
+
+            int start = this.statement.length();
+            this.statement.append(text).append('\n');
+            this.state.append(CharBuffer.wrap(this.statement, start, this.statement.length()));
+            if (this.state.isComplete() || this.state.isUnbalanced()) {
+                if (!this.state.isBlank()) {
+                    return this.take();
+                }
+                this.statement.setLength(0);
+                this.state.reset();
+            }
+        }
+    }
+
+    /**
+     * Returns the line, counting from 1, that the last statement returned by 'next'
+     * starts on.
+     */
+    public int getLine() {
+        return this.line;
+    }
+
+    private String take() {
+        String out = this.statement.toString();
+        this.line = this.startLine;
+        this.statement.setLength(0);
+        this.state.reset();
+        return out;
+    }
+}
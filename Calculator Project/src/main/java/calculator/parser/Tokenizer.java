@@ -0,0 +1,285 @@
+package calculator.parser;
+
+import calculator.errors.IncompleteInputError;
+
+import java.util.Arrays;
+
+/**
+ * Splits input into tokens for the PrattParser, in a single pass over the characters.
+ *
+ * This follows CalculatorGrammarLexer.g4 exactly: whitespace and comments are
+ * skipped, a backslash before a line break continues the line, line breaks inside
+ * parentheses are ignored, and any character that starts no other token becomes an
+ * ERROR token of its own. Like 'Parser.ensureIsComplete', it also rejects input
+ * whose parentheses do not balance by the end of a line, or that ends in a line
+ * continuation, with an IncompleteInputError.
+ *
+ * The tokens are kept in parallel arrays rather than as objects, followed by a
+ * single EOF token.
+ */
+final class Tokenizer {
+    static final int EOF = 0;
+    static final int LINE_BREAK = 1;
+    static final int IDENTIFIER = 2;
+    static final int NUMBER = 3;
+    static final int STRING = 4;
+    static final int ASSIGN = 5;
+    static final int PLUS = 6;
+    static final int MINUS = 7;
+    static final int MULTIPLY = 8;
+    static final int DIVIDE = 9;
+    static final int POW = 10;
+    static final int COMMA = 11;
+    static final int LPAREN = 12;
+    static final int RPAREN = 13;
+    static final int ERROR = 14;
+
+    private final CharSequence input;
+
+    private int count;
+    private int[] types;
+    private int[] starts;
+    private int[] ends;
+    private int[] lines;
+    private int[] columns;
+
+    private Tokenizer(CharSequence input) {
+        this.input = input;
+        this.count = 0;
+        int capacity = Math.max(16, input.length() / 2);
+        this.types = new int[capacity];
+        this.starts = new int[capacity];
+        this.ends = new int[capacity];
+        this.lines = new int[capacity];
+        this.columns = new int[capacity];
+    }
+
+    /**
+     * Returns the tokens of the given input.
+     *
+     * @throws IncompleteInputError  if the parentheses on some line do not balance,
+     *                               or the input ends in a line continuation
+     */
+    static Tokenizer tokenize(CharSequence input) {
+        Tokenizer tokens = new Tokenizer(input);
+        tokens.run();
+        return tokens;
+    }
+
+    int size() {
+        return this.count;
+    }
+
+    /**
+     * Returns the type of the token at the given index, or EOF past the end.
+     */
+    int type(int index) {
+        return index < this.count ? this.types[index] : EOF;
+    }
+
+    String text(int index) {
+        return this.input.subSequence(this.starts[index], this.ends[index]).toString();
+    }
+
+    int line(int index) {
+        return this.lines[index];
+    }
+
+    int column(int index) {
+        return this.columns[index];
+    }
+
+    private void run() {
+        CharSequence in = this.input;
+        int length = in.length();
+        int pos = 0;
+
+        // Lines count from 1 and only advance on '\n', as in ANTLR
+        int line = 1;
+        int lineStart = 0;
+
+        // How many parentheses are open, and how many of those ignore line breaks:
+        // an unmatched ')' lowers the first but not the second
+        int balance = 0;
+        int ignoreNewlines = 0;
+        boolean lastWasLineContinuation = false;
+
+        while (pos < length) {
+            char ch = in.charAt(pos);
+            int start = pos;
+            int startLine = line;
+            int column = pos - lineStart;
+
+            if (ch == '\n' || ch == '\r') {
+                while (pos < length && isLineBreak(in.charAt(pos))) {
+                    if (in.charAt(pos) == '\n') {
+                        line++;
+                        lineStart = pos + 1;
+                    }
+                    pos++;
+                }
+                if (ignoreNewlines == 0) {
+                    this.add(LINE_BREAK, start, pos, startLine, column);
+                    Parser.verifyBalanceCount(startLine, balance);
+                    lastWasLineContinuation = false;
+                }
+                continue;
+            }
+            if (ch == ' ' || ch == '\t') {
+                pos++;
+                while (pos < length && (in.charAt(pos) == ' ' || in.charAt(pos) == '\t')) {
+                    pos++;
+                }
+                continue;
+            }
+            if (ch == '#') {
+                while (pos < length && !isLineBreak(in.charAt(pos))) {
+                    pos++;
+                }
+                continue;
+            }
+            if (ch == '\\' && pos + 1 < length && isLineBreak(in.charAt(pos + 1))) {
+                pos++;
+                while (pos < length && isLineBreak(in.charAt(pos))) {
+                    if (in.charAt(pos) == '\n') {
+                        line++;
+                        lineStart = pos + 1;
+                    }
+                    pos++;
+                }
+                lastWasLineContinuation = true;
+                continue;
+            }
+
+            int type;
+            if (isIdentifierStart(ch)) {
+                pos++;
+                while (pos < length && (isIdentifierStart(in.charAt(pos)) || isDigit(in.charAt(pos)))) {
+                    pos++;
+                }
+                type = IDENTIFIER;
+            } else if (isDigit(ch)) {
+                pos = skipDigits(in, pos);
+                if (pos + 1 < length && in.charAt(pos) == '.' && isDigit(in.charAt(pos + 1))) {
+                    pos = skipDigits(in, pos + 1);
+                }
+                type = NUMBER;
+            } else if (ch == '"') {
+                int end = endOfString(in, pos);
+                if (end == -1) {
+                    pos++;
+                    type = ERROR;
+                } else {
+                    pos = end;
+                    type = STRING;
+                }
+            } else if (ch == ':' && pos + 1 < length && in.charAt(pos + 1) == '=') {
+                pos += 2;
+                type = ASSIGN;
+            } else {
+                pos++;
+                type = singleCharType(ch);
+                if (type == LPAREN) {
+                    balance++;
+                    ignoreNewlines++;
+                } else if (type == RPAREN) {
+                    balance--;
+                    if (ignoreNewlines > 0) {
+                        ignoreNewlines--;
+                    }
+                }
+            }
+            this.add(type, start, pos, line, column);
+            lastWasLineContinuation = false;
+        }
+
+        Parser.verifyBalanceCount(line, balance);
+        if (lastWasLineContinuation) {
+            throw new IncompleteInputError("Line continuation at end of file at line " + line);
+        }
+        this.add(EOF, length, length, line, length - lineStart);
+    }
+
+    private void add(int type, int start, int end, int line, int column) {
+        if (this.count == this.types.length) {
+            int capacity = this.count * 2;
+            this.types = Arrays.copyOf(this.types, capacity);
+            this.starts = Arrays.copyOf(this.starts, capacity);
+            this.ends = Arrays.copyOf(this.ends, capacity);
+            this.lines = Arrays.copyOf(this.lines, capacity);
+            this.columns = Arrays.copyOf(this.columns, capacity);
+        }
+        this.types[this.count] = type;
+        this.starts[this.count] = start;
+        this.ends[this.count] = end;
+        this.lines[this.count] = line;
+        this.columns[this.count] = column;
+        this.count++;
+    }
+
+    private static int singleCharType(char ch) {
+        switch (ch) {
+            case '+':
+                return PLUS;
+            case '-':
+                return MINUS;
+            case '*':
+                return MULTIPLY;
+            case '/':
+                return DIVIDE;
+            case '^':
+                return POW;
+            case ',':
+                return COMMA;
+            case '(':
+                return LPAREN;
+            case ')':
+                return RPAREN;
+            default:
+                return ERROR;
+        }
+    }
+
+    /**
+     * Returns the index just past the string literal starting at the given quote,
+     * or -1 if no valid literal starts there.
+     */
+    static int endOfString(CharSequence in, int quote) {
+        int pos = quote + 1;
+        while (pos < in.length()) {
+            char ch = in.charAt(pos);
+            if (ch == '"') {
+                return pos + 1;
+            } else if (ch == '\\') {
+                if (pos + 1 >= in.length() || (in.charAt(pos + 1) != '"' && in.charAt(pos + 1) != '\\')) {
+                    return -1;
+                }
+                pos += 2;
+            } else if (isLineBreak(ch)) {
+                return -1;
+            } else {
+                pos++;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipDigits(CharSequence in, int pos) {
+        while (pos < in.length() && isDigit(in.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    static boolean isLineBreak(char ch) {
+        return ch == '\n' || ch == '\r';
+    }
+
+    private static boolean isDigit(char ch) {
+        return ch >= '0' && ch <= '9';
+    }
+
+    private static boolean isIdentifierStart(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || ch == '_';
+    }
+}
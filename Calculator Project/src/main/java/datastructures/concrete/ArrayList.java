@@ -0,0 +1,157 @@
+package datastructures.concrete;
+
+import datastructures.interfaces.IList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import misc.exceptions.EmptyContainerException;
+
+/**
+ * An IList backed by a growable array.
+ *
+ * Unlike DoubleLinkedList, get and set run in O(1) time and adding to the end
+ * runs in amortized O(1) time without allocating a node per element. Inserting
+ * or deleting anywhere but the end shifts the later elements over.
+ *
+ * Note: For more info on the expected behavior of your methods, see
+ * the source code for IList.
+ */
+public class ArrayList<T> implements IList<T> {
+    private static final int DEFAULT_CAPACITY = 4;
+
+    private T[] data;
+    private int size;
+
+    public ArrayList() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an empty list able to hold the given number of elements before
+     * it needs to grow.
+     *
+     * @throws IllegalArgumentException  if the given capacity is negative
+     */
+    public ArrayList(int initialCapacity) {
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("Capacity cannot be negative: " + initialCapacity);
+        }
+        this.data = makeArray(initialCapacity);
+        this.size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> E[] makeArray(int arraySize) {
+        return (E[]) new Object[arraySize];
+    }
+
+    @Override
+    public void add(T item) {
+        this.ensureCapacity(this.size + 1);
+        this.data[this.size] = item;
+        this.size++;
+    }
+
+    @Override
+    public T remove() {
+        if (this.size == 0) {
+            throw new EmptyContainerException();
+        }
+        this.size--;
+        T item = this.data[this.size];
+        this.data[this.size] = null;
+        return item;
+    }
+
+    @Override
+    public T get(int index) {
+        this.checkIndex(index);
+        return this.data[index];
+    }
+
+    @Override
+    public void set(int index, T item) {
+        this.checkIndex(index);
+        this.data[index] = item;
+    }
+
+    @Override
+    public void insert(int index, T item) {
+        if (index < 0 || index > this.size) {
+            throw new IndexOutOfBoundsException();
+        }
+        this.ensureCapacity(this.size + 1);
+        System.arraycopy(this.data, index, this.data, index + 1, this.size - index);
+        this.data[index] = item;
+        this.size++;
+    }
+
+    @Override
+    public T delete(int index) {
+        this.checkIndex(index);
+        T item = this.data[index];
+        System.arraycopy(this.data, index + 1, this.data, index, this.size - index - 1);
+        this.size--;
+        this.data[this.size] = null;
+        return item;
+    }
+
+    @Override
+    public int indexOf(T item) {
+        for (int i = 0; i < this.size; i++) {
+            if (item == this.data[i] || (item != null && item.equals(this.data[i]))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public boolean contains(T other) {
+        return this.indexOf(other) > -1;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new ArrayListIterator();
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= this.size) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    /*
+     * Grows the backing array, doubling it, so it can hold at least the given
+     * number of elements.
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity > this.data.length) {
+            T[] newData = makeArray(Math.max(capacity, 2 * this.data.length));
+            System.arraycopy(this.data, 0, newData, 0, this.size);
+            this.data = newData;
+        }
+    }
+
+    private class ArrayListIterator implements Iterator<T> {
+        private int index = 0;
+
+        public boolean hasNext() {
+            return this.index < ArrayList.this.size;
+        }
+
+        public T next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T item = ArrayList.this.data[this.index];
+            this.index++;
+            return item;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package datastructures.concrete;
+
+import datastructures.interfaces.IList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import misc.exceptions.EmptyContainerException;
+
+/**
+ * An IList of doubles backed by a growable primitive double[] array.
+ *
+ * This behaves like ArrayList<Double>, except that the numbers are stored unboxed:
+ * 'addDouble' and 'getDouble' never allocate a Double object, and 'toArray' hands
+ * the numbers back as a plain array. The regular IList methods still work, and box
+ * or unbox values as needed. Null is not a valid element.
+ *
+ * Note: For more info on the expected behavior of your methods, see
+ * the source code for IList.
+ */
+public class DoubleArrayList implements IList<Double> {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private double[] data;
+    private int size;
+
+    public DoubleArrayList() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an empty list able to hold the given number of elements before
+     * it needs to grow.
+     *
+     * @throws IllegalArgumentException  if the given capacity is negative
+     */
+    public DoubleArrayList(int initialCapacity) {
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("Capacity cannot be negative: " + initialCapacity);
+        }
+        this.data = new double[initialCapacity];
+        this.size = 0;
+    }
+
+    /**
+     * Creates a list that holds the first 'size' elements of the given array. The
+     * array is used directly, not copied, so the caller must not modify it afterwards.
+     *
+     * @throws IllegalArgumentException  if size is negative or larger than the array
+     */
+    public static DoubleArrayList wrap(double[] values, int size) {
+        if (size < 0 || size > values.length) {
+            throw new IllegalArgumentException("Invalid size " + size + " for array of length " + values.length);
+        }
+        DoubleArrayList list = new DoubleArrayList(0);
+        list.data = values;
+        list.size = size;
+        return list;
+    }
+
+    /**
+     * Adds the given number to the end of this list without boxing it.
+     */
+    public void addDouble(double item) {
+        if (this.size == this.data.length) {
+            this.grow(this.size + 1);
+        }
+        this.data[this.size] = item;
+        this.size++;
+    }
+
+    /**
+     * Returns the number located at the given index without boxing it.
+     *
+     * @throws IndexOutOfBoundsException if the index < 0 or index >= this.size()
+     */
+    public double getDouble(int index) {
+        this.checkIndex(index);
+        return this.data[index];
+    }
+
+    /**
+     * Returns a new array containing every number in this list, in order.
+     */
+    public double[] toArray() {
+        double[] out = new double[this.size];
+        System.arraycopy(this.data, 0, out, 0, this.size);
+        return out;
+    }
+
+    @Override
+    public void add(Double item) {
+        this.addDouble(item);
+    }
+
+    @Override
+    public Double remove() {
+        if (this.size == 0) {
+            throw new EmptyContainerException();
+        }
+        this.size--;
+        return this.data[this.size];
+    }
+
+    @Override
+    public Double get(int index) {
+        return this.getDouble(index);
+    }
+
+    @Override
+    public void set(int index, Double item) {
+        this.checkIndex(index);
+        this.data[index] = item;
+    }
+
+    @Override
+    public void insert(int index, Double item) {
+        if (index < 0 || index > this.size) {
+            throw new IndexOutOfBoundsException();
+        }
+        double value = item;
+        if (this.size == this.data.length) {
+            this.grow(this.size + 1);
+        }
+        System.arraycopy(this.data, index, this.data, index + 1, this.size - index);
+        this.data[index] = value;
+        this.size++;
+    }
+
+    @Override
+    public Double delete(int index) {
+        this.checkIndex(index);
+        double item = this.data[index];
+        System.arraycopy(this.data, index + 1, this.data, index, this.size - index - 1);
+        this.size--;
+        return item;
+    }
+
+    @Override
+    public int indexOf(Double item) {
+        if (item == null) {
+            return -1;
+        }
+        for (int i = 0; i < this.size; i++) {
+            if (item.equals(this.data[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public boolean contains(Double other) {
+        return this.indexOf(other) > -1;
+    }
+
+    @Override
+    public Iterator<Double> iterator() {
+        return new DoubleArrayListIterator();
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= this.size) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    private void grow(int capacity) {
+        double[] newData = new double[Math.max(capacity, 2 * this.data.length)];
+        System.arraycopy(this.data, 0, newData, 0, this.size);
+        this.data = newData;
+    }
+
+    private class DoubleArrayListIterator implements Iterator<Double> {
+        private int index = 0;
+
+        public boolean hasNext() {
+            return this.index < DoubleArrayList.this.size;
+        }
+
+        public Double next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            double item = DoubleArrayList.this.data[this.index];
+            this.index++;
+            return item;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package datastructures.concrete.dictionaries;
+
+import datastructures.interfaces.IDictionary;
+import misc.exceptions.NoSuchKeyException;
+
+/**
+ * A hash table implementation of IDictionary that resolves collisions by chaining.
+ *
+ * Unlike ArrayDictionary, every operation locates its key with a single probe of
+ * one bucket, so get, put, remove and containsKey all run in expected O(1) time.
+ * The table doubles in size whenever the load factor exceeds MAX_LOAD_FACTOR.
+ *
+ * See IDictionary for more details on what this class should do.
+ */
+public class ChainedHashDictionary<K, V> implements IDictionary<K, V> {
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final double MAX_LOAD_FACTOR = 0.75;
+
+    private Entry<K, V>[] chains;
+    private int size;
+    private int resizeThreshold;
+
+    public ChainedHashDictionary() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an empty dictionary able to hold roughly the given number of
+     * key-value pairs before it needs to resize.
+     *
+     * @throws IllegalArgumentException  if the given capacity is negative
+     */
+    public ChainedHashDictionary(int initialCapacity) {
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("Capacity cannot be negative: " + initialCapacity);
+        }
+        int capacity = 1;
+        while (capacity * MAX_LOAD_FACTOR < initialCapacity) {
+            capacity *= 2;
+        }
+        this.chains = makeArrayOfChains(Math.max(capacity, 2));
+        this.resizeThreshold = (int) (this.chains.length * MAX_LOAD_FACTOR);
+        this.size = 0;
+    }
+
+    /**
+     * This method will return a new, empty array of the given size
+     * that can contain Entry<K, V> objects.
+     *
+     * Note that each element in the array will initially be null.
+     */
+    @SuppressWarnings("unchecked")
+    private Entry<K, V>[] makeArrayOfChains(int arraySize) {
+        return (Entry<K, V>[]) new Entry[arraySize];
+    }
+
+    @Override
+    public V get(K key) {
+        Entry<K, V> entry = this.findEntry(key);
+        if (entry == null) {
+            throw new NoSuchKeyException();
+        }
+        return entry.value;
+    }
+
+    @Override
+    public V getOrDefault(K key, V defaultValue) {
+        Entry<K, V> entry = this.findEntry(key);
+        return entry == null ? defaultValue : entry.value;
+    }
+
+    @Override
+    public void put(K key, V value) {
+        int hash = hash(key);
+        int index = indexFor(hash, this.chains.length);
+        for (Entry<K, V> cur = this.chains[index]; cur != null; cur = cur.next) {
+            if (cur.hash == hash && keysEqual(cur.key, key)) {
+                cur.value = value;
+                return;
+            }
+        }
+        this.chains[index] = new Entry<>(hash, key, value, this.chains[index]);
+        this.size++;
+        if (this.size > this.resizeThreshold) {
+            this.resize(2 * this.chains.length);
+        }
+    }
+
+    @Override
+    public V remove(K key) {
+        int hash = hash(key);
+        int index = indexFor(hash, this.chains.length);
+        Entry<K, V> prev = null;
+        for (Entry<K, V> cur = this.chains[index]; cur != null; cur = cur.next) {
+            if (cur.hash == hash && keysEqual(cur.key, key)) {
+                if (prev == null) {
+                    this.chains[index] = cur.next;
+                } else {
+                    prev.next = cur.next;
+                }
+                this.size--;
+                return cur.value;
+            }
+            prev = cur;
+        }
+        throw new NoSuchKeyException();
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return this.findEntry(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns the entry corresponding to the given key, or null if no such
+     * entry exists.
+     */
+    private Entry<K, V> findEntry(K key) {
+        int hash = hash(key);
+        for (Entry<K, V> cur = this.chains[indexFor(hash, this.chains.length)]; cur != null; cur = cur.next) {
+            if (cur.hash == hash && keysEqual(cur.key, key)) {
+                return cur;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves every entry into a new table of the given capacity. Entries keep
+     * their cached hash, so no key has its hashCode recomputed.
+     */
+    private void resize(int newCapacity) {
+        Entry<K, V>[] newChains = makeArrayOfChains(newCapacity);
+        for (Entry<K, V> head : this.chains) {
+            Entry<K, V> cur = head;
+            while (cur != null) {
+                Entry<K, V> next = cur.next;
+                int index = indexFor(cur.hash, newCapacity);
+                cur.next = newChains[index];
+                newChains[index] = cur;
+                cur = next;
+            }
+        }
+        this.chains = newChains;
+        this.resizeThreshold = (int) (newCapacity * MAX_LOAD_FACTOR);
+    }
+
+    /**
+     * Returns the hash code of the given key with its high bits folded into the
+     * low ones, since the bucket index only looks at the low bits.
+     */
+    private static int hash(Object key) {
+        if (key == null) {
+            return 0;
+        }
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int indexFor(int hash, int capacity) {
+        // The capacity is always a power of two.
+        return hash & (capacity - 1);
+    }
+
+    private static boolean keysEqual(Object a, Object b) {
+        return a == b || (a != null && a.equals(b));
+    }
+
+    private static class Entry<K, V> {
+        public final int hash;
+        public final K key;
+        public V value;
+        public Entry<K, V> next;
+
+        public Entry(int hash, K key, V value, Entry<K, V> next) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+            this.next = next;
+        }
+
+        public String toString() {
+            return this.key + "=" + this.value;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package calculator;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import calculator.ast.AstNode;
+import datastructures.concrete.ArrayList;
+import datastructures.interfaces.IList;
+import misc.BaseTest;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class TestAstNode extends BaseTest {
+    private static IList<AstNode> listOf(AstNode... nodes) {
+        IList<AstNode> list = new ArrayList<>();
+        for (AstNode node : nodes) {
+            list.add(node);
+        }
+        return list;
+    }
+
+    @Test(timeout=SECOND)
+    public void testEqualsIsStructural() {
+        AstNode a = new AstNode("+", listOf(new AstNode("x"), new AstNode(2.0)));
+        AstNode b = new AstNode("+", listOf(new AstNode("x"), new AstNode(2.0)));
+        AstNode c = new AstNode("+", listOf(new AstNode(2.0), new AstNode("x")));
+
+        assertNotSame(a, b);
+        assertTrue(a.equals(b));
+        assertEquals(a.hashCode(), b.hashCode());
+        assertFalse(a.equals(c));
+        assertFalse(new AstNode("x").equals(new AstNode("x", listOf())));
+        assertFalse(new AstNode(0.0).equals(new AstNode(-0.0)));
+    }
+
+    @Test(timeout=SECOND)
+    public void testFactoriesShareIdenticalSubtrees() {
+        AstNode a = AstNode.variable("a");
+        AstNode c = AstNode.variable("c");
+        AstNode square = AstNode.operation("^", listOf(a, AstNode.number(2.0)));
+        AstNode first = AstNode.operation("+", listOf(square, AstNode.operation("*", listOf(c, a))));
+        AstNode second = AstNode.operation("+", listOf(
+                AstNode.operation("^", listOf(AstNode.variable("a"), AstNode.number(2.0))),
+                AstNode.operation("*", listOf(AstNode.variable("c"), AstNode.variable("a")))));
+
+        assertSame(first, second);
+        assertSame(square, second.getChildren().get(0));
+        assertSame(first, new AstNode("+", first.getChildren()).intern());
+    }
+
+    @Test(timeout=10 * SECOND)
+    public void testFactoriesAgreeAcrossThreads() throws InterruptedException {
+        int numThreads = 4;
+        int numTrees = 2000;
+        AstNode[][] results = new AstNode[numThreads][numTrees];
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            AstNode[] out = results[t];
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < numTrees; i++) {
+                    out[i] = AstNode.operation("*", listOf(
+                            AstNode.variable("threaded"),
+                            AstNode.operation("+", listOf(AstNode.number(i), AstNode.variable("y")))));
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // Every thread got the very same node for each tree
+        for (int i = 0; i < numTrees; i++) {
+            for (int t = 1; t < numThreads; t++) {
+                assertSame(results[0][i], results[t][i]);
+            }
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testChildrenAreReadOnly() {
+        IList<AstNode> children = listOf(new AstNode(1.0), new AstNode(2.0));
+        AstNode node = new AstNode("+", children);
+
+        // Changing the original list does not affect the node
+        children.set(0, new AstNode(5.0));
+        assertEquals(1.0, node.getChildren().get(0).getNumericValue());
+
+        try {
+            node.getChildren().set(0, new AstNode(3.0));
+            fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException ex) {
+            // All ok -- expected result
+        }
+        try {
+            node.getChildren().add(new AstNode(3.0));
+            fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException ex) {
+            // All ok -- expected result
+        }
+        assertEquals(2, node.getChildren().size());
+    }
+
+    @Test(timeout=SECOND)
+    public void testWithChildrenReusesUnchangedNode() {
+        AstNode node = AstNode.operation("sin", listOf(AstNode.variable("x")));
+        assertSame(node, node.withChildren(listOf(node.getChildren().get(0))));
+
+        AstNode changed = node.withChildren(listOf(AstNode.number(1.0)));
+        assertNotSame(node, changed);
+        assertEquals("sin", changed.getName());
+        assertEquals(1.0, changed.getChildren().get(0).getNumericValue());
+    }
+}
@@ -1,8 +1,16 @@
 package calculator;
 
+import calculator.ast.AstNode;
 import calculator.errors.EvaluationError;
+import calculator.errors.InterruptedError;
+import calculator.errors.ParseError;
 import calculator.gui.ImageDrawer;
+import calculator.interpreter.AstCache;
 import calculator.interpreter.Calculator;
+import calculator.interpreter.CalculatorOptions;
+import calculator.interpreter.SimplifyMemo;
+import calculator.interpreter.VariableListener;
+import datastructures.concrete.DoubleLinkedList;
 import datastructures.interfaces.IList;
 import misc.BaseTest;
 import org.junit.ComparisonFailure;
@@ -11,9 +19,17 @@ import org.junit.FixMethodOrder;
 import org.junit.Test;
 import org.junit.runners.MethodSorters;
 
+import java.awt.Color;
+import java.awt.Rectangle;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.Arrays;
+import javax.swing.JPanel;
 
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
@@ -197,6 +213,224 @@ public class TestCalculator extends BaseTest {
         }
     }
 
+    @Test(timeout=SECOND)
+    public void testPlotUsesVariableDefinitions() {
+        FakeImageDrawer drawer = new FakeImageDrawer();
+
+        Calculator calc = new Calculator();
+        calc.setImageDrawer(drawer);
+
+        calc.evaluate("y := 2 * x + 1");
+        calc.evaluate("plot(y / 2, x, 0, 4, 1)");
+        IList<Double> xs = drawer.lastXValues;
+        IList<Double> ys = drawer.lastYValues;
+        assertEquals(5, xs.size());
+        for (int i = 0; i <= 4; i += 1) {
+            assertEquals((double) i, xs.get(i));
+            assertEquals((2.0 * i + 1) / 2, ys.get(i));
+        }
+        assertEquals("2 * x + 1", calc.evaluate("y"));
+    }
+
+    @Test(timeout=SECOND)
+    public void testLoopBuiltins() {
+        Calculator calc = new Calculator();
+        assertEquals("45", calc.evaluate("for(0, 10, i, 1, i)"));
+        assertEquals("45", calc.evaluate("for(10, 0, i, -1, i)"));
+        calc.evaluate("c := 2");
+        assertEquals("50", calc.evaluate("for(0, 5, i, 1, i ^ c + c * c)"));
+        assertEquals("0", calc.evaluate("for(0, 5, i, 1, sin(i))"));
+        assertEquals("i", calc.evaluate("i"));
+    }
+
+    @Test(timeout=SECOND)
+    public void testPlotJitMatchesClosures() {
+        String[] inputs = {"c := 4", "plot(sin(a)^2 + c*a / (a - 1) - -a, a, -10, 10, 0.25)"};
+
+        FakeImageDrawer closureDrawer = new FakeImageDrawer();
+        Calculator closureCalc = new Calculator();
+        closureCalc.setImageDrawer(closureDrawer);
+        closureCalc.getOptions().setJitThreshold(CalculatorOptions.JIT_DISABLED);
+
+        FakeImageDrawer jitDrawer = new FakeImageDrawer();
+        Calculator jitCalc = new Calculator();
+        jitCalc.setImageDrawer(jitDrawer);
+        jitCalc.getOptions().setJitThreshold(0);
+
+        for (String input : inputs) {
+            closureCalc.evaluate(input);
+            jitCalc.evaluate(input);
+        }
+        assertEquals(closureDrawer.lastYValues.size(), jitDrawer.lastYValues.size());
+        for (int i = 0; i < jitDrawer.lastYValues.size(); i++) {
+            assertEquals(closureDrawer.lastYValues.get(i), jitDrawer.lastYValues.get(i));
+        }
+    }
+
+    @Test(timeout=5 * SECOND)
+    public void testParallelPlotMatchesSequential() {
+        String[] inputs = {"c := 4", "plot(sin(a)^2 + c*a / (a - 1) - -a, a, -100, 100, 0.001)"};
+
+        FakeImageDrawer sequentialDrawer = new FakeImageDrawer();
+        Calculator sequentialCalc = new Calculator();
+        sequentialCalc.setImageDrawer(sequentialDrawer);
+        sequentialCalc.getOptions().setParallelPlotThreshold(CalculatorOptions.PARALLEL_DISABLED);
+
+        FakeImageDrawer parallelDrawer = new FakeImageDrawer();
+        Calculator parallelCalc = new Calculator();
+        parallelCalc.setImageDrawer(parallelDrawer);
+        parallelCalc.getOptions().setParallelPlotThreshold(1);
+
+        for (String input : inputs) {
+            sequentialCalc.evaluate(input);
+            parallelCalc.evaluate(input);
+        }
+        assertEquals(200001, parallelDrawer.lastYValues.size());
+        assertEquals(sequentialDrawer.lastYValues.size(), parallelDrawer.lastYValues.size());
+        for (int i = 0; i < parallelDrawer.lastYValues.size(); i++) {
+            assertEquals(sequentialDrawer.lastXValues.get(i), parallelDrawer.lastXValues.get(i));
+            assertEquals(sequentialDrawer.lastYValues.get(i), parallelDrawer.lastYValues.get(i));
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testAdaptivePlotFollowsCurve() {
+        FakeImageDrawer drawer = new FakeImageDrawer();
+        Calculator calc = new Calculator();
+        calc.setImageDrawer(drawer);
+
+        // The points run over the same x values as 'plot'
+        calc.evaluate("plot(2 * x + 1, x, -10, 10, 0.001)");
+        double plotEnd = drawer.lastXValues.get(drawer.lastXValues.size() - 1);
+
+        // A straight line needs no refining: the points are filled in along it
+        calc.evaluate("plotAdaptive(2 * x + 1, x, -10, 10, 0.001)");
+        assertTrue(drawer.lastXValues.size() <= 801);
+        assertEquals(-10.0, drawer.lastXValues.get(0));
+        assertEquals(plotEnd, drawer.lastXValues.get(drawer.lastXValues.size() - 1));
+        for (int i = 0; i < drawer.lastXValues.size(); i++) {
+            double x = drawer.lastXValues.get(i);
+            assertTrue(Math.abs(2 * x + 1 - drawer.lastYValues.get(i)) < 1e-9);
+        }
+
+        // The user's step is the finest the samples ever get
+        calc.evaluate("plotAdaptive(x * sin(x), x, -20, 20, 0.5)");
+        for (int i = 1; i < drawer.lastXValues.size(); i++) {
+            double x = drawer.lastXValues.get(i);
+            assertTrue(x - drawer.lastXValues.get(i - 1) >= 0.5 - 1e-9);
+            assertTrue(Math.abs(x * Math.sin(x) - drawer.lastYValues.get(i)) < 1e-9);
+        }
+
+        // Points filled in along a line stay within about a pixel of the curve
+        calc.evaluate("plotAdaptive(sin(3 * x), x, -5, 5, 0.0001)");
+        for (int i = 0; i < drawer.lastXValues.size(); i++) {
+            double x = drawer.lastXValues.get(i);
+            assertTrue(Math.abs(Math.sin(3 * x) - drawer.lastYValues.get(i)) < 0.01);
+        }
+
+        assertEquals("x", calc.evaluate("x"));
+    }
+
+    @Test(timeout=5 * SECOND)
+    public void testAdaptivePlotDrawsSamePicture() {
+        String[] exprs = {"sin(x * 20)", "sin(x * 37) * x", "1 / (x - 3.3)"};
+        for (String expr : exprs) {
+            String args = "(" + expr + ", x, 0, 10, 0.001)";
+            BufferedImage plotted = renderPlot("plot" + args);
+            BufferedImage adaptive = renderPlot("plotAdaptive" + args);
+
+            // Up to rounding along the edges of the curve, the pictures are the same
+            int different = 0;
+            for (int x = 0; x < plotted.getWidth(); x++) {
+                for (int y = 0; y < plotted.getHeight(); y++) {
+                    if (plotted.getRGB(x, y) != adaptive.getRGB(x, y)) {
+                        different++;
+                    }
+                }
+            }
+            assertTrue(expr + ": " + different + " pixels differ", different < 2000);
+        }
+    }
+
+    private static BufferedImage renderPlot(String input) {
+        BufferedImage image = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+        Calculator calc = new Calculator();
+        calc.setImageDrawer(new ImageDrawer(image));
+        calc.evaluate(input);
+        return image;
+    }
+
+    @Test(timeout=5 * SECOND)
+    public void testRasterizedPlotCoversEveryColumn() {
+        BufferedImage image = new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB);
+        Calculator calc = new Calculator();
+        calc.setImageDrawer(new ImageDrawer(image));
+        calc.evaluate("plot(sin(x), x, 0, 10, 0.00001)");
+
+        // A million points still leave a mark in (nearly) every pixel column
+        int marked = 0;
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                if (image.getRGB(x, y) == Color.RED.getRGB()) {
+                    marked++;
+                    break;
+                }
+            }
+        }
+        assertTrue(marked > 300);
+    }
+
+    @Test(timeout=SECOND)
+    public void testRasterizedPlotWithHugeValues() {
+        // Adding the tick spacing to 1e17 doesn't change it, so the ticks can't be
+        // found by stepping from one to the next
+        BufferedImage image = new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB);
+        ImageDrawer drawer = new ImageDrawer(image);
+        IList<Double> xs = new DoubleLinkedList<>();
+        IList<Double> ys = new DoubleLinkedList<>();
+        xs.add(0.0);
+        xs.add(1.0);
+        ys.add(1e17);
+        ys.add(1e17 + 16);
+        drawer.drawScatterPlot("", "x", "y", xs, ys);
+
+        int marked = 0;
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                if (image.getRGB(x, y) == Color.RED.getRGB()) {
+                    marked++;
+                }
+            }
+        }
+        assertTrue(marked > 0);
+    }
+
+    @Test(timeout=SECOND)
+    public void testDrawingMarksRegionDirty() {
+        IList<Rectangle> repainted = new DoubleLinkedList<>();
+        JPanel panel = new JPanel() {
+            @Override
+            public void repaint(long tm, int x, int y, int width, int height) {
+                repainted.add(new Rectangle(x, y, width, height));
+            }
+        };
+        BufferedImage image = new BufferedImage(400, 300, BufferedImage.TYPE_INT_RGB);
+        Calculator calc = new Calculator();
+        ImageDrawer drawer = new ImageDrawer(image, panel);
+        calc.setImageDrawer(drawer);
+
+        // Setting up the panel repaints it too
+        int before = repainted.size();
+        calc.evaluate("1 + 2");
+        assertEquals(before, repainted.size());
+        calc.evaluate("plot(x, x, 0, 1, 0.5)");
+        assertEquals(before + 1, repainted.size());
+        assertEquals(new Rectangle(0, 0, 400, 300), repainted.get(before));
+        drawer.clear();
+        assertEquals(before + 2, repainted.size());
+        assertEquals(new Rectangle(0, 0, 400, 300), repainted.get(before + 1));
+    }
+
     @Test(timeout=SECOND)
     public void testPlotCleansUpVariable() {
         Calculator calc = new Calculator();
@@ -261,6 +495,503 @@ public class TestCalculator extends BaseTest {
         }
     }
 
+    @Test(timeout=SECOND)
+    public void testRepeatedInputReusesCachedTree() {
+        Calculator calc = new Calculator();
+        AstCache cache = calc.getAstCache();
+        cache.setCapacity(2);
+
+        assertEquals("x + 2 + sin(x)", calc.evaluate("y := x + 2 + sin(x)"));
+        assertEquals("x + 2 + sin(x)", calc.evaluate("y"));
+        calc.evaluate("x := 3");
+        assertEquals("5 + sin(3)", calc.evaluate("y"));
+        calc.evaluate("x := -1");
+        assertEquals("1 + sin(-1)", calc.evaluate("y"));
+        assertEquals("-0.1585290151921035", calc.evaluate("toDouble(-y)"));
+        assertEquals("-0.1585290151921035", calc.evaluate("toDouble(-y)"));
+
+        assertEquals(2, cache.size());
+        assertEquals(3L, cache.getHitCount());
+        assertEquals(5L, cache.getMissCount());
+        assertEquals(3L, cache.getEvictionCount());
+    }
+
+    @Test(timeout=SECOND)
+    public void testSimplifyMemoTracksUpstreamChanges() {
+        Calculator calc = new Calculator();
+        SimplifyMemo memo = calc.getSimplifyMemo();
+
+        calc.evaluate("a := x + 1");
+        calc.evaluate("b := a * 2");
+        calc.evaluate("c := b - a");
+        assertEquals("(x + 1) * 2 - x + 1", calc.evaluate("c"));
+
+        // Nothing changed, so 'c' comes straight from the memo
+        long hits = memo.getHitCount();
+        assertEquals("(x + 1) * 2 - x + 1", calc.evaluate("c"));
+        assertEquals(hits + 1, memo.getHitCount());
+
+        // Defining a variable that used to be undefined invalidates everything downstream
+        calc.evaluate("x := 4");
+        assertEquals("5", calc.evaluate("a"));
+        assertEquals("5", calc.evaluate("c"));
+
+        // Unrelated variables do not
+        calc.evaluate("z := 100");
+        hits = memo.getHitCount();
+        assertEquals("5", calc.evaluate("c"));
+        assertEquals(hits + 1, memo.getHitCount());
+
+        // Assignments store their simplified right-hand side, so 'b' and 'c' read 'x'
+        calc.evaluate("a := 7");
+        assertEquals("7", calc.evaluate("a"));
+        assertEquals("10", calc.evaluate("b"));
+        calc.evaluate("x := 0");
+        assertEquals("2", calc.evaluate("b"));
+        assertEquals("1", calc.evaluate("toDouble(c)"));
+    }
+
+    @Test(timeout=SECOND)
+    public void testSubscribersSeeDownstreamChangesInOrder() {
+        Calculator calc = new Calculator();
+        calc.evaluate("total := price * qty + tax");
+        calc.evaluate("tax := price * rate");
+
+        IList<String> changes = new DoubleLinkedList<>();
+        VariableListener listener = (name, value) -> changes.add(name + " = " + calc.convertToString(value));
+        calc.subscribe(listener);
+
+        calc.evaluate("price := 10");
+        assertEquals(3, changes.size());
+        assertEquals("price = 10", changes.get(0));
+        assertEquals("tax = 10 * rate", changes.get(1));
+        assertEquals("total = 10 * qty + 10 * rate", changes.get(2));
+
+        calc.evaluate("rate := 0.5");
+        assertEquals("rate = 0.5", changes.get(3));
+        assertEquals("tax = 5", changes.get(4));
+        assertEquals("total = 10 * qty + 5", changes.get(5));
+
+        calc.unsubscribe(listener);
+        calc.evaluate("qty := 2");
+        assertEquals(6, changes.size());
+        assertEquals("25", calc.evaluate("total"));
+    }
+
+    @Test(timeout=SECOND)
+    public void testCyclicDefinitionsAreRejected() {
+        Calculator calc = new Calculator();
+        calc.evaluate("a := b + 1");
+        calc.evaluate("b := c * 2");
+
+        try {
+            calc.evaluate("c := a");
+            fail("Expected EvaluationError");
+        } catch (EvaluationError err) {
+            // All ok -- expected result
+        }
+        try {
+            calc.evaluate("x := x + 1");
+            fail("Expected EvaluationError");
+        } catch (EvaluationError err) {
+            // All ok -- expected result
+        }
+
+        // The failed assignments left everything as it was
+        assertEquals("c", calc.evaluate("c"));
+        assertEquals("c * 2 + 1", calc.evaluate("a"));
+        calc.evaluate("c := 3");
+        assertEquals("7", calc.evaluate("a"));
+        calc.evaluate("x := 1");
+        assertEquals("2", calc.evaluate("x := x + 1"));
+    }
+
+    @Test(timeout=SECOND)
+    public void testLoopVariablesStayInTheirFrame() {
+        Calculator calc = new Calculator();
+        calc.evaluate("y := i * 2");
+
+        // The nested loop keeps the outer body off the compiled path, so 'y' is
+        // re-simplified against each new value of 'i'
+        assertEquals("12", calc.evaluate("for(0, 4, i, 1, y + for(0, 1, j, 1, j))"));
+        assertEquals("i", calc.evaluate("i"));
+        assertEquals("i * 2", calc.evaluate("y"));
+
+        try {
+            calc.evaluate("for(0, 3, i, 1, block(i := 2, for(0, 1, j, 1, j)))");
+            fail("Expected EvaluationError");
+        } catch (EvaluationError err) {
+            // All ok -- expected result
+        }
+        assertEquals("i", calc.evaluate("i"));
+        assertEquals("j", calc.evaluate("j"));
+        assertEquals("12", calc.evaluate("for(0, 4, i, 1, y + for(0, 1, j, 1, j))"));
+    }
+
+    @Test(timeout=SECOND)
+    public void testSimplifyMemoHitsInsideLoops() {
+        Calculator calc = new Calculator();
+        SimplifyMemo memo = calc.getSimplifyMemo();
+        calc.evaluate("f := g * 2");
+        calc.evaluate("g := 3");
+        assertEquals("6", calc.evaluate("f"));
+
+        // Updating 'i' leaves 'f' alone, so every iteration reuses its entry
+        long hits = memo.getHitCount();
+        long misses = memo.getMissCount();
+        assertEquals("105", calc.evaluate("for(0, 10, i, 1, f + i + for(0, 1, j, 1, j))"));
+        assertEquals(hits + 10, memo.getHitCount());
+        assertEquals(misses, memo.getMissCount());
+    }
+
+    @Test(timeout=10 * SECOND)
+    public void testVeryDeepExpressions() {
+        StringBuilder sum = new StringBuilder("1");
+        for (int i = 1; i < 30000; i++) {
+            sum.append(" + 1");
+        }
+
+        Calculator calc = new Calculator();
+        assertEquals("30000", calc.evaluate(sum.toString()));
+        assertEquals("30000", calc.evaluate("toDouble(" + sum + ")"));
+        assertEquals("x + 1 + 1", calc.evaluate("x + 1 + 1"));
+
+        calc.evaluate("y := x - " + sum);
+        calc.evaluate("x := 5");
+        assertEquals("30003", calc.evaluate("y"));
+
+        calc.getOptions().setMaxDepth(1000);
+        try {
+            calc.evaluate("2 * (" + sum + ")");
+            fail("Expected ParseError");
+        } catch (ParseError err) {
+            // All ok -- expected result
+        }
+        calc.evaluate("x := 6");
+        try {
+            calc.evaluate("y");
+            fail("Expected EvaluationError");
+        } catch (EvaluationError err) {
+            // All ok -- expected result
+        }
+        assertEquals("7", calc.evaluate("x + 1"));
+    }
+
+    @Test(timeout=10 * SECOND)
+    public void testBytecodeMatchesInterpreter() {
+        String[] inputs = {
+            "a := 1",
+            "b := -2",
+            "for(0, 5, i, 1, if(i - 2, a * i, toDouble(i / 3)))",
+            "repeat(3, block(assign(a, a + b), a))",
+            "a",
+            "for(4, 0, i, -1, for(0, i, j, 1, i * j + b))",
+            "c := x + 1",
+            "if(b + 3, sin(a), 2)",
+            "for(0, 3, i, 1, c)",
+            "for(0, 2, a, 1, a)",
+            "repeat(a, 1)",
+            "a",
+        };
+        Calculator vm = new Calculator();
+        Calculator interpreted = new Calculator();
+        interpreted.getOptions().setBytecodeEnabled(false);
+        for (String input : inputs) {
+            assertEquals(input, this.evaluateOrError(interpreted, input), this.evaluateOrError(vm, input));
+        }
+
+        // Long loops run without building a tree per step
+        vm.evaluate("x := 0");
+        assertEquals("2000001000000", vm.evaluate("repeat(2000000, assign(x, x + 1))"));
+        assertEquals("2000000", vm.evaluate("x"));
+    }
+
+    @Test(timeout=SECOND)
+    public void testEvaluateColumnsMatchesEvaluate() {
+        Calculator calc = new Calculator();
+        calc.evaluate("a := 3");
+        calc.evaluate("f := a * x ^ 2 - sin(x) / y");
+
+        double[] xs = new double[2500];
+        double[] ys = new double[xs.length];
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = i * 0.01 - 12;
+            ys[i] = (i % 7) - 3;
+        }
+        String[] vars = {"x", "y"};
+        double[][] columns = {xs, ys};
+        double[] compiled = calc.evaluateColumns("f + x / x", vars, columns);
+        double[] interpreted = calc.evaluateColumns("if(1, toDouble(f + x / x), 0)", vars, columns);
+        for (int i = 0; i < xs.length; i += 97) {
+            Calculator single = new Calculator();
+            single.evaluate("a := 3");
+            single.evaluate("x := " + xs[i]);
+            single.evaluate("y := " + ys[i]);
+            double expected = Double.parseDouble(single.evaluate("toDouble(a * x ^ 2 - sin(x) / y + x / x)"));
+            assertEquals(expected, compiled[i]);
+            assertEquals(expected, interpreted[i]);
+        }
+
+        assertEquals(0, calc.evaluateColumn("x", "x", new double[0]).length);
+        assertEquals("x", calc.evaluate("x"));
+        try {
+            calc.evaluateColumn("a + 1", "a", xs);
+            fail("Expected EvaluationError");
+        } catch (EvaluationError err) {
+            // All ok -- expected result
+        }
+        try {
+            calc.evaluateColumn("x + z", "x", xs);
+            fail("Expected EvaluationError");
+        } catch (EvaluationError err) {
+            // All ok -- expected result
+        }
+        try {
+            calc.evaluateColumns("x + y", vars, new double[][] {xs, new double[3]});
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            // All ok -- expected result
+        }
+    }
+
+    @Test(timeout=5 * SECOND)
+    public void testInterruptCancelsLongLoops() throws InterruptedException {
+        Calculator vm = new Calculator();
+        Calculator interpreted = new Calculator();
+        interpreted.getOptions().setBytecodeEnabled(false);
+        for (Calculator calc : new Calculator[] {vm, interpreted}) {
+            this.assertCancels(calc, "for(0, 10^12, i, 1, i)");
+            this.assertCancels(calc, "for(0, 10^12, i, 1, y + i)");
+            this.assertCancels(calc, "repeat(10^12, 1)");
+            this.assertCancels(calc, "repeat(10^12, if(1, 1, 0))");
+
+            // Loop variables are cleaned up and stores are kept, as with any other error
+            assertEquals("i", calc.evaluate("i"));
+            calc.evaluate("x := 0");
+            this.assertCancels(calc, "repeat(10^12, assign(x, x + 1))");
+            assertTrue(Double.parseDouble(calc.evaluate("x")) > 0);
+            assertEquals("3", calc.evaluate("1 + 2"));
+        }
+    }
+
+    private void assertCancels(Calculator calc, String input) throws InterruptedException {
+        Thread evaluating = Thread.currentThread();
+        Thread canceller = new Thread(() -> {
+            try {
+                Thread.sleep(20);
+                evaluating.interrupt();
+            } catch (InterruptedException ex) {
+                // Nothing left to cancel
+            }
+        });
+        canceller.start();
+        try {
+            calc.evaluate(input);
+            fail("Expected InterruptedError");
+        } catch (InterruptedError err) {
+            // All ok -- expected result
+        } finally {
+            canceller.join();
+            Thread.interrupted();
+        }
+    }
+
+    private String evaluateOrError(Calculator calc, String input) {
+        try {
+            return calc.evaluate(input);
+        } catch (EvaluationError err) {
+            return "EvaluationError: " + err.getMessage();
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testFunctionRegisteredLater() {
+        Calculator calc = new Calculator();
+        assertEquals("double(3)", calc.evaluate("double(3)"));
+
+        calc.addCustomFunction("double", (env, node) ->
+                new AstNode(2 * node.getChildren().get(0).getNumericValue()));
+        assertEquals("6", calc.evaluate("double(3)"));
+        assertEquals("14", calc.evaluate("1 + double(3) * 2 + 1"));
+    }
+
+    @Test(timeout=SECOND)
+    public void testCompiledCodeStepsAsideForReplacedBuiltins() {
+        Calculator calc = new Calculator();
+        int[] calls = new int[1];
+        calc.addCustomFunction("*", (env, node) -> {
+            calls[0]++;
+            return new AstNode(42);
+        });
+
+        assertEquals("126", calc.evaluate("for(0, 3, i, 1, i * 2)"));
+        assertEquals(3, calls[0]);
+        calc.evaluate("repeat(5, 2 * 3)");
+        assertEquals(8, calls[0]);
+        assertEquals(42.0, calc.evaluateColumn("x * 2", "x", new double[] {1, 2, 3})[2]);
+    }
+
+    @Test(timeout=SECOND)
+    public void testJitTierStepsAsideForReplacedBuiltins() {
+        Calculator calc = new Calculator();
+        calc.getOptions().setJitThreshold(0);
+        assertEquals("20", calc.evaluate("for(0, 10, i, 1, 2)"));
+        assertEquals("90", calc.evaluate("for(0, 10, i, 1, i * 2)"));
+
+        calc.addCustomFunction("*", (env, node) -> new AstNode(42));
+        assertEquals("420", calc.evaluate("for(0, 10, i, 1, i * 2)"));
+        calc.addCustomFunction("*", (env, node) -> new AstNode(-1));
+        assertEquals("-10", calc.evaluate("for(0, 10, i, 1, i * 2)"));
+    }
+
+    @Test(timeout=5 * SECOND)
+    public void testCalculatorsKeepTheirOwnFunctions() throws InterruptedException {
+        // Both calculators parse "f(1) + f(2)" to the very same nodes
+        Calculator doubling = new Calculator();
+        doubling.addCustomFunction("f", (env, node) ->
+                new AstNode(2 * node.getChildren().get(0).getNumericValue()));
+        Calculator negating = new Calculator();
+        negating.addCustomFunction("f", (env, node) ->
+                new AstNode(-node.getChildren().get(0).getNumericValue()));
+
+        String[] failure = new String[1];
+        Thread other = new Thread(() -> {
+            for (int i = 0; i < 2000 && failure[0] == null; i++) {
+                String result = negating.evaluate("f(1) + f(2)");
+                if (!result.equals("-3")) {
+                    failure[0] = result;
+                }
+            }
+        });
+        other.start();
+        for (int i = 0; i < 2000; i++) {
+            assertEquals("6", doubling.evaluate("f(1) + f(2)"));
+        }
+        other.join();
+        assertEquals(null, failure[0]);
+    }
+
+    @Test(timeout=SECOND)
+    public void testExecuteRunsEachStatement() throws IOException {
+        Calculator calc = new Calculator();
+        String script = "x := 2\n"
+                + "# a comment\n"
+                + "\n"
+                + "f(x,\n"
+                + "  3)\n"
+                + "1 + \\\n"
+                + "  x\n"
+                + "1 +\n"
+                + "2)\n"
+                + "x ^ 2\n"
+                + "quit()\n"
+                + "x := 5\n";
+        StringBuilder out = new StringBuilder();
+        assertEquals(2, calc.execute(new StringReader(script), out));
+
+        String[] lines = out.toString().split("\n");
+        assertEquals(6, lines.length);
+        assertEquals("2", lines[0]);
+        assertEquals("f(2, 3)", lines[1]);
+        assertEquals("3", lines[2]);
+        assertTrue(lines[3], lines[3].startsWith("ERROR (line 8): "));
+        assertTrue(lines[4], lines[4].startsWith("ERROR (line 9): "));
+        assertEquals("4", lines[5]);
+        assertEquals("2", calc.evaluate("x"));
+    }
+
+    @Test(timeout=SECOND)
+    public void testExecuteReportsUnexpectedFailures() throws IOException {
+        Calculator calc = new Calculator();
+        String script = "1 + 1\n\"abc\"\n2 + 2\n";
+        StringBuilder out = new StringBuilder();
+        assertEquals(1, calc.execute(new StringReader(script), out));
+        assertEquals("2\nERROR (line 2): UnsupportedOperationException\n4\n", out.toString());
+    }
+
+    @Test(timeout=10 * SECOND)
+    public void testExecuteStreamsLongScripts() throws IOException {
+        // Hands out one statement at a time, so the script never exists as a whole
+        int statements = 50000;
+        Reader script = new Reader() {
+            private int next = 0;
+            private String line = "";
+            private int pos = 0;
+
+            @Override
+            public int read(char[] buffer, int offset, int length) {
+                if (this.pos == this.line.length()) {
+                    if (this.next == statements) {
+                        return -1;
+                    }
+                    this.line = this.next == 0 ? "x := 0\n" : "x := x + 1\n";
+                    this.pos = 0;
+                    this.next++;
+                }
+                int count = Math.min(length, this.line.length() - this.pos);
+                this.line.getChars(this.pos, this.pos + count, buffer, offset);
+                this.pos += count;
+                return count;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        Calculator calc = new Calculator();
+        StringBuilder out = new StringBuilder();
+        assertEquals(0, calc.execute(script, out));
+        assertTrue(out.toString().endsWith("\n49998\n49999\n"));
+        assertEquals(String.valueOf(statements - 1), calc.evaluate("x"));
+    }
+
+    @Test(timeout=10 * SECOND)
+    public void testBatchModeKeepsOrderInParallel() throws IOException {
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            script.append(i % 100 == 0 ? "1 +\n" : "toDouble(" + i + " * 2 / (1 +\n 1))\n");
+        }
+        script.append("\"abc\"\n");
+        script.append("plot(x, x, 0, 1, 0.5)\n");
+
+        StringBuilder sequential = new StringBuilder();
+        StringBuilder parallel = new StringBuilder();
+        try (BatchMode batch = new BatchMode(1)) {
+            batch.execute(new StringReader(script.toString()), sequential);
+            assertEquals(32, batch.getErrorCount());
+        }
+        try (BatchMode batch = new BatchMode(4)) {
+            batch.execute(new StringReader(script.toString()), parallel);
+            assertEquals(32, batch.getErrorCount());
+        }
+        assertEquals(sequential.toString(), parallel.toString());
+
+        String[] lines = parallel.toString().split("\n");
+        assertEquals(3002, lines.length);
+        assertEquals("ERROR (line 200): Line 1, col 3: Unxpected '\\n\\n'", lines[100]);
+        assertEquals("101", lines[101]);
+        assertEquals("ERROR (line 5971): UnsupportedOperationException", lines[3000]);
+        assertEquals("ERROR (line 5972): There is nothing to draw the plot on", lines[3001]);
+    }
+
+    @Test(timeout=SECOND)
+    public void testBatchModeStopsAtQuit() throws IOException {
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            script.append(i == 600 ? "quit()\n" : i + "\n");
+        }
+        for (int threads = 1; threads <= 4; threads += 3) {
+            StringBuilder out = new StringBuilder();
+            try (BatchMode batch = new BatchMode(threads)) {
+                batch.execute(new StringReader(script.toString()), out);
+                assertTrue(batch.hasQuit());
+                batch.execute(new StringReader("1\n"), out);
+            }
+            assertTrue(out.toString().endsWith("\n599\n"));
+        }
+    }
+
     private static class FakeImageDrawer extends ImageDrawer {
         public IList<Double> lastXValues;
         public IList<Double> lastYValues;
@@ -0,0 +1,258 @@
+package calculator;
+
+import static org.junit.Assert.fail;
+
+import calculator.errors.IncompleteInputError;
+import calculator.errors.ParseError;
+import calculator.interpreter.Calculator;
+import calculator.parser.InputState;
+import calculator.parser.Parser;
+import misc.BaseTest;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.util.Random;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class TestParser extends BaseTest {
+    // Inputs that exercise each corner of the grammar, valid or not
+    private static final String[] CORPUS = {
+        // Precedence and associativity
+        "1 + 2 * 3\n",
+        "1 - 2 - 3\n",
+        "8 / 4 / 2\n",
+        "2 ^ 3 ^ 2\n",
+        "-2 ^ 2\n",
+        "--x\n",
+        "2 * -3 ^ 2\n",
+        "1 - -2\n",
+        "2 ^ -1\n",
+        "(2) ^ (-1)\n",
+        "-(1 + 2) * 3\n",
+
+        // Atoms and calls
+        "x\n",
+        "3.25\n",
+        "f()\n",
+        "f(1, x + 2, g(y))\n",
+        "f (x)\n",
+        "f(,)\n",
+        "f(1,)\n",
+        "(1, 2)\n",
+        "()\n",
+        "\"string\"\n",
+        "1 + \"a\\\"b\"\n",
+        "\"unterminated\n",
+
+        // Statements
+        "x := 1 + 2\n",
+        "x := y := 1\n",
+        "(x := 1)\n",
+        "1 := 2\n",
+        "a := 1\nb := a\na + b\n",
+        "1 + 2",
+        "\n",
+        "",
+        "1\n\n\n2\n",
+        "1 2\n",
+
+        // Whitespace, comments and line continuations
+        "  1\t+ 2 # the sum\n",
+        "# only a comment\n",
+        "1 + \\\n 2\n",
+        "1 + \\\n",
+        "f(1,\n 2\n)\n",
+        "(1 +\r\n 2)\r\n",
+        "f(1 # first\n, 2)\n",
+        "1 \\ 2\n",
+
+        // Unbalanced parentheses and stray characters
+        "(1 + 2\n",
+        "1 + 2)\n",
+        "f(1))(\n",
+        "())(\n",
+        "1 @ 2\n",
+        "1.\n",
+        "1.5.3\n",
+        "2x\n",
+        "a : = 1\n",
+    };
+
+    private static final String[] PIECES = {
+        "1", "2.5", "x", "f", "(", ")", ",", "+", "-", "*", "/", "^", ":=", " ",
+        "\n", "\r\n", "\\\n", "#c\n", "\"s\"", "\"", ":", ".", "@", "\t", "\\",
+    };
+
+    @Test(timeout=SECOND)
+    public void testPrattMatchesAntlrOnCorpus() {
+        for (String input : CORPUS) {
+            assertSameOutcome(input, Integer.MAX_VALUE);
+            assertSameOutcome(input, 3);
+        }
+    }
+
+    @Test(timeout=10 * SECOND)
+    public void testPrattMatchesAntlrOnRandomInput() {
+        Random random = new Random(373);
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder input = new StringBuilder();
+            int length = 1 + random.nextInt(12);
+            for (int j = 0; j < length; j++) {
+                input.append(PIECES[random.nextInt(PIECES.length)]);
+            }
+            if (random.nextBoolean()) {
+                input.append("\n");
+            }
+            int maxDepth = random.nextInt(4) == 0 ? 1 + random.nextInt(5) : Integer.MAX_VALUE;
+            assertSameOutcome(input.toString(), maxDepth);
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testPrattParsesDeepNesting() {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            input.append("-(1 ^ (");
+        }
+        input.append("1");
+        for (int i = 0; i < 20000; i++) {
+            input.append("))");
+        }
+
+        Calculator calc = new Calculator();
+        calc.getOptions().setParserBackend(Parser.Backend.PRATT);
+        assertEquals("-1", calc.evaluate(input.toString()));
+        calc.getOptions().setMaxDepth(1000);
+        try {
+            calc.evaluate("0 + " + input);
+            fail("Expected ParseError");
+        } catch (ParseError err) {
+            // All ok -- expected result
+        }
+    }
+
+    @Test(timeout=10 * SECOND)
+    public void testAntlrRejectsTooDeepNesting() throws InterruptedException {
+        // Each of these overflows the stack of ANTLR's own parser, which is quicker
+        // to find out on a small stack
+        String[][] inputs = {
+            {"(", "1", ")"},
+            {"-", "1", ""},
+            {"2 ^ ", "1", ""},
+            {"f(", "1", ")"},
+        };
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                Parser parser = new Parser();
+                for (String[] pieces : inputs) {
+                    StringBuilder input = new StringBuilder();
+                    for (int i = 0; i < 5000; i++) {
+                        input.append(pieces[0]);
+                    }
+                    input.append(pieces[1]);
+                    for (int i = 0; i < 5000; i++) {
+                        input.append(pieces[2]);
+                    }
+                    input.append("\n");
+                    try {
+                        parser.parse(input.toString());
+                        fail("Expected ParseError");
+                    } catch (ParseError err) {
+                        assertEquals("Expression is nested too deeply to parse", err.getMessage());
+                    }
+
+                    // The parser is still usable afterwards
+                    assertEquals(parser.parse("-(1 + 2)\n", Integer.MAX_VALUE, Parser.Backend.PRATT),
+                            parser.parse("-(1 + 2)\n"));
+                }
+            } catch (Throwable ex) {
+                failure[0] = ex;
+            }
+        }, "Small stack", 256 * 1024);
+        thread.start();
+        thread.join();
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testInputStateMatchesParserOnCorpus() {
+        for (String input : CORPUS) {
+            assertSameCompleteness(input);
+        }
+        assertSameCompleteness("f(1,\n\n2)\n");
+        assertSameCompleteness("1 + \\\n\n\n");
+        assertSameCompleteness("(1 # comment (\n)\n");
+        assertSameCompleteness("\"(\" + (\n\"\n1)\n");
+    }
+
+    @Test(timeout=10 * SECOND)
+    public void testInputStateMatchesParserOnRandomInput() {
+        Random random = new Random(373);
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder input = new StringBuilder();
+            int length = 1 + random.nextInt(16);
+            for (int j = 0; j < length; j++) {
+                input.append(PIECES[random.nextInt(PIECES.length)]);
+            }
+            assertSameCompleteness(input.toString());
+        }
+    }
+
+    /**
+     * Feeds the given input to an InputState a line at a time, checking after each
+     * line that it is complete exactly when the lines so far parse without an
+     * IncompleteInputError.
+     */
+    private static void assertSameCompleteness(String input) {
+        InputState state = new InputState();
+        int start = 0;
+        while (start < input.length()) {
+            int end = input.indexOf('\n', start) + 1;
+            if (end == 0) {
+                end = input.length();
+            }
+            state.append(input.substring(start, end));
+            start = end;
+
+            String soFar = input.substring(0, end);
+            boolean complete = true;
+            try {
+                new Parser().parse(soFar);
+            } catch (IncompleteInputError err) {
+                complete = false;
+            } catch (ParseError | UnsupportedOperationException ex) {
+                // Complete, just invalid
+            }
+            assertEquals(soFar.replace("\n", "\\n").replace("\r", "\\r"), complete, state.isComplete());
+        }
+    }
+
+    /**
+     * Checks that both backends parse the given input to the same tree, or both
+     * fail the same way. Syntax error messages are allowed to differ.
+     */
+    private static void assertSameOutcome(String input, int maxDepth) {
+        String message = input.replace("\n", "\\n").replace("\r", "\\r") + " (max depth " + maxDepth + ")";
+        Object expected = outcome(input, maxDepth, Parser.Backend.ANTLR);
+        Object actual = outcome(input, maxDepth, Parser.Backend.PRATT);
+        assertEquals(message, expected, actual);
+    }
+
+    private static Object outcome(String input, int maxDepth, Parser.Backend backend) {
+        try {
+            return new Parser().parse(input, maxDepth, backend);
+        } catch (IncompleteInputError err) {
+            return "IncompleteInputError: " + err.getMessage();
+        } catch (ParseError err) {
+            boolean tooDeep = err.getMessage().startsWith("Expression is nested");
+            return "ParseError" + (tooDeep ? ": " + err.getMessage() : "");
+        } catch (UnsupportedOperationException ex) {
+            return "UnsupportedOperationException";
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package datastructures;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import datastructures.concrete.ArrayList;
+import datastructures.interfaces.IList;
+import misc.BaseTest;
+import misc.exceptions.EmptyContainerException;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class TestArrayList extends BaseTest {
+    protected <T> void assertListMatches(T[] expected, IList<T> actual) {
+        assertEquals(expected.length, actual.size());
+        assertEquals(expected.length == 0, actual.isEmpty());
+
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("Item at index " + i + " does not match", expected[i], actual.get(i));
+        }
+
+        Iterator<T> iter = actual.iterator();
+        for (int i = 0; i < expected.length; i++) {
+            assertTrue(iter.hasNext());
+            assertEquals(expected[i], iter.next());
+        }
+        assertFalse(iter.hasNext());
+    }
+
+    protected IList<String> makeBasicList() {
+        IList<String> list = new ArrayList<>();
+        list.add("a");
+        list.add("b");
+        list.add("c");
+        return list;
+    }
+
+    @Test(timeout=SECOND)
+    public void testAddAndGetBasic() {
+        IList<String> list = this.makeBasicList();
+        this.assertListMatches(new String[] {"a", "b", "c"}, list);
+    }
+
+    @Test(timeout=SECOND)
+    public void testZeroCapacityGrows() {
+        IList<Integer> list = new ArrayList<>(0);
+        for (int i = 0; i < 10; i++) {
+            list.add(i);
+        }
+        this.assertListMatches(new Integer[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9}, list);
+    }
+
+    @Test(timeout=SECOND)
+    public void testRemoveBasic() {
+        IList<String> list = this.makeBasicList();
+        assertEquals("c", list.remove());
+        assertEquals("b", list.remove());
+        assertEquals("a", list.remove());
+        this.assertListMatches(new String[] {}, list);
+
+        try {
+            list.remove();
+            fail("Expected EmptyContainerException");
+        } catch (EmptyContainerException ex) {
+            // Do nothing: this is ok
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testSetInsertDelete() {
+        IList<String> list = this.makeBasicList();
+        list.set(1, "x");
+        this.assertListMatches(new String[] {"a", "x", "c"}, list);
+
+        list.insert(0, "front");
+        list.insert(4, "back");
+        list.insert(2, "mid");
+        this.assertListMatches(new String[] {"front", "a", "mid", "x", "c", "back"}, list);
+
+        assertEquals("mid", list.delete(2));
+        assertEquals("front", list.delete(0));
+        assertEquals("back", list.delete(3));
+        this.assertListMatches(new String[] {"a", "x", "c"}, list);
+    }
+
+    @Test(timeout=SECOND)
+    public void testIndexOfAndContains() {
+        IList<String> list = this.makeBasicList();
+        list.add(null);
+        list.add("b");
+
+        assertEquals(1, list.indexOf("b"));
+        assertEquals(3, list.indexOf(null));
+        assertEquals(-1, list.indexOf("d"));
+        assertTrue(list.contains(null));
+        assertFalse(list.contains("d"));
+    }
+
+    @Test(timeout=SECOND)
+    public void testIndexErrorHandling() {
+        IList<String> list = this.makeBasicList();
+        int[] badIndices = {-1, 3, 100};
+        for (int index : badIndices) {
+            try {
+                list.get(index);
+                fail("Expected IndexOutOfBoundsException");
+            } catch (IndexOutOfBoundsException ex) {
+                // Do nothing: this is ok
+            }
+            try {
+                list.set(index, "x");
+                fail("Expected IndexOutOfBoundsException");
+            } catch (IndexOutOfBoundsException ex) {
+                // Do nothing: this is ok
+            }
+            try {
+                list.delete(index);
+                fail("Expected IndexOutOfBoundsException");
+            } catch (IndexOutOfBoundsException ex) {
+                // Do nothing: this is ok
+            }
+        }
+
+        try {
+            list.insert(4, "x");
+            fail("Expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException ex) {
+            // Do nothing: this is ok
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testIteratorThrowsAtEnd() {
+        Iterator<String> iter = new ArrayList<String>().iterator();
+        assertFalse(iter.hasNext());
+        try {
+            iter.next();
+            fail("Expected NoSuchElementException");
+        } catch (NoSuchElementException ex) {
+            // Do nothing: this is ok
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testGetManyIsEfficient() {
+        int cap = 1000000;
+        IList<Integer> list = new ArrayList<>();
+        for (int i = 0; i < cap; i++) {
+            list.add(i);
+        }
+        for (int i = 0; i < cap; i++) {
+            assertEquals(i, (int) list.get(i));
+        }
+        for (int i = cap - 1; i >= 0; i--) {
+            list.set(i, -i);
+        }
+        assertEquals(-(cap - 1), (int) list.get(cap - 1));
+    }
+}
@@ -0,0 +1,140 @@
+package datastructures;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import datastructures.concrete.dictionaries.ChainedHashDictionary;
+import datastructures.interfaces.IDictionary;
+import misc.BaseTest;
+import misc.exceptions.NoSuchKeyException;
+
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class TestChainedHashDictionary extends BaseTest {
+    private IDictionary<String, String> makeBasicDictionary() {
+        IDictionary<String, String> dict = new ChainedHashDictionary<>();
+        dict.put("keyA", "valA");
+        dict.put("keyB", "valB");
+        dict.put("keyC", "valC");
+        return dict;
+    }
+
+    @Test(timeout=SECOND)
+    public void basicTestConstructor() {
+        IDictionary<String, String> dict = this.makeBasicDictionary();
+        assertEquals(3, dict.size());
+        assertEquals("valA", dict.get("keyA"));
+        assertEquals("valB", dict.get("keyB"));
+        assertEquals("valC", dict.get("keyC"));
+    }
+
+    @Test(timeout=SECOND)
+    public void basicTestPutSameKey() {
+        IDictionary<String, String> dict = new ChainedHashDictionary<>();
+        dict.put("a", "b");
+        dict.put("a", "c");
+        assertEquals(1, dict.size());
+        assertEquals("c", dict.get("a"));
+    }
+
+    @Test(timeout=SECOND)
+    public void testGetErrorHandling() {
+        IDictionary<String, Integer> dict = new ChainedHashDictionary<>();
+        try {
+            dict.get("foo");
+            fail("Expected NoSuchKeyException");
+        } catch (NoSuchKeyException ex) {
+            // This is ok: do nothing
+        }
+
+        dict.put("foo", 3);
+        try {
+            dict.get("qux");
+            fail("Expected NoSuchKeyException");
+        } catch (NoSuchKeyException ex) {
+            // This is ok: do nothing
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testRemoveErrorHandling() {
+        IDictionary<Integer, String> dict = new ChainedHashDictionary<>();
+        dict.put(3, "a");
+        assertEquals("a", dict.remove(3));
+        try {
+            dict.remove(3);
+            fail("Expected NoSuchKeyException");
+        } catch (NoSuchKeyException ex) {
+            // Do nothing: this is ok
+        }
+        assertTrue(dict.isEmpty());
+    }
+
+    @Test(timeout=SECOND)
+    public void testGetOrDefault() {
+        IDictionary<String, String> dict = this.makeBasicDictionary();
+        dict.put("keyNull", null);
+
+        assertEquals("valA", dict.getOrDefault("keyA", "default"));
+        assertEquals("default", dict.getOrDefault("keyD", "default"));
+        assertEquals(null, dict.getOrDefault("keyNull", "default"));
+    }
+
+    @Test(timeout=SECOND)
+    public void testNullKey() {
+        IDictionary<String, String> dict = this.makeBasicDictionary();
+
+        dict.put(null, "hello");
+        dict.put(null, "world");
+
+        assertEquals(4, dict.size());
+        assertEquals("world", dict.get(null));
+        assertTrue(dict.containsKey(null));
+        assertEquals("world", dict.remove(null));
+        assertFalse(dict.containsKey(null));
+    }
+
+    @Test(timeout=SECOND)
+    public void testCollidingKeys() {
+        IDictionary<Wrapper<String>, Integer> dict = new ChainedHashDictionary<>();
+        int cap = 100;
+
+        for (int i = 0; i < cap; i++) {
+            dict.put(new Wrapper<>("item" + i, 7), i);
+        }
+        assertEquals(cap, dict.size());
+
+        for (int i = 0; i < cap; i += 2) {
+            assertEquals(i, dict.remove(new Wrapper<>("item" + i, 7)));
+        }
+        assertEquals(cap / 2, dict.size());
+
+        for (int i = 0; i < cap; i++) {
+            Wrapper<String> key = new Wrapper<>("item" + i, 7);
+            assertEquals(i % 2 == 1, dict.containsKey(key));
+        }
+    }
+
+    @Test(timeout=2 * SECOND)
+    public void testAddRemoveManyIsEfficient() {
+        IDictionary<Integer, Integer> dict = new ChainedHashDictionary<>();
+        int cap = 500000;
+
+        for (int i = 0; i < cap; i++) {
+            dict.put(i, i * 2);
+        }
+        for (int i = cap - 1; i >= 0; i--) {
+            int value = dict.get(i);
+            assertEquals(i * 2, value);
+        }
+        for (int i = 0; i < cap; i++) {
+            int value = dict.remove(i);
+            assertEquals(i * 2, value);
+        }
+        assertTrue(dict.isEmpty());
+    }
+}
@@ -0,0 +1,81 @@
+package datastructures;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import datastructures.concrete.DoubleArrayList;
+import datastructures.interfaces.IList;
+import misc.BaseTest;
+import misc.exceptions.EmptyContainerException;
+
+import org.junit.Assert;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class TestDoubleArrayList extends BaseTest {
+    @Test(timeout=SECOND)
+    public void testAddAndGetBasic() {
+        DoubleArrayList list = new DoubleArrayList(0);
+        list.addDouble(1.5);
+        list.add(2.5);
+        list.addDouble(-3.0);
+
+        assertEquals(3, list.size());
+        assertEquals(1.5, list.get(0));
+        assertEquals(2.5, list.get(1));
+        Assert.assertEquals(-3.0, list.getDouble(2), 0.0);
+        Assert.assertArrayEquals(new double[] {1.5, 2.5, -3.0}, list.toArray(), 0.0);
+    }
+
+    @Test(timeout=SECOND)
+    public void testListOperations() {
+        IList<Double> list = new DoubleArrayList();
+        list.add(1.0);
+        list.add(2.0);
+        list.add(3.0);
+        list.insert(0, 0.0);
+        list.set(3, 30.0);
+
+        assertEquals(30.0, list.delete(3));
+        assertEquals(2.0, list.remove());
+        assertEquals(1, list.indexOf(1.0));
+        assertTrue(list.contains(0.0));
+        assertFalse(list.contains(null));
+
+        int expected = 0;
+        for (double item : list) {
+            assertEquals((double) expected, item);
+            expected++;
+        }
+        assertEquals(2, expected);
+    }
+
+    @Test(timeout=SECOND)
+    public void testWrapUsesArray() {
+        double[] values = {4.0, 5.0, 6.0};
+        DoubleArrayList list = DoubleArrayList.wrap(values, 2);
+        assertEquals(2, list.size());
+        assertEquals(5.0, list.get(1));
+
+        try {
+            list.get(2);
+            fail("Expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException ex) {
+            // Do nothing: this is ok
+        }
+    }
+
+    @Test(timeout=SECOND)
+    public void testRemoveFromEmpty() {
+        IList<Double> list = new DoubleArrayList();
+        try {
+            list.remove();
+            fail("Expected EmptyContainerException");
+        } catch (EmptyContainerException ex) {
+            // Do nothing: this is ok
+        }
+    }
+}